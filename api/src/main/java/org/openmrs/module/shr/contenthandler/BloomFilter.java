@@ -0,0 +1,191 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe Bloom filter of strings.
+ * <p>
+ * {@link #mightContain(String)} never returns false for a string that has been added, but may return true
+ * for a string that hasn't been added, with a probability that depends on the number of strings added.
+ */
+public class BloomFilter {
+
+	private static final int MAGIC = 0x53484246; //SHBF
+	private static final double LN2 = Math.log(2);
+
+	private final long expectedInsertions;
+	private final long numBits;
+	private final int numHashes;
+	private final AtomicLongArray bits;
+	private final AtomicLong insertions = new AtomicLong();
+
+
+	/**
+	 * @param expectedInsertions The number of strings that will be added
+	 * @param falsePositiveRate The false positive rate once the expected number of strings has been added, e.g. 0.01
+	 */
+	public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+		if (expectedInsertions < 1) {
+			throw new IllegalArgumentException("The expected number of insertions must be at least 1");
+		}
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("The false positive rate must be between 0 and 1");
+		}
+
+		this.expectedInsertions = expectedInsertions;
+		long words = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (LN2 * LN2) / 64);
+		if (words > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("A Bloom filter for " + expectedInsertions + " insertions is too large");
+		}
+		this.numBits = words * 64;
+		this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * LN2));
+		this.bits = new AtomicLongArray((int) words);
+	}
+
+	private BloomFilter(long expectedInsertions, int numHashes, long insertions, long[] words) {
+		this.expectedInsertions = expectedInsertions;
+		this.numBits = (long) words.length * 64;
+		this.numHashes = numHashes;
+		this.bits = new AtomicLongArray(words);
+		this.insertions.set(insertions);
+	}
+
+	public void put(String value) {
+		long hash1 = hash(value);
+		long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L) | 1;
+
+		for (int i=0; i<numHashes; i++) {
+			long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+			setBit(bit);
+		}
+		insertions.incrementAndGet();
+	}
+
+	public boolean mightContain(String value) {
+		long hash1 = hash(value);
+		long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L) | 1;
+
+		for (int i=0; i<numHashes; i++) {
+			long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void setBit(long bit) {
+		int index = (int) (bit >>> 6);
+		long mask = 1L << bit;
+		while (true) {
+			long word = bits.get(index);
+			if ((word & mask) != 0 || bits.compareAndSet(index, word, word | mask)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 64 bit FNV-1a over the characters of the string, followed by a finalizer to spread the bits
+	 */
+	private static long hash(String value) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i=0; i<value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001B3L;
+		}
+		return mix(hash);
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * @return The number of strings the filter was sized for
+	 */
+	public long getExpectedInsertions() {
+		return expectedInsertions;
+	}
+
+	/**
+	 * @return The number of strings added to the filter (including duplicates)
+	 */
+	public long getInsertions() {
+		return insertions.get();
+	}
+
+	public long getNumBits() {
+		return numBits;
+	}
+
+	public int getNumHashes() {
+		return numHashes;
+	}
+
+	/**
+	 * @return The current probability of a false positive, based on the number of strings added
+	 */
+	public double getFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-numHashes * (double) insertions.get() / numBits), numHashes);
+	}
+
+	/**
+	 * Writes the filter. Strings added concurrently may or may not be included.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeLong(expectedInsertions);
+		out.writeInt(numHashes);
+		out.writeLong(insertions.get());
+		out.writeInt(bits.length());
+		for (int i=0; i<bits.length(); i++) {
+			out.writeLong(bits.get(i));
+		}
+	}
+
+	/**
+	 * Reads a filter written by {@link #writeTo(DataOutput)}
+	 */
+	public static BloomFilter readFrom(DataInput in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a Bloom filter");
+		}
+
+		long expectedInsertions = in.readLong();
+		int numHashes = in.readInt();
+		long insertions = in.readLong();
+		int length = in.readInt();
+		if (expectedInsertions < 1 || numHashes < 1 || length < 1) {
+			throw new IOException("Invalid Bloom filter");
+		}
+
+		long[] words = new long[length];
+		for (int i=0; i<length; i++) {
+			words[i] = in.readLong();
+		}
+		return new BloomFilter(expectedInsertions, numHashes, insertions, words);
+	}
+}
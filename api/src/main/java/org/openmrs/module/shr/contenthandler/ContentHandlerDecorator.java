@@ -0,0 +1,133 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+
+/**
+ * Base class for content handler decorators.
+ * <p>
+ * A decorator is applied as a dynamic proxy that implements all the interfaces of the decorated handler, so that callers
+ * can still test for capabilities such as {@link org.openmrs.module.shr.contenthandler.api.MultiContentHandler} or
+ * {@link org.openmrs.module.shr.contenthandler.api.RangeContentHandler} on the handlers returned by the service.
+ * Calls to {@link ContentHandler#cloneHandler()} are decorated again, all other handler calls go through
+ * {@link #invoke(Method, Object[])}.
+ */
+public abstract class ContentHandlerDecorator implements InvocationHandler {
+
+	private final ContentHandler delegate;
+
+
+	protected ContentHandlerDecorator(ContentHandler delegate) {
+		if (delegate==null) {
+			throw new NullPointerException();
+		}
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @return The decorated handler
+	 */
+	public ContentHandler getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * @return A proxy for the decorated handler that implements all of its interfaces
+	 */
+	public ContentHandler proxy() {
+		Class<?> delegateClass = delegate.getClass();
+		return (ContentHandler) Proxy.newProxyInstance(delegateClass.getClassLoader(), getInterfaces(delegateClass), this);
+	}
+
+	/**
+	 * Returns a decorator for a clone of the decorated handler.
+	 */
+	protected abstract ContentHandlerDecorator decorate(ContentHandler clone);
+
+	/**
+	 * Invokes a handler method. The default implementation calls the decorated handler.
+	 */
+	protected Object invoke(Method method, Object[] args) throws Throwable {
+		return invokeDelegate(method, args);
+	}
+
+	/**
+	 * Calls the method on the decorated handler, rethrowing any exception thrown by the handler as-is.
+	 */
+	protected final Object invokeDelegate(Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(delegate, args);
+		} catch (InvocationTargetException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	@Override
+	public final Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass()==Object.class) {
+			String name = method.getName();
+			if ("equals".equals(name)) {
+				return proxy==args[0];
+			}
+			if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			}
+			return invokeDelegate(method, args);
+		}
+		if ("cloneHandler".equals(method.getName()) && method.getParameterTypes().length==0) {
+			return decorate(delegate.cloneHandler()).proxy();
+		}
+		return invoke(method, args);
+	}
+
+	/**
+	 * Returns the handler decorated by a proxy created by this class, or the handler itself if it isn't decorated.
+	 */
+	public static ContentHandler unwrap(ContentHandler handler) {
+		while (handler!=null && Proxy.isProxyClass(handler.getClass())) {
+			InvocationHandler ih = Proxy.getInvocationHandler(handler);
+			if (!(ih instanceof ContentHandlerDecorator)) {
+				break;
+			}
+			handler = ((ContentHandlerDecorator) ih).getDelegate();
+		}
+		return handler;
+	}
+
+	private static Class<?>[] getInterfaces(Class<?> cls) {
+		Set<Class<?>> res = new LinkedHashSet<Class<?>>();
+		for (Class<?> c = cls; c!=null; c = c.getSuperclass()) {
+			addInterfaces(c, res);
+		}
+		return res.toArray(new Class<?>[res.size()]);
+	}
+
+	private static void addInterfaces(Class<?> cls, Set<Class<?>> res) {
+		for (Class<?> i : cls.getInterfaces()) {
+			//a proxy can only implement non-public interfaces of its own package
+			if (Modifier.isPublic(i.getModifiers()) && res.add(i)) {
+				addInterfaces(i, res);
+			}
+		}
+	}
+}
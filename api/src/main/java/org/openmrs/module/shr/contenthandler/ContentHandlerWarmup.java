@@ -0,0 +1,190 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Patient;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.Content.CompressionFormat;
+import org.openmrs.module.shr.contenthandler.api.Content.Representation;
+import org.openmrs.module.shr.contenthandler.api.ContentDescriptor;
+import org.openmrs.module.shr.contenthandler.api.ContentFilter;
+import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+import org.openmrs.module.shr.contenthandler.api.ContentHandlerException;
+import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
+import org.openmrs.module.shr.contenthandler.api.ContentPage;
+import org.openmrs.module.shr.contenthandler.api.ListableContentHandler;
+
+/**
+ * Warms up the module after startup so that the first requests don't pay for cold caches and an unoptimised JIT.
+ * <p>
+ * The warm-up preloads the unstructured attachment concepts, primes the handler lookups and the
+ * serialization and decode paths and, if a warm-up patient is configured, lists and fetches the patient's content.
+ * The warm-up only reads, so it leaves nothing behind in the database or the content store.
+ * The module reports itself as ready (see {@link #isReady()}) once the warm-up has completed.
+ */
+public class ContentHandlerWarmup implements Runnable {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	public static final String GP_WARMUP_ENABLED = "shr.contenthandler.warmup.enabled";
+	public static final String GP_WARMUP_ITERATIONS = "shr.contenthandler.warmup.iterations";
+	public static final String GP_WARMUP_PATIENT_ID = "shr.contenthandler.warmup.patientId";
+
+	private static final int DEFAULT_ITERATIONS = 200;
+	private static final CodedValue WARMUP_CODE = new CodedValue("warmup", "shr.contenthandler", "Warm-up");
+
+	private static volatile boolean ready = false;
+
+
+	/**
+	 * @return true if the module has completed its warm-up and is ready to receive traffic
+	 */
+	public static boolean isReady() {
+		return ready;
+	}
+
+	static void setReady(boolean ready) {
+		ContentHandlerWarmup.ready = ready;
+	}
+
+	/**
+	 * @should leave nothing behind in the database or the content store
+	 * @should not create the attachment concept set
+	 */
+	@Override
+	public void run() {
+		try {
+			AdministrationService as = Context.getAdministrationService();
+			if (!Boolean.parseBoolean(as.getGlobalProperty(GP_WARMUP_ENABLED, "true"))) {
+				log.info("SHR Content Handler Module warm-up is disabled");
+				return;
+			}
+
+			long start = System.currentTimeMillis();
+			int iterations = getIterations(as);
+
+			int concepts = UnstructuredDataHandler.preloadUnstructuredAttachmentConcepts();
+			log.debug("Preloaded " + concepts + " unstructured attachment concepts");
+
+			primeHandlerRoutes(iterations);
+			primeSerialization(iterations);
+
+			//without attachment concepts there is no content to fetch, and the lookups would create the concept set
+			if (concepts > 0) {
+				primeFetch();
+				String patientId = as.getGlobalProperty(GP_WARMUP_PATIENT_ID);
+				if (patientId!=null && !patientId.trim().isEmpty()) {
+					listAndFetchContent(Integer.valueOf(patientId.trim()));
+				}
+			}
+
+			log.info("SHR Content Handler Module warm-up completed in " + (System.currentTimeMillis() - start) + "ms");
+		} catch (Exception ex) {
+			//a failed warm-up only means a slower start, so don't keep the module out of service
+			log.warn("SHR Content Handler Module warm-up failed", ex);
+		} finally {
+			setReady(true);
+		}
+	}
+
+	private int getIterations(AdministrationService as) {
+		String iterations = as.getGlobalProperty(GP_WARMUP_ITERATIONS);
+		if (iterations==null || iterations.trim().isEmpty()) {
+			return DEFAULT_ITERATIONS;
+		}
+
+		try {
+			return Integer.parseInt(iterations.trim());
+		} catch (NumberFormatException ex) {
+			log.warn("Invalid value for " + GP_WARMUP_ITERATIONS + ": " + iterations);
+			return DEFAULT_ITERATIONS;
+		}
+	}
+
+	private void primeHandlerRoutes(int iterations) {
+		ContentHandlerService chs = Context.getService(ContentHandlerService.class);
+
+		for (int i=0; i<iterations; i++) {
+			chs.getDefaultUnstructuredHandler();
+			chs.getContentHandlerByClass(ContentHandler.class);
+			chs.getContentHandler("text/plain");
+			chs.getContentHandler(WARMUP_CODE, WARMUP_CODE);
+		}
+	}
+
+	private void primeSerialization(int iterations) throws IOException {
+		byte[] text = "<warmup>SHR Content Handler Module</warmup>".getBytes();
+		byte[] compressed = Base64.encodeBase64(compressGZip(text));
+
+		Content plain = new Content("warmup", text, WARMUP_CODE, WARMUP_CODE, "text/xml");
+		Content gzip = new Content("warmup", compressed, false, WARMUP_CODE, WARMUP_CODE, "text/xml", "UTF-8",
+			Representation.B64, CompressionFormat.GZ, Locale.ENGLISH);
+
+		for (int i=0; i<iterations; i++) {
+			ContentSerializer.fromJson(ContentSerializer.toJson(plain));
+			ContentSerializer.fromJson(ContentSerializer.toJson(gzip));
+
+			gzip.getDecodedPayload();
+		}
+	}
+
+	/**
+	 * Primes the fetch path (content id filter and accession number lookup) with an id that was never saved.
+	 */
+	private void primeFetch() throws ContentHandlerException {
+		ContentHandler handler = Context.getService(ContentHandlerService.class).getDefaultUnstructuredHandler();
+		handler.fetchContent("warmup-" + UUID.randomUUID());
+	}
+
+	/**
+	 * Lists the most recent content of the patient and fetches it, priming the patient queries and the content store reads.
+	 */
+	private void listAndFetchContent(Integer patientId) throws ContentHandlerException {
+		Patient patient = Context.getPatientService().getPatient(patientId);
+		if (patient==null) {
+			log.warn("Warm-up patient " + patientId + " not found, skipping the content fetch");
+			return;
+		}
+
+		ContentHandler handler = Context.getService(ContentHandlerService.class).getDefaultUnstructuredHandler();
+		if (!(handler instanceof ListableContentHandler)) {
+			return;
+		}
+
+		ContentPage page = ((ListableContentHandler) handler).listContent(patient, new ContentFilter(), null, 1);
+		for (ContentDescriptor descriptor : page.getContent()) {
+			handler.fetchContent(descriptor.getContentId());
+		}
+	}
+
+	private static byte[] compressGZip(byte[] content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+		gzipOut.write(content);
+		gzipOut.close();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,342 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.api.db.ContentHandlerDAO;
+import org.openmrs.module.shr.contenthandler.metrics.CacheMetrics;
+import org.openmrs.module.shr.contenthandler.metrics.ContentHandlerMetrics;
+import org.openmrs.module.shr.contenthandler.metrics.Gauge;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * A Bloom filter of the ids of the content saved by the {@link UnstructuredDataHandler}, used to answer fetches
+ * for content that was never saved without querying the database.
+ * <p>
+ * The filter is built at startup from the accession numbers of the unstructured data obs and updated as content is saved.
+ * It's persisted to the application data directory together with the id of the last obs it was built from,
+ * so that after a restart only newer obs need to be read. A persisted filter that was built from obs ids beyond the highest
+ * obs id in the database (e.g. after a database restore) is discarded. Until the filter has been built, all ids are reported
+ * as possibly present.
+ * <p>
+ * Obs ids are assigned before the obs are committed, so an obs can become visible after obs with higher ids have already
+ * been read. Each read therefore starts {@link #RESCAN_OBS_IDS} ids before the last obs that was read.
+ * <p>
+ * Content saved by other means than the handler (e.g. by another server using the same database) is only picked up by
+ * {@link #catchUp()}, which is run periodically by the {@link org.openmrs.module.shr.contenthandler.task.ContentIdFilterTask}.
+ * Until then, fetches for that content return null. The filter is therefore disabled by default, and should only be
+ * enabled if all content is saved through this server.
+ */
+public class ContentIdFilter {
+
+	private static final Log log = LogFactory.getLog(ContentIdFilter.class);
+
+	public static final String GP_ENABLED = "shr.contenthandler.contentIdFilter.enabled";
+	public static final String GP_EXPECTED_CONTENT = "shr.contenthandler.contentIdFilter.expectedContent";
+
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+	private static final long DEFAULT_EXPECTED_CONTENT = 1000000;
+	private static final int BATCH_SIZE = 1000;
+	/**
+	 * The number of obs ids before the last read obs that are read again, to pick up obs committed out of order
+	 */
+	static final int RESCAN_OBS_IDS = 10000;
+	private static final String DATA_DIRECTORY = "shr_contenthandler";
+	private static final String FILE_NAME = "contentIds.bloom";
+	private static final int FILE_VERSION = 1;
+
+	/**
+	 * The filter used to answer queries; null until built
+	 */
+	private static volatile BloomFilter filter = null;
+	/**
+	 * The filter that is being built or rebuilt, which also receives new content ids; null if none
+	 */
+	private static volatile BloomFilter building = null;
+	/**
+	 * The id of the last obs read into the filter
+	 */
+	private static int lastObsId = 0;
+	/**
+	 * Guards switching {@link #filter} and {@link #building}, so that no content id is added in between
+	 */
+	private static final Object lock = new Object();
+
+	private static final CacheMetrics metrics = ContentHandlerMetrics.registerCache("contentIdFilter", new Gauge() {
+		@Override
+		public long getValue() {
+			BloomFilter f = filter;
+			return f!=null ? f.getInsertions() : 0;
+		}
+	});
+
+
+	private ContentIdFilter() {}
+
+	/**
+	 * @return false if the content id has definitely not been saved, true if it may have been saved
+	 */
+	public static boolean mightContain(String contentId) {
+		BloomFilter f = filter;
+		if (f==null || contentId==null) {
+			return true;
+		}
+
+		//a definite answer is counted as a hit, since it saves a database query
+		if (f.mightContain(contentId)) {
+			metrics.miss();
+			return true;
+		}
+		metrics.hit();
+		return false;
+	}
+
+	/**
+	 * Adds a content id. Must be called before the content is committed.
+	 */
+	public static void add(String contentId) {
+		if (contentId==null) {
+			return;
+		}
+
+		synchronized (lock) {
+			BloomFilter f = filter;
+			if (f!=null) {
+				f.put(contentId);
+			}
+			BloomFilter b = building;
+			if (b!=null && b!=f) {
+				b.put(contentId);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the filter has been built and is answering queries
+	 */
+	public static boolean isReady() {
+		return filter!=null;
+	}
+
+	/**
+	 * Builds the filter, starting from the persisted filter if there is one, if enabled by the {@link #GP_ENABLED} global property.
+	 * 
+	 * @should rebuild a persisted filter that was built from obs that are not in the database
+	 */
+	public static synchronized void initialize() {
+		if (!Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(GP_ENABLED, "false").trim())) {
+			log.info("The content id filter is disabled");
+			publish(null);
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		long expected = getExpectedContent();
+		BloomFilter f = load();
+		if (f!=null && lastObsId > getDao().getMaxObsId()) {
+			//the database doesn't match the one the filter was built from, so it may be missing content ids
+			log.info("The persisted content id filter was built from obs that aren't in the database; rebuilding");
+			f = null;
+		}
+		if (f==null || f.getExpectedInsertions() < expected) {
+			f = new BloomFilter(expected, FALSE_POSITIVE_RATE);
+			lastObsId = 0;
+		}
+
+		setBuilding(f);
+		try {
+			readObs(f);
+			if (f.getInsertions() > f.getExpectedInsertions()) {
+				f = rebuild(f.getInsertions() * 2);
+			}
+			publish(f);
+		} finally {
+			setBuilding(null);
+		}
+
+		log.info("Content id filter with " + f.getInsertions() + " ids built in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Reads the obs saved since the filter was last built or caught up into the filter.
+	 * The filter is rebuilt with a larger size once it holds more ids than it was sized for.
+	 */
+	public static synchronized void catchUp() {
+		BloomFilter f = filter;
+		if (f==null) {
+			return;
+		}
+
+		readObs(f);
+		if (f.getInsertions() > f.getExpectedInsertions()) {
+			log.info("The content id filter holds " + f.getInsertions() + " ids, but was sized for " + f.getExpectedInsertions() + "; rebuilding");
+			try {
+				publish(rebuild(f.getInsertions() * 2));
+			} finally {
+				setBuilding(null);
+			}
+		}
+	}
+
+	/**
+	 * Builds a new filter from all obs. Content ids are added to the new filter from the start of the build,
+	 * the caller must publish it and clear {@link #building}.
+	 */
+	private static BloomFilter rebuild(long expected) {
+		BloomFilter f = new BloomFilter(expected, FALSE_POSITIVE_RATE);
+		setBuilding(f);
+		lastObsId = 0;
+		readObs(f);
+		return f;
+	}
+
+	private static void setBuilding(BloomFilter f) {
+		synchronized (lock) {
+			building = f;
+		}
+	}
+
+	private static void publish(BloomFilter f) {
+		synchronized (lock) {
+			filter = f;
+			building = null;
+		}
+	}
+
+	/**
+	 * Reads the obs from {@link #RESCAN_OBS_IDS} ids before the last read obs into the filter.
+	 * Ids that are already in the filter are skipped, so that reading them again doesn't inflate its insertion count.
+	 */
+	private static void readObs(BloomFilter f) {
+		List<Integer> conceptIds = new ArrayList<Integer>(UnstructuredDataHandler.getAttachmentConceptIds());
+		ContentHandlerDAO dao = getDao();
+
+		int afterObsId = Math.max(lastObsId - RESCAN_OBS_IDS, 0);
+		Map<Integer, String> batch;
+		do {
+			batch = dao.getAccessionNumbers(conceptIds, afterObsId, BATCH_SIZE);
+			for (Map.Entry<Integer, String> entry : batch.entrySet()) {
+				if (!f.mightContain(entry.getValue())) {
+					f.put(entry.getValue());
+				}
+				afterObsId = entry.getKey();
+				lastObsId = Math.max(lastObsId, afterObsId);
+			}
+			Context.clearSession();
+		} while (batch.size() == BATCH_SIZE);
+	}
+
+	private static ContentHandlerDAO getDao() {
+		return Context.getRegisteredComponent("shrContentHandlerDAO", ContentHandlerDAO.class);
+	}
+
+	private static long getExpectedContent() {
+		String value = Context.getAdministrationService().getGlobalProperty(GP_EXPECTED_CONTENT);
+		if (value==null || value.trim().isEmpty()) {
+			return DEFAULT_EXPECTED_CONTENT;
+		}
+
+		try {
+			return Math.max(Long.parseLong(value.trim()), 1);
+		} catch (NumberFormatException ex) {
+			log.warn("Invalid value for " + GP_EXPECTED_CONTENT + ": " + value);
+			return DEFAULT_EXPECTED_CONTENT;
+		}
+	}
+
+	/**
+	 * Writes the filter to the application data directory, if it has been built.
+	 */
+	public static synchronized void persist() {
+		BloomFilter f = filter;
+		if (f==null) {
+			return;
+		}
+
+		File file = getFile();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(FILE_VERSION);
+			out.writeInt(lastObsId);
+			f.writeTo(out);
+			out.close();
+			out = null;
+
+			if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+				throw new IOException("Failed to rename " + tmp + " to " + file);
+			}
+		} catch (IOException ex) {
+			log.warn("Failed to persist the content id filter", ex);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Reads the persisted filter and sets {@link #lastObsId}. Returns null if there isn't a (valid) persisted filter.
+	 */
+	private static BloomFilter load() {
+		File file = getFile();
+		if (!file.exists()) {
+			return null;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != FILE_VERSION) {
+				log.info("Ignoring a persisted content id filter of an unsupported version");
+				return null;
+			}
+			int obsId = in.readInt();
+			BloomFilter res = BloomFilter.readFrom(in);
+			lastObsId = obsId;
+			return res;
+		} catch (IOException ex) {
+			log.warn("Failed to read the persisted content id filter, it will be rebuilt", ex);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	static File getFile() {
+		return new File(OpenmrsUtil.getDirectoryInApplicationDataDirectory(DATA_DIRECTORY), FILE_NAME);
+	}
+
+	/**
+	 * Discards the filter, so that all ids are reported as possibly present until it's built again. For testing.
+	 */
+	static synchronized void reset() {
+		publish(null);
+		lastObsId = 0;
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Locks on content ids, used to serialize idempotent saves of the same content id.
+ * <p>
+ * A save looks up the content id and inserts the content if it wasn't found. Without a lock, two concurrent saves of
+ * the same content (e.g. a client retrying a request that timed out) could both miss each other's uncommitted obs and
+ * both insert it. The lock is therefore held until the transaction of the save has completed, so that the second save
+ * finds the committed obs of the first.
+ * <p>
+ * The locks only apply to this server. Locks on multiple ids are taken in a fixed order to avoid deadlocks.
+ */
+class ContentIdLocks {
+
+	private static final Map<String, Entry> locks = new HashMap<String, Entry>();
+
+
+	private ContentIdLocks() {}
+
+	/**
+	 * Locks the content ids, waiting for other saves of the ids to complete.
+	 * 
+	 * @return The locks, which must be released by calling {@link Held#releaseAfterCompletion()}
+	 * @should let only one of concurrent saves of the same content id insert it
+	 * @should not block saves of other content ids
+	 */
+	static Held lock(Collection<String> contentIds) {
+		TreeSet<String> ids = new TreeSet<String>();
+		for (String id : contentIds) {
+			if (id!=null) {
+				ids.add(id);
+			}
+		}
+		List<Entry> entries = new ArrayList<Entry>(ids.size());
+		try {
+			for (String id : ids) {
+				Entry entry;
+				synchronized (locks) {
+					entry = locks.get(id);
+					if (entry==null) {
+						entry = new Entry(id);
+						locks.put(id, entry);
+					}
+					entry.users++;
+				}
+				entries.add(entry);
+				entry.lock.lock();
+			}
+		} catch (RuntimeException ex) {
+			new Held(entries).release();
+			throw ex;
+		}
+		return new Held(entries);
+	}
+
+	/**
+	 * @return The number of content ids that are locked or being waited for. For testing.
+	 */
+	static int size() {
+		synchronized (locks) {
+			return locks.size();
+		}
+	}
+
+	private static class Entry {
+		final String id;
+		final ReentrantLock lock = new ReentrantLock();
+		/**
+		 * The number of threads holding or waiting for the lock, guarded by {@link ContentIdLocks#locks}
+		 */
+		int users;
+
+		Entry(String id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * The locks taken by a save.
+	 */
+	static class Held {
+		private final List<Entry> entries;
+
+		private Held(List<Entry> entries) {
+			this.entries = entries;
+		}
+
+		/**
+		 * Releases the locks once the current transaction has completed, or right away if there is no transaction.
+		 * Must be called by the thread that took the locks.
+		 */
+		void releaseAfterCompletion() {
+			if (TransactionSynchronizationManager.isSynchronizationActive()) {
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+					@Override
+					public void afterCompletion(int status) {
+						release();
+					}
+				});
+			} else {
+				release();
+			}
+		}
+
+		private void release() {
+			for (Entry entry : entries) {
+				if (entry.lock.isHeldByCurrentThread()) {
+					entry.lock.unlock();
+				}
+				synchronized (locks) {
+					if (--entry.users == 0) {
+						locks.remove(entry.id);
+					}
+				}
+			}
+		}
+	}
+}
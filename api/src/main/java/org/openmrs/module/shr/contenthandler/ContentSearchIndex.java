@@ -0,0 +1,316 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * An on-disk full-text index of the text and XML content saved by the {@link UnstructuredDataHandler}.
+ * <p>
+ * Content is indexed once the transaction that saved it has committed, with its patient, format code and encounter date,
+ * so that searches can be filtered by them. XML markup is stripped before indexing, e.g. to index the narrative of CDA documents.
+ * The index is committed to disk at most every {@link #COMMIT_INTERVAL_MILLIS}ms and when the module is stopped,
+ * but searches see indexed content immediately.
+ * <p>
+ * Content that is voided after it has been indexed is still found; {@link org.openmrs.module.shr.contenthandler.api.ContentHandlerService#searchContent}
+ * drops it from the results.
+ */
+public class ContentSearchIndex {
+
+	private static final Log log = LogFactory.getLog(ContentSearchIndex.class);
+
+	public static final String GP_ENABLED = "shr.contenthandler.search.enabled";
+	public static final String GP_DIR = "shr.contenthandler.search.dir";
+
+	static final String FIELD_CONTENT_ID = "contentId";
+	static final String FIELD_PATIENT = "patient";
+	static final String FIELD_FORMAT_CODE = "formatCode";
+	static final String FIELD_DATE = "date";
+	static final String FIELD_TEXT = "text";
+
+	private static final Version VERSION = Version.LUCENE_36;
+	private static final long COMMIT_INTERVAL_MILLIS = 10000;
+	/**
+	 * Only the start of larger payloads is indexed
+	 */
+	private static final int MAX_INDEXED_BYTES = 1024 * 1024;
+	private static final Pattern XML_MARKUP = Pattern.compile("<[^>]*>");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static Boolean enabled = null;
+	private static ContentSearchIndex instance = null;
+
+	private final FSDirectory directory;
+	private final Analyzer analyzer;
+	private final IndexWriter writer;
+	private final SearcherManager searcherManager;
+	private volatile long lastCommit = System.currentTimeMillis();
+
+
+	/**
+	 * Opens the index in a directory, creating it if necessary
+	 */
+	public ContentSearchIndex(File dir) throws IOException {
+		directory = FSDirectory.open(dir);
+		analyzer = new StandardAnalyzer(VERSION);
+		writer = new IndexWriter(directory, new IndexWriterConfig(VERSION, analyzer));
+		searcherManager = new SearcherManager(writer, true, null);
+	}
+
+	/**
+	 * @return The index, opened on first use, or null if disabled by the {@link #GP_ENABLED} global property
+	 */
+	public static synchronized ContentSearchIndex getInstance() throws IOException {
+		if (enabled==null) {
+			enabled = Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(GP_ENABLED, "false").trim());
+		}
+		if (!enabled) {
+			return null;
+		}
+
+		if (instance==null) {
+			AdministrationService as = Context.getAdministrationService();
+			File dir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(as.getGlobalProperty(GP_DIR, "content_search_index"));
+			instance = new ContentSearchIndex(dir);
+			log.info("Opened the content search index in " + dir.getAbsolutePath());
+		}
+		return instance;
+	}
+
+	/**
+	 * Closes the index, if it has been opened, committing any pending changes
+	 */
+	public static synchronized void shutdown() {
+		if (instance!=null) {
+			try {
+				instance.close();
+			} catch (IOException ex) {
+				log.error("Failed to close the content search index", ex);
+			}
+			instance = null;
+		}
+		enabled = null;
+	}
+
+	/**
+	 * @return true if the payload of the content is text that can be indexed, i.e. a text or XML document
+	 */
+	public static boolean isIndexable(Content content) {
+		if (content.payloadIsUrl() || !content.hasPayload() || content.getContentType()==null) {
+			return false;
+		}
+		String contentType = content.getContentType().toLowerCase();
+		return contentType.startsWith("text/") || contentType.contains("xml");
+	}
+
+	/**
+	 * Adds the content to the index, replacing content previously indexed with the same id.
+	 * Content that isn't {@link #isIndexable(Content) indexable} is ignored.
+	 * 
+	 * @should replace content indexed with the same id
+	 * @should index the text of compressed and base64 encoded payloads
+	 * @should not index xml markup
+	 */
+	public void index(Content content, Integer patientId, Date date) throws IOException {
+		Document doc = createDocument(content, patientId, date);
+		if (doc!=null) {
+			add(doc);
+		}
+	}
+
+	/**
+	 * Creates the index document of the content, which extracts the text from its payload.
+	 * 
+	 * @return The document, or null if the content isn't {@link #isIndexable(Content) indexable}
+	 */
+	static Document createDocument(Content content, Integer patientId, Date date) throws IOException {
+		if (!isIndexable(content)) {
+			return null;
+		}
+
+		Document doc = new Document();
+		doc.add(new Field(FIELD_CONTENT_ID, content.getContentId(), Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+		if (patientId!=null) {
+			doc.add(new Field(FIELD_PATIENT, patientId.toString(), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+		}
+		if (content.getFormatCode()!=null) {
+			doc.add(new Field(FIELD_FORMAT_CODE, toTerm(content.getFormatCode()), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+		}
+		if (date!=null) {
+			doc.add(new NumericField(FIELD_DATE).setLongValue(date.getTime()));
+		}
+		doc.add(new Field(FIELD_TEXT, extractText(content), Field.Store.NO, Field.Index.ANALYZED));
+		return doc;
+	}
+
+	/**
+	 * Adds a document created by {@link #createDocument(Content, Integer, Date)}, replacing content previously indexed with the same id
+	 */
+	void add(Document doc) throws IOException {
+		writer.updateDocument(new Term(FIELD_CONTENT_ID, doc.get(FIELD_CONTENT_ID)), doc);
+		maybeCommit();
+	}
+
+	/**
+	 * Removes content from the index
+	 */
+	public void remove(String contentId) throws IOException {
+		writer.deleteDocuments(new Term(FIELD_CONTENT_ID, contentId));
+		maybeCommit();
+	}
+
+	/**
+	 * Searches the indexed content, most relevant first.
+	 * 
+	 * @param query A query in the Lucene query syntax, e.g. <i>pneumonia AND discharge</i>
+	 * @param patientId (Nullable) Only return content of this patient
+	 * @param formatCode (Nullable) Only return content with this format code
+	 * @param fromDate (Nullable) Only return content with a date on or after this date
+	 * @param toDate (Nullable) Only return content with a date on or before this date
+	 * @param maxResults The maximum number of content ids to return
+	 * @return The ids of the matching content
+	 * @throws IllegalArgumentException if the query is invalid
+	 * @should find indexed content by words in its payload
+	 * @should filter by patient, format code and date
+	 * @should rank content by relevance
+	 * @should throw an IllegalArgumentException for an invalid query
+	 */
+	public List<String> search(String query, Integer patientId, CodedValue formatCode, Date fromDate, Date toDate, int maxResults) throws IOException {
+		Query q;
+		try {
+			//query parsers aren't thread safe
+			q = new QueryParser(VERSION, FIELD_TEXT, analyzer).parse(query);
+		} catch (ParseException ex) {
+			throw new IllegalArgumentException("Invalid search query: " + query, ex);
+		}
+
+		searcherManager.maybeRefresh();
+		IndexSearcher searcher = searcherManager.acquire();
+		try {
+			TopDocs topDocs = searcher.search(q, buildFilter(patientId, formatCode, fromDate, toDate), maxResults);
+			List<String> res = new ArrayList<String>(topDocs.scoreDocs.length);
+			for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+				res.add(searcher.doc(scoreDoc.doc).get(FIELD_CONTENT_ID));
+			}
+			return res;
+		} finally {
+			searcherManager.release(searcher);
+		}
+	}
+
+	/**
+	 * The filters don't affect the ranking, unlike query clauses
+	 */
+	private static Filter buildFilter(Integer patientId, CodedValue formatCode, Date fromDate, Date toDate) {
+		BooleanQuery filter = new BooleanQuery();
+		if (patientId!=null) {
+			filter.add(new TermQuery(new Term(FIELD_PATIENT, patientId.toString())), Occur.MUST);
+		}
+		if (formatCode!=null) {
+			filter.add(new TermQuery(new Term(FIELD_FORMAT_CODE, toTerm(formatCode))), Occur.MUST);
+		}
+		if (fromDate!=null || toDate!=null) {
+			Long from = fromDate!=null ? fromDate.getTime() : null;
+			Long to = toDate!=null ? toDate.getTime() : null;
+			filter.add(NumericRangeQuery.newLongRange(FIELD_DATE, from, to, true, true), Occur.MUST);
+		}
+		return filter.clauses().isEmpty() ? null : new QueryWrapperFilter(filter);
+	}
+
+	private static String toTerm(CodedValue code) {
+		return code.getCodingScheme() + ":" + code.getCode();
+	}
+
+	/**
+	 * Returns the decoded and decompressed payload as text, without XML markup
+	 */
+	static String extractText(Content content) throws IOException {
+		byte[] data = content.getDecodedPayload();
+		String text = new String(data, 0, Math.min(data.length, MAX_INDEXED_BYTES), getCharset(content));
+
+		String contentType = content.getContentType().toLowerCase();
+		if (contentType.contains("xml") || contentType.contains("html")) {
+			text = XML_MARKUP.matcher(text).replaceAll(" ");
+		}
+		return text;
+	}
+
+	private static Charset getCharset(Content content) {
+		if (content.getEncoding()!=null) {
+			try {
+				return Charset.forName(content.getEncoding());
+			} catch (IllegalArgumentException ex) {
+				log.debug("Unsupported encoding " + content.getEncoding() + " (content " + content.getContentId() + ")");
+			}
+		}
+		return UTF8;
+	}
+
+	private void maybeCommit() throws IOException {
+		long now = System.currentTimeMillis();
+		if (now - lastCommit >= COMMIT_INTERVAL_MILLIS) {
+			lastCommit = now;
+			writer.commit();
+		}
+	}
+
+	/**
+	 * Commits pending changes and closes the index
+	 */
+	public void close() throws IOException {
+		try {
+			searcherManager.close();
+			writer.close();
+		} finally {
+			directory.close();
+		}
+	}
+}
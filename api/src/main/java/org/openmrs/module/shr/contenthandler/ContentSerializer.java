@@ -0,0 +1,348 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.Content.Representation;
+import org.openmrs.module.shr.contenthandler.store.SeekableContentStore.StoredContent;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Serializes {@link Content} objects to and from JSON using a shared, thread-safe {@link Gson} instance.
+ *
+ * @see ContentTypeAdapter
+ */
+public class ContentSerializer {
+
+	public static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/** Must be a multiple of 3 so that chunks can be encoded without padding */
+	private static final int BASE64_CHUNK_SIZE = 48 * 1024;
+	
+	private static final ContentTypeAdapter CONTENT_ADAPTER = new ContentTypeAdapter();
+
+	/** The metadata must fit within this many bytes for a payload range to be read */
+	private static final int MAX_METADATA_BYTES = 64 * 1024;
+	private static final byte[] PAYLOAD_MARKER = ("\"" + ContentTypeAdapter.FIELD_PAYLOAD + "\":\"").getBytes(CHARSET);
+
+	private static final Gson GSON = new GsonBuilder()
+		.registerTypeAdapter(Content.class, CONTENT_ADAPTER)
+		.create();
+
+
+	private ContentSerializer() {}
+
+	/**
+	 * @return A shared Gson instance configured with the Content type adapter
+	 */
+	public static Gson getGson() {
+		return GSON;
+	}
+
+	/**
+	 * Writes the content as JSON to the writer. The writer is flushed, but not closed.
+	 * <p>
+	 * The payload is base64 encoded and written in chunks, so that no copy of the full payload is built in memory.
+	 */
+	public static void write(Content content, Writer out) throws IOException {
+		if (content==null || !content.hasPayload()) {
+			JsonWriter writer = new JsonWriter(out);
+			CONTENT_ADAPTER.write(writer, content);
+			writer.flush();
+			return;
+		}
+		
+		//The metadata is small, so serialize it (leaving the object open) and then append the payload field directly.
+		//Base64 doesn't contain any characters that need to be escaped in a JSON string.
+		StringWriter metadata = new StringWriter();
+		JsonWriter writer = new JsonWriter(metadata);
+		CONTENT_ADAPTER.writeMetadata(writer, content);
+		writer.flush();
+		
+		out.write(metadata.toString());
+		out.write(",\"" + ContentTypeAdapter.FIELD_PAYLOAD + "\":\"");
+		writeBase64(content.getPayloadBuffer(), out);
+		out.write("\"}");
+		out.flush();
+	}
+	
+	private static void writeBase64(ByteBuffer payload, Writer out) throws IOException {
+		byte[] chunk = new byte[BASE64_CHUNK_SIZE];
+		char[] encoded = new char[BASE64_CHUNK_SIZE / 3 * 4];
+		
+		while (payload.hasRemaining()) {
+			int length = Math.min(BASE64_CHUNK_SIZE, payload.remaining());
+			if (length < chunk.length) {
+				chunk = new byte[length];
+			}
+			payload.get(chunk, 0, length);
+			
+			byte[] b64 = Base64.encodeBase64(chunk);
+			for (int i=0; i<b64.length; i++) {
+				encoded[i] = (char) b64[i];
+			}
+			out.write(encoded, 0, b64.length);
+		}
+	}
+
+	/**
+	 * Writes the content as UTF-8 encoded JSON to the output stream. The stream is flushed, but not closed.
+	 */
+	public static void write(Content content, OutputStream out) throws IOException {
+		write(content, new OutputStreamWriter(out, CHARSET));
+	}
+
+	/**
+	 * Reads a content object from JSON. The reader is not closed.
+	 */
+	public static Content read(Reader in) throws IOException {
+		return CONTENT_ADAPTER.read(new JsonReader(in));
+	}
+
+	/**
+	 * Reads the metadata of a content object, without reading its payload. The returned content has a null payload.
+	 * The reader is not closed.
+	 */
+	public static Content readMetadata(Reader in) throws IOException {
+		return CONTENT_ADAPTER.readMetadata(new JsonReader(in));
+	}
+
+	/**
+	 * Reads a content object from UTF-8 encoded JSON. The stream is not closed.
+	 */
+	public static Content read(InputStream in) throws IOException {
+		return read(new InputStreamReader(in, CHARSET));
+	}
+
+	/**
+	 * Reads a range of the payload data (as returned by {@link Content#getDecodedPayload()}) from the stored JSON
+	 * of a content object, reading only the metadata and the part of the base64 encoded payload that covers the range.
+	 * <p>
+	 * Returns null if the range can't be located without reading the whole payload, e.g. because the content is compressed,
+	 * the payload is a URL or was stored by a previous version of the module. The caller should then read the full content.
+	 * 
+	 * @param offset The offset of the first byte to read
+	 * @param length The maximum number of bytes to read
+	 * @return The bytes in the range (fewer than length if the range extends past the end of the data), or null
+	 */
+	public static byte[] readPayloadRange(StoredContent stored, long offset, int length) throws IOException {
+		//the metadata is typically well below a kilobyte
+		byte[] head;
+		int payloadStart;
+		int headLength = 4096;
+		while (true) {
+			head = readStored(stored, 0, (int) Math.min(stored.length(), headLength));
+			payloadStart = indexOf(head, PAYLOAD_MARKER);
+			if (payloadStart >= 0) {
+				break;
+			}
+			if (head.length < headLength || headLength >= MAX_METADATA_BYTES) {
+				return null;
+			}
+			headLength *= 4;
+		}
+
+		String metadataJson = new String(head, 0, payloadStart, stored.getCharset()).trim();
+		if (metadataJson.endsWith(",")) {
+			metadataJson = metadataJson.substring(0, metadataJson.length() - 1);
+		}
+		Content metadata = readMetadata(new StringReader(metadataJson + "}"));
+		if (metadata==null || metadata.payloadIsUrl() || metadata.isCompressed()) {
+			return null;
+		}
+
+		//the payload is written last, followed by the closing quote and brace
+		long payloadEnd = stored.length() - 2;
+		byte[] tail = readStored(stored, payloadEnd, 2);
+		if (tail.length!=2 || tail[0]!='"' || tail[1]!='}') {
+			return null;
+		}
+
+		ByteRange data = Base64Range.decode(new StoredRange(stored, payloadStart + PAYLOAD_MARKER.length, payloadEnd));
+		if (data!=null && metadata.getRepresentation()==Representation.B64) {
+			//the payload itself is base64 encoded data
+			data = Base64Range.decode(data);
+		}
+		if (data==null) {
+			return null;
+		}
+
+		if (offset >= data.length() || length <= 0) {
+			return new byte[0];
+		}
+		return data.read(offset, (int) Math.min(length, data.length() - offset));
+	}
+
+	private static byte[] readStored(StoredContent stored, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (stored.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		if (buffer.hasRemaining()) {
+			byte[] res = new byte[buffer.position()];
+			System.arraycopy(buffer.array(), 0, res, 0, res.length);
+			return res;
+		}
+		return buffer.array();
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern) {
+		outer:
+		for (int i=0; i<=data.length - pattern.length; i++) {
+			for (int j=0; j<pattern.length; j++) {
+				if (data[i + j]!=pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * A sequence of bytes that can be read in parts.
+	 */
+	private static interface ByteRange {
+		long length();
+
+		/**
+		 * @return The bytes from offset to offset + length, or null if they aren't valid
+		 */
+		byte[] read(long offset, int length) throws IOException;
+	}
+
+	private static class StoredRange implements ByteRange {
+		private final StoredContent stored;
+		private final long start;
+		private final long end;
+
+		StoredRange(StoredContent stored, long start, long end) {
+			this.stored = stored;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public long length() {
+			return end - start;
+		}
+
+		@Override
+		public byte[] read(long offset, int length) throws IOException {
+			byte[] res = readStored(stored, start + offset, length);
+			return res.length==length ? res : null;
+		}
+	}
+
+	/**
+	 * The data decoded from base64 text, mapping each range of decoded bytes to the (4 character) groups that encode it.
+	 */
+	private static class Base64Range implements ByteRange {
+		/** Enough to detect line breaks in wrapped base64 and escaped padding characters */
+		private static final int CHECKED_BYTES = 128;
+
+		private final ByteRange encoded;
+		private final long length;
+
+		private Base64Range(ByteRange encoded, long length) {
+			this.encoded = encoded;
+			this.length = length;
+		}
+
+		/**
+		 * @return The decoded data, or null if the text isn't unwrapped, padded base64 that can be decoded in parts
+		 */
+		static ByteRange decode(ByteRange encoded) throws IOException {
+			long encodedLength = encoded.length();
+			if (encodedLength % 4 != 0) {
+				return null;
+			}
+
+			int checked = (int) Math.min(CHECKED_BYTES, encodedLength);
+			byte[] head = encoded.read(0, checked);
+			byte[] tail = encoded.read(encodedLength - checked, checked);
+			if (head==null || tail==null || !isBase64(head) || !isBase64(tail)) {
+				return null;
+			}
+
+			int padding = 0;
+			for (int i=tail.length - 1; i>=0 && i>=tail.length - 2 && tail[i]=='='; i--) {
+				padding++;
+			}
+			return new Base64Range(encoded, encodedLength / 4 * 3 - padding);
+		}
+
+		private static boolean isBase64(byte[] data) {
+			for (byte b : data) {
+				if (b!='=' && !Base64.isBase64(b)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public long length() {
+			return length;
+		}
+
+		@Override
+		public byte[] read(long offset, int length) throws IOException {
+			long firstGroup = offset / 3;
+			long endGroup = (offset + length + 2) / 3;
+			byte[] text = encoded.read(firstGroup * 4, (int) ((endGroup - firstGroup) * 4));
+			if (text==null || !isBase64(text)) {
+				return null;
+			}
+
+			byte[] decoded = Base64.decodeBase64(text);
+			int start = (int) (offset - firstGroup * 3);
+			if (decoded.length < start + length) {
+				return null;
+			}
+			byte[] res = new byte[length];
+			System.arraycopy(decoded, start, res, 0, length);
+			return res;
+		}
+	}
+
+	public static String toJson(Content content) throws IOException {
+		StringWriter out = new StringWriter();
+		write(content, out);
+		return out.toString();
+	}
+
+	public static Content fromJson(String json) throws IOException {
+		return read(new StringReader(json));
+	}
+}
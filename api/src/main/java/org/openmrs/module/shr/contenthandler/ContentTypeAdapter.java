@@ -0,0 +1,254 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.Content.CompressionFormat;
+import org.openmrs.module.shr.contenthandler.api.Content.Representation;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A streaming Gson type adapter for {@link Content} objects.
+ * <p>
+ * The JSON layout matches the one produced by Gson's reflective serialization, except that the payload
+ * is written as a base64 string rather than as an array of integers. Both payload forms are accepted when reading,
+ * so that content saved with previous versions of the module can still be read.
+ */
+public class ContentTypeAdapter extends TypeAdapter<Content> {
+
+	static final String FIELD_CONTENT_ID = "contentId";
+	static final String FIELD_TYPE_CODE = "typeCode";
+	static final String FIELD_FORMAT_CODE = "formatCode";
+	static final String FIELD_CONTENT_TYPE = "contentType";
+	static final String FIELD_ENCODING = "encoding";
+	static final String FIELD_REPRESENTATION = "representation";
+	static final String FIELD_COMPRESSION_FORMAT = "compressionFormat";
+	static final String FIELD_LANGUAGE = "language";
+	static final String FIELD_PAYLOAD_IS_URL = "payloadIsUrl";
+	static final String FIELD_PAYLOAD = "payload";
+
+	private static final String FIELD_CODE = "code";
+	private static final String FIELD_CODING_SCHEME = "codingScheme";
+	private static final String FIELD_CODE_NAME = "codeName";
+
+	static final int MAX_LOCALES = 256;
+	private static final ConcurrentMap<String, Locale> locales = new ConcurrentHashMap<String, Locale>();
+
+
+	@Override
+	public void write(JsonWriter out, Content content) throws IOException {
+		if (content==null) {
+			out.nullValue();
+			return;
+		}
+
+		writeMetadata(out, content);
+		//the payload is written last so that readers can locate it after the (small) metadata
+		if (content.hasPayload()) {
+			out.name(FIELD_PAYLOAD).value(Base64.encodeBase64String(content.getPayload()));
+		}
+		out.endObject();
+	}
+
+	/**
+	 * Begins the content object and writes all fields except for the payload. The object is not ended.
+	 */
+	void writeMetadata(JsonWriter out, Content content) throws IOException {
+		out.beginObject();
+		writeString(out, FIELD_CONTENT_ID, content.getContentId());
+		writeCodedValue(out, FIELD_TYPE_CODE, content.getTypeCode());
+		writeCodedValue(out, FIELD_FORMAT_CODE, content.getFormatCode());
+		writeString(out, FIELD_CONTENT_TYPE, content.getContentType());
+		writeString(out, FIELD_ENCODING, content.getEncoding());
+		writeString(out, FIELD_REPRESENTATION, content.getRepresentation()!=null ? content.getRepresentation().name() : null);
+		writeString(out, FIELD_COMPRESSION_FORMAT, content.getCompressionFormat()!=null ? content.getCompressionFormat().name() : null);
+		writeString(out, FIELD_LANGUAGE, content.getLanguage()!=null ? content.getLanguage().toString() : null);
+		out.name(FIELD_PAYLOAD_IS_URL).value(content.payloadIsUrl());
+	}
+
+	private static void writeString(JsonWriter out, String name, String value) throws IOException {
+		if (value!=null) {
+			out.name(name).value(value);
+		}
+	}
+
+	private static void writeCodedValue(JsonWriter out, String name, CodedValue value) throws IOException {
+		if (value==null) {
+			return;
+		}
+
+		out.name(name).beginObject();
+		writeString(out, FIELD_CODE, value.getCode());
+		writeString(out, FIELD_CODING_SCHEME, value.getCodingScheme());
+		writeString(out, FIELD_CODE_NAME, value.getCodeName());
+		out.endObject();
+	}
+
+	@Override
+	public Content read(JsonReader in) throws IOException {
+		return read(in, false);
+	}
+
+	/**
+	 * Reads the content metadata only. Reading stops at the payload, which is the last field written
+	 * by both this adapter and previous versions of the module, so the payload is never read.
+	 * The returned content has a null payload and the reader is left positioned inside the object.
+	 */
+	Content readMetadata(JsonReader in) throws IOException {
+		return read(in, true);
+	}
+
+	private Content read(JsonReader in, boolean metadataOnly) throws IOException {
+		if (in.peek()==JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+
+		String contentId = null;
+		CodedValue typeCode = null;
+		CodedValue formatCode = null;
+		String contentType = null;
+		String encoding = null;
+		Representation representation = null;
+		CompressionFormat compressionFormat = null;
+		Locale language = null;
+		boolean payloadIsUrl = false;
+		byte[] payload = null;
+
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+
+			//peeking would make the reader buffer the payload value
+			if (metadataOnly && FIELD_PAYLOAD.equals(name)) {
+				break;
+			}
+			if (in.peek()==JsonToken.NULL) {
+				in.nextNull();
+			} else if (FIELD_CONTENT_ID.equals(name)) {
+				contentId = in.nextString();
+			} else if (FIELD_TYPE_CODE.equals(name)) {
+				typeCode = readCodedValue(in);
+			} else if (FIELD_FORMAT_CODE.equals(name)) {
+				formatCode = readCodedValue(in);
+			} else if (FIELD_CONTENT_TYPE.equals(name)) {
+				contentType = in.nextString();
+			} else if (FIELD_ENCODING.equals(name)) {
+				encoding = in.nextString();
+			} else if (FIELD_REPRESENTATION.equals(name)) {
+				representation = Representation.valueOf(in.nextString());
+			} else if (FIELD_COMPRESSION_FORMAT.equals(name)) {
+				compressionFormat = CompressionFormat.valueOf(in.nextString());
+			} else if (FIELD_LANGUAGE.equals(name)) {
+				language = parseLocale(in.nextString());
+			} else if (FIELD_PAYLOAD_IS_URL.equals(name)) {
+				payloadIsUrl = in.nextBoolean();
+			} else if (FIELD_PAYLOAD.equals(name)) {
+				if (in.peek()==JsonToken.STRING) {
+					payload = Base64.decodeBase64(in.nextString());
+				} else {
+					payload = readLegacyPayload(in);
+				}
+			} else {
+				in.skipValue();
+			}
+		}
+		if (!metadataOnly) {
+			in.endObject();
+		}
+
+		return new Content(contentId, payload, payloadIsUrl, typeCode, formatCode, contentType, encoding, representation, compressionFormat, language);
+	}
+
+	private static CodedValue readCodedValue(JsonReader in) throws IOException {
+		String code = null;
+		String codingScheme = null;
+		String codeName = null;
+
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+
+			if (in.peek()==JsonToken.NULL) {
+				in.nextNull();
+			} else if (FIELD_CODE.equals(name)) {
+				code = in.nextString();
+			} else if (FIELD_CODING_SCHEME.equals(name)) {
+				codingScheme = in.nextString();
+			} else if (FIELD_CODE_NAME.equals(name)) {
+				codeName = in.nextString();
+			} else {
+				in.skipValue();
+			}
+		}
+		in.endObject();
+
+		return CodedValue.valueOf(code, codingScheme, codeName);
+	}
+
+	/**
+	 * Reads a legacy payload written as an array of (signed) byte values.
+	 */
+	private static byte[] readLegacyPayload(JsonReader in) throws IOException {
+		if (in.peek()!=JsonToken.BEGIN_ARRAY) {
+			throw new JsonParseException("Unexpected payload token " + in.peek());
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		in.beginArray();
+		while (in.hasNext()) {
+			out.write(in.nextInt());
+		}
+		in.endArray();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Parses a locale in the format produced by {@link Locale#toString()}, e.g. en_ZA.
+	 * Parsed locales are shared, up to {@link #MAX_LOCALES} distinct values.
+	 */
+	static Locale parseLocale(String value) {
+		Locale res = locales.get(value);
+		if (res!=null) {
+			return res;
+		}
+		
+		String[] parts = value.split("_", 3);
+		if (parts.length==1) {
+			res = new Locale(parts[0]);
+		} else if (parts.length==2) {
+			res = new Locale(parts[0], parts[1]);
+		} else {
+			res = new Locale(parts[0], parts[1], parts[2]);
+		}
+		
+		if (locales.size() < MAX_LOCALES) {
+			locales.putIfAbsent(value, res);
+		}
+		return res;
+	}
+}
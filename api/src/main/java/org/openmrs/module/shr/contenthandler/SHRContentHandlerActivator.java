@@ -16,20 +16,36 @@ package org.openmrs.module.shr.contenthandler;
 
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.ModuleActivator;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler;
+import org.openmrs.obs.ComplexObsHandler;
 
 /**
  * This class contains the logic that is run every time this module is either started or stopped.
  */
-public class SHRContentHandlerActivator implements ModuleActivator {
+public class SHRContentHandlerActivator implements ModuleActivator, DaemonTokenAware {
 	
 	protected Log log = LogFactory.getLog(getClass());
+	
+	private DaemonToken daemonToken;
+	
+	/**
+	 * @see DaemonTokenAware#setDaemonToken(DaemonToken)
+	 */
+	public void setDaemonToken(DaemonToken token) {
+		this.daemonToken = token;
+	}
 		
 	/**
 	 * @see ModuleActivator#willRefreshContext()
 	 */
 	public void willRefreshContext() {
 		log.info("Refreshing SHR Content Handler Module");
+		closeContentStore();
 	}
 	
 	/**
@@ -44,6 +60,7 @@ public class SHRContentHandlerActivator implements ModuleActivator {
 	 */
 	public void willStart() {
 		log.info("Starting SHR Content Handler Module");
+		ContentHandlerWarmup.setReady(false);
 	}
 	
 	/**
@@ -51,6 +68,26 @@ public class SHRContentHandlerActivator implements ModuleActivator {
 	 */
 	public void started() {
 		log.info("SHR Content Handler Module started");
+		
+		final ContentHandlerWarmup warmup = new ContentHandlerWarmup();
+		Runnable startup = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ContentIdFilter.initialize();
+				} catch (Exception ex) {
+					//without the filter all fetches query the database, which is slower but correct
+					log.warn("Failed to build the content id filter", ex);
+				}
+				warmup.run();
+			}
+		};
+		
+		if (daemonToken!=null) {
+			Daemon.runInDaemonThread(startup, daemonToken);
+		} else {
+			startup.run();
+		}
 	}
 	
 	/**
@@ -58,6 +95,24 @@ public class SHRContentHandlerActivator implements ModuleActivator {
 	 */
 	public void willStop() {
 		log.info("Stopping SHR Content Handler Module");
+		ContentHandlerWarmup.setReady(false);
+		ContentIdFilter.persist();
+		ContentSearchIndex.shutdown();
+		closeContentStore();
+	}
+	
+	/**
+	 * The handler is recreated with the context, so its store must release its files first.
+	 */
+	private void closeContentStore() {
+		try {
+			ComplexObsHandler handler = Context.getObsService().getHandler("ContentObsHandler");
+			if (handler instanceof ContentObsHandler) {
+				((ContentObsHandler) handler).closeContentStore();
+			}
+		} catch (Exception ex) {
+			log.error("Unable to close the content store", ex);
+		}
 	}
 	
 	/**
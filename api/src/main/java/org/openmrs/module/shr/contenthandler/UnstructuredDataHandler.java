@@ -13,11 +13,14 @@
  */
 package org.openmrs.module.shr.contenthandler;
 
+import java.io.IOException;
 import java.util.*;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.document.Document;
 import org.openmrs.Concept;
+import org.openmrs.ConceptClass;
 import org.openmrs.ConceptComplex;
 import org.openmrs.ConceptDescription;
 import org.openmrs.ConceptName;
@@ -27,49 +30,264 @@ import org.openmrs.EncounterType;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.Provider;
+import org.openmrs.api.APIException;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.ObsService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.contenthandler.api.CodedValue;
 import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.ContentHandlerException;
+import org.openmrs.module.shr.contenthandler.api.ContentDescriptor;
+import org.openmrs.module.shr.contenthandler.api.ContentFilter;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+import org.openmrs.module.shr.contenthandler.api.ContentPage;
+import org.openmrs.module.shr.contenthandler.api.ListableContentHandler;
+import org.openmrs.module.shr.contenthandler.api.MetadataContentHandler;
+import org.openmrs.module.shr.contenthandler.api.MultiContentHandler;
+import org.openmrs.module.shr.contenthandler.api.RangeContentHandler;
+import org.openmrs.module.shr.contenthandler.api.db.ContentHandlerDAO;
+import org.openmrs.module.shr.contenthandler.metrics.CacheMetrics;
+import org.openmrs.module.shr.contenthandler.metrics.ContentHandlerMetrics;
+import org.openmrs.module.shr.contenthandler.metrics.Gauge;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler;
 import org.openmrs.obs.ComplexData;
+import org.openmrs.obs.ComplexObsHandler;
 import org.openmrs.util.OpenmrsConstants;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * A content handler for storing data as unstructured <i>blobs</i>.
  */
-public class UnstructuredDataHandler implements ContentHandler {
+public class UnstructuredDataHandler implements MultiContentHandler, MetadataContentHandler, ListableContentHandler, RangeContentHandler {
 	
 	protected final Log log = LogFactory.getLog(this.getClass());
 	
 	protected static final String UNSTRUCTURED_ATTACHMENT_CONCEPT_BASE_NAME = "Unstructured Attachment";
 	protected static final String UNSTRUCTURED_DATA_HANDLER_GLOBAL_PROP = "shr.contenthandler.unstructureddatahandler.key";
+	/**
+	 * The name of the module managed concept set containing all unstructured attachment concepts
+	 */
+	protected static final String UNSTRUCTURED_ATTACHMENTS_CONCEPT_SET_NAME = "Unstructured Attachments";
+	
+	private static final String METRICS_NAME = UnstructuredDataHandler.class.getName();
+	
+	protected static final String GP_IDEMPOTENT_SAVE = "shr.contenthandler.unstructureddatahandler.idempotentSave";
+	private static Boolean idempotentSave = null;
 	
 	/**
 	 * @see ContentHandler#saveContent(String, Patient, Provider, EncounterRole, EncounterType, Content)
 	 * @should create a new encounter object using the current time
 	 * @should contain a complex obs containing the content
+	 * @should return the existing encounter when replaying a save in idempotent mode
+	 * @should fail when saving a different payload with an existing content id in idempotent mode
 	 */
 	@Override
 	public Encounter saveContent(Patient patient, Map<EncounterRole, Set<Provider>> providersByRole, EncounterType encounterType, Content content) {
-		Encounter enc = createEncounter(patient, providersByRole, encounterType, content);
-		Context.getEncounterService().saveEncounter(enc);
-		return enc;
+		long start = System.nanoTime();
+		boolean success = false;
+		ContentIdLocks.Held locks = null;
+		try {
+			if (isIdempotentSave()) {
+				locks = ContentIdLocks.lock(Collections.singletonList(content.getContentId()));
+				Encounter existing = findExistingEncounter(content);
+				if (existing!=null) {
+					success = true;
+					return existing;
+				}
+			}
+			
+			Encounter enc = createEncounter(patient, providersByRole, encounterType, Collections.singletonList(content));
+			Context.getEncounterService().saveEncounter(enc);
+			indexContent(enc, Collections.singletonList(content));
+			success = true;
+			return enc;
+		} finally {
+			if (locks!=null) {
+				locks.releaseAfterCompletion();
+			}
+			ContentHandlerMetrics.getOperationMetrics(METRICS_NAME, ContentHandlerMetrics.OPERATION_SAVE).record(System.nanoTime() - start, success);
+		}
+	}
+	
+	/**
+	 * Saves all of the content items as complex obs of a single encounter, using a single call to saveEncounter.
+	 * 
+	 * @see MultiContentHandler#saveContent(Patient, Map, EncounterType, List)
+	 * @should create a single encounter containing a complex obs for each content item
+	 * @should fail if no content is specified
+	 */
+	@Override
+	public Encounter saveContent(Patient patient, Map<EncounterRole, Set<Provider>> providersByRole, EncounterType encounterType, List<Content> contents) {
+		if (contents==null || contents.isEmpty()) {
+			throw new IllegalArgumentException("At least one content item is required");
+		}
+		
+		long start = System.nanoTime();
+		boolean success = false;
+		ContentIdLocks.Held locks = null;
+		try {
+			if (isIdempotentSave()) {
+				List<String> contentIds = new ArrayList<String>(contents.size());
+				for (Content content : contents) {
+					contentIds.add(content.getContentId());
+				}
+				locks = ContentIdLocks.lock(contentIds);
+				Encounter existing = findExistingEncounter(contents);
+				if (existing!=null) {
+					success = true;
+					return existing;
+				}
+			}
+			
+			Encounter enc = createEncounter(patient, providersByRole, encounterType, contents);
+			Context.getEncounterService().saveEncounter(enc);
+			indexContent(enc, contents);
+			success = true;
+			return enc;
+		} finally {
+			if (locks!=null) {
+				locks.releaseAfterCompletion();
+			}
+			ContentHandlerMetrics.getOperationMetrics(METRICS_NAME, ContentHandlerMetrics.OPERATION_SAVE).record(System.nanoTime() - start, success);
+		}
+	}
+	
+	private static synchronized boolean isIdempotentSave() {
+		if (idempotentSave == null) {
+			idempotentSave = Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(GP_IDEMPOTENT_SAVE, "false").trim());
+		}
+		return idempotentSave;
+	}
+	
+	static synchronized void resetIdempotentSave() {
+		idempotentSave = null;
+	}
+	
+	/**
+	 * Adds the saved content to the {@link ContentSearchIndex}, if enabled, once the transaction has committed.
+	 * The text is extracted right away, so that the content isn't held on to until the commit.
+	 * Indexing failures are only logged, since the content itself has been saved.
+	 */
+	private void indexContent(Encounter enc, List<Content> contents) {
+		final ContentSearchIndex index;
+		final List<Document> docs = new ArrayList<Document>(contents.size());
+		try {
+			index = ContentSearchIndex.getInstance();
+			if (index==null) {
+				return;
+			}
+			
+			for (Content content : contents) {
+				Document doc = ContentSearchIndex.createDocument(content, enc.getPatient().getPatientId(), enc.getEncounterDatetime());
+				if (doc!=null) {
+					docs.add(doc);
+				}
+			}
+		} catch (IOException ex) {
+			log.error("Failed to index the content of encounter " + enc.getUuid(), ex);
+			return;
+		}
+		if (docs.isEmpty()) {
+			return;
+		}
+		
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (Document doc : docs) {
+						index.add(doc);
+					}
+				} catch (IOException ex) {
+					log.error("Failed to add content to the search index", ex);
+				}
+			}
+		};
+		
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					task.run();
+				}
+			});
+		} else {
+			task.run();
+		}
+	}
+	
+	/**
+	 * Returns the encounter of previously saved content with the same content id, or null if the content id hasn't been saved.
+	 * Costs a lookup in the content id filter and, if that isn't conclusive, an index probe on the accession number.
+	 * The payload of the saved content is only loaded if the content id has been saved before.
+	 * Callers must hold the {@link ContentIdLocks} lock of the content id until the save has been committed.
+	 * 
+	 * @throws APIException if the content id has been saved before with a different payload
+	 */
+	private Encounter findExistingEncounter(Content content) {
+		if (!ContentIdFilter.mightContain(content.getContentId())) {
+			return null;
+		}
+		
+		List<Obs> obsList = findContentObs(content.getContentId());
+		if (obsList.isEmpty()) {
+			return null;
+		}
+		
+		Obs obs = obsList.get(0);
+		Object data = obs.isComplex() ? getComplexData(Context.getObsService(), obs, OpenmrsConstants.TEXT_VIEW) : null;
+		Content existing = data instanceof ContentDescriptor ? getDescriptorContent((ContentDescriptor) data) : (Content) data;
+		if (existing==null || !OpenmrsUtil.nullSafeEquals(existing.getPayloadDigest(), content.getPayloadDigest())) {
+			throw new APIException("Content with id " + content.getContentId() + " has already been saved with a different payload");
+		}
+		
+		log.debug("Content " + content.getContentId() + " has already been saved (obsId = " + obs.getObsId() + ")");
+		return obs.getEncounter();
+	}
+	
+	/**
+	 * Returns the encounter of the previously saved content items if all of them have been saved before in the same encounter,
+	 * or null if none of them have been saved before.
+	 * 
+	 * @throws APIException if only some of the content items have been saved before, or if they were saved in different encounters
+	 */
+	private Encounter findExistingEncounter(List<Content> contents) {
+		Encounter res = null;
+		int found = 0;
+		for (Content content : contents) {
+			Encounter existing = findExistingEncounter(content);
+			if (existing!=null) {
+				if (res!=null && !res.equals(existing)) {
+					throw new APIException("The content items have already been saved in different encounters");
+				}
+				res = existing;
+				found++;
+			}
+		}
+		
+		if (found > 0 && found < contents.size()) {
+			throw new APIException("Only " + found + " of " + contents.size() + " content items have already been saved");
+		}
+		return res;
 	}
 	
 	/**
-	 * Create a new encounter object with a complex obs for storing the specified content. 
+	 * Create a new encounter object with a complex obs for storing each of the specified content items. 
 	 */
-	private Encounter createEncounter(Patient patient, Map<EncounterRole, Set<Provider>> providersByRole, EncounterType encounterType, Content content) {
+	private Encounter createEncounter(Patient patient, Map<EncounterRole, Set<Provider>> providersByRole, EncounterType encounterType, List<Content> contents) {
 		Encounter enc = new Encounter();
+		Date obsDatetime = new Date();
 		
 		enc.setEncounterType(encounterType);
-		Obs obs = createUnstructuredDataObs(content);
-		obs.setPerson(patient);
-		obs.setEncounter(enc);
-		enc.addObs(obs);
-		enc.setEncounterDatetime(obs.getObsDatetime());
+		for (Content content : contents) {
+			Obs obs = createUnstructuredDataObs(content, obsDatetime);
+			obs.setPerson(patient);
+			obs.setEncounter(enc);
+			enc.addObs(obs);
+		}
+		enc.setEncounterDatetime(obsDatetime);
 		enc.setPatient(patient);
 		
 		// Add all providers to encounter
@@ -83,14 +301,15 @@ public class UnstructuredDataHandler implements ContentHandler {
 		return enc;
 	}
 	
-	private Obs createUnstructuredDataObs(Content content) {
+	private Obs createUnstructuredDataObs(Content content, Date obsDatetime) {
 		Obs res = new Obs();
 		ComplexData cd = new ComplexData(content.getContentId(), content);
 		
 		res.setConcept(getUnstructuredAttachmentConcept(content.getFormatCode()));
 		res.setComplexData(cd);
-		res.setObsDatetime(new Date());
+		res.setObsDatetime(obsDatetime);
 		res.setAccessionNumber(content.getContentId());
+		ContentIdFilter.add(content.getContentId());
 		
 		return res;
 	}
@@ -98,33 +317,43 @@ public class UnstructuredDataHandler implements ContentHandler {
     private static final Map<String, Integer> conceptCache = Collections.synchronizedMap(new HashMap<String, Integer>());
     private static final String GP_CACHE_CONCEPTS_BY_NAME = "shr.contenthandler.cacheConceptsByName";
     private static Boolean cacheConceptsByName = null;
+    private static final CacheMetrics conceptCacheMetrics = ContentHandlerMetrics.registerCache("unstructuredAttachmentConcepts", new Gauge() {
+        @Override
+        public long getValue() {
+            return conceptCache.size();
+        }
+    });
 
-	private Concept getUnstructuredAttachmentConcept(CodedValue formatCode) {
-        synchronized (this) {
-            if (cacheConceptsByName == null) {
-                if (Context.getAdministrationService().getGlobalProperty(GP_CACHE_CONCEPTS_BY_NAME).equalsIgnoreCase("true")) {
-                    cacheConceptsByName = true;
-                } else {
-                    cacheConceptsByName = false;
-                }
+    private static synchronized boolean isCacheConceptsByName() {
+        if (cacheConceptsByName == null) {
+            if (Context.getAdministrationService().getGlobalProperty(GP_CACHE_CONCEPTS_BY_NAME).equalsIgnoreCase("true")) {
+                cacheConceptsByName = true;
+            } else {
+                cacheConceptsByName = false;
             }
         }
+        return cacheConceptsByName;
+    }
 
+	private Concept getUnstructuredAttachmentConcept(CodedValue formatCode) {
         ConceptService cs = Context.getConceptService();
         String conceptName = getUnstructuredAttachmentConceptName(formatCode);
 
-        if (cacheConceptsByName) {
+        if (isCacheConceptsByName()) {
             Integer conceptId = conceptCache.get(conceptName);
 
             if (conceptId != null) {
+                conceptCacheMetrics.hit();
                 return cs.getConcept(conceptId);
             }
+            conceptCacheMetrics.miss();
         }
 
 		Concept res = cs.getConceptByName(conceptName);
 		if (res == null) {
 			res = buildUnstructuredAttachmentConcept(conceptName);
 			res = cs.saveConcept(res);
+			addUnstructuredAttachmentConcept(res);
 		}
 
         if (cacheConceptsByName) {
@@ -134,6 +363,176 @@ public class UnstructuredDataHandler implements ContentHandler {
 		return res;
 	}
 	
+	/**
+	 * Loads all existing unstructured attachment concepts (including their names) and,
+	 * if enabled, adds them to the concept cache. Intended to be called during module warm-up,
+	 * so the attachment concept set isn't created if it doesn't exist yet.
+	 * 
+	 * @return The number of attachment concepts that were loaded
+	 */
+	static int preloadUnstructuredAttachmentConcepts() {
+		boolean cache = isCacheConceptsByName();
+		ConceptService cs = Context.getConceptService();
+		if (attachmentConceptIds == null && cs.getConceptByName(UNSTRUCTURED_ATTACHMENTS_CONCEPT_SET_NAME) == null) {
+			return 0;
+		}
+		Set<Integer> ids = getAttachmentConceptIds();
+		
+		if (cache) {
+			for (Integer id : ids) {
+				Concept c = cs.getConcept(id);
+				if (c!=null) {
+					conceptCache.put(c.getName().getName(), c.getConceptId());
+				}
+			}
+		}
+		
+		return ids.size();
+	}
+	
+	/**
+	 * Ids of the concepts in the attachment concept set. Loaded on first use; null if not loaded.
+	 * The set is never modified once published, additions replace it with a copy.
+	 */
+	private static volatile Set<Integer> attachmentConceptIds = null;
+	
+	/**
+	 * Key of the ids of the attachment concepts created in the current transaction
+	 */
+	private static final Object PENDING_ATTACHMENT_CONCEPT_IDS = new Object();
+	
+	/**
+	 * Returns the ids of all unstructured attachment concepts, as an immutable snapshot.
+	 * <p>
+	 * The ids are loaded from the module managed concept set on first use. If the set doesn't exist yet it's created,
+	 * and attachment concepts created by previous versions of the module are added to it by name.
+	 * Attachment concepts created in the current transaction are included, but only become visible to other
+	 * transactions once it has committed.
+	 * 
+	 * @should include attachment concepts created in the current transaction
+	 * @should not change previously returned ids when attachment concepts are added
+	 */
+	public static Set<Integer> getAttachmentConceptIds() {
+		Set<Integer> res = attachmentConceptIds;
+		if (res == null) {
+			res = loadAttachmentConceptIds();
+		}
+		
+		Set<Integer> pending = getPendingAttachmentConceptIds();
+		if (pending != null && !res.containsAll(pending)) {
+			Set<Integer> ids = new HashSet<Integer>(res);
+			ids.addAll(pending);
+			res = Collections.unmodifiableSet(ids);
+		}
+		return res;
+	}
+	
+	private static synchronized Set<Integer> loadAttachmentConceptIds() {
+		if (attachmentConceptIds == null) {
+			Concept set = getAttachmentConceptSet();
+			Set<Integer> ids = new HashSet<Integer>();
+			for (Concept member : set.getSetMembers()) {
+				ids.add(member.getConceptId());
+			}
+			attachmentConceptIds = Collections.unmodifiableSet(ids);
+		}
+		return attachmentConceptIds;
+	}
+	
+	/**
+	 * Publishes a copy of the loaded attachment concept ids that includes the given ids.
+	 */
+	private static synchronized void publishAttachmentConceptIds(Set<Integer> added) {
+		if (attachmentConceptIds != null) {
+			Set<Integer> ids = new HashSet<Integer>(attachmentConceptIds);
+			ids.addAll(added);
+			attachmentConceptIds = Collections.unmodifiableSet(ids);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Set<Integer> getPendingAttachmentConceptIds() {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		return (Set<Integer>) TransactionSynchronizationManager.getResource(PENDING_ATTACHMENT_CONCEPT_IDS);
+	}
+	
+	private static Concept getAttachmentConceptSet() {
+		ConceptService cs = Context.getConceptService();
+		Concept set = cs.getConceptByName(UNSTRUCTURED_ATTACHMENTS_CONCEPT_SET_NAME);
+		
+		if (set == null) {
+			set = buildAttachmentConceptSet();
+			for (Concept c : cs.getConceptsByName(UNSTRUCTURED_ATTACHMENT_CONCEPT_BASE_NAME)) {
+				if (c.isComplex() && c.getName().getName().startsWith(UNSTRUCTURED_ATTACHMENT_CONCEPT_BASE_NAME)) {
+					set.addSetMember(c);
+				}
+			}
+			set = cs.saveConcept(set);
+		}
+		
+		return set;
+	}
+	
+	private static Concept buildAttachmentConceptSet() {
+		ConceptService cs = Context.getConceptService();
+		Concept c = new Concept();
+		ConceptName cn = new ConceptName(UNSTRUCTURED_ATTACHMENTS_CONCEPT_SET_NAME, Locale.ENGLISH);
+		ConceptDescription cd = new ConceptDescription("Contains all unstructured data attachment concepts", Locale.ENGLISH);
+		
+		c.setFullySpecifiedName(cn);
+		c.setPreferredName(cn);
+		c.addDescription(cd);
+		c.setSet(true);
+		c.setDatatype(cs.getConceptDatatypeByName("N/A"));
+		ConceptClass conceptClass = cs.getConceptClassByName("ConvSet");
+		c.setConceptClass(conceptClass!=null ? conceptClass : cs.getConceptClassByName("Misc"));
+		
+		return c;
+	}
+	
+	/**
+	 * Adds a newly created attachment concept to the attachment concept set.
+	 */
+	private static synchronized void addUnstructuredAttachmentConcept(Concept concept) {
+		Concept set = getAttachmentConceptSet();
+		if (!set.getSetMembers().contains(concept)) {
+			set.addSetMember(concept);
+			Context.getConceptService().saveConcept(set);
+		}
+		
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			publishAttachmentConceptIds(Collections.singleton(concept.getConceptId()));
+			return;
+		}
+		
+		//the concept only becomes visible to other transactions once this one has committed
+		Set<Integer> pending = getPendingAttachmentConceptIds();
+		if (pending == null) {
+			final Set<Integer> ids = new HashSet<Integer>();
+			TransactionSynchronizationManager.bindResource(PENDING_ATTACHMENT_CONCEPT_IDS, ids);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					TransactionSynchronizationManager.unbindResourceIfPossible(PENDING_ATTACHMENT_CONCEPT_IDS);
+					if (status == STATUS_COMMITTED) {
+						publishAttachmentConceptIds(ids);
+					}
+				}
+			});
+			pending = ids;
+		}
+		pending.add(concept.getConceptId());
+	}
+	
+	/**
+	 * Clears the loaded attachment concept ids, forcing them to be reloaded from the concept set.
+	 */
+	static synchronized void resetAttachmentConceptIds() {
+		attachmentConceptIds = null;
+	}
+	
 	private static String getUnstructuredAttachmentConceptName(CodedValue formatCode) {
 		return String.format("%s (%s-%s)", UNSTRUCTURED_ATTACHMENT_CONCEPT_BASE_NAME, formatCode.getCodingScheme(), formatCode.getCode());
 	}
@@ -161,32 +560,259 @@ public class UnstructuredDataHandler implements ContentHandler {
 	 * @should return a Content object for the encounter if found
 	 * @should return null if the encounter doesn't contain an unstructured data obs
 	 * @should return null if the encounter isn't found
+	 * @should find content saved before and after the content id filter was built
+	 * @should return null for ids that are not in the content id filter
+	 * @should find content committed out of order once the content id filter has caught up
 	 */
 	@Override
 	public Content fetchContent(String contentId) {
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			Content res = findContent(contentId);
+			success = true;
+			return res;
+		} finally {
+			ContentHandlerMetrics.getOperationMetrics(METRICS_NAME, ContentHandlerMetrics.OPERATION_FETCH).record(System.nanoTime() - start, success);
+		}
+	}
+	
+	private Content findContent(String contentId) {
+		Object data = findComplexData(contentId, OpenmrsConstants.TEXT_VIEW);
+		if (data instanceof ContentDescriptor) {
+			//shouldn't happen for the text view, but be lenient towards obs handlers
+			return getDescriptorContent((ContentDescriptor) data);
+		}
+		return (Content) data;
+	}
+	
+	/**
+	 * Fetches the content metadata using the {@link ContentObsHandler#METADATA_VIEW}. If the obs handler doesn't support
+	 * the view and returns the full content, a descriptor is built from that content instead.
+	 * 
+	 * @see MetadataContentHandler#fetchContentDescriptor(String)
+	 * @should return a descriptor for the content if found
+	 * @should return null if the content isn't found
+	 */
+	@Override
+	public ContentDescriptor fetchContentDescriptor(String contentId) {
+		Object data = findComplexData(contentId, ContentObsHandler.METADATA_VIEW);
+		if (data instanceof Content) {
+			return ContentDescriptor.of((Content) data);
+		}
+		return (ContentDescriptor) data;
+	}
+	
+	/**
+	 * Reads the range through {@link ContentObsHandler#getContentRange(Obs, long, int)}, which only reads the part of the
+	 * stored content that covers the range where possible. Content saved with other obs handlers is fetched in full.
+	 * 
+	 * @see RangeContentHandler#fetchContentRange(String, long, int)
+	 * @should return the requested range of the content data
+	 * @should return the remaining data if the range extends past the end
+	 * @should return null if the content isn't found
+	 */
+	@Override
+	public byte[] fetchContentRange(String contentId, long offset, int length) {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("The offset and length may not be negative");
+		}
+		
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			byte[] res = findContentRange(contentId, offset, length);
+			success = true;
+			return res;
+		} finally {
+			ContentHandlerMetrics.getOperationMetrics(METRICS_NAME, ContentHandlerMetrics.OPERATION_FETCH_RANGE).record(System.nanoTime() - start, success);
+		}
+	}
+	
+	private byte[] findContentRange(String contentId, long offset, int length) {
+		if (!ContentIdFilter.mightContain(contentId)) {
+			return null;
+		}
+		
 		ObsService os = Context.getObsService();
-		// TODO update this to search by accession number, this can be done from OpenMRS 1.12
-		List<Obs> obsList = os.getObservations(null, null, null, null, null, null, null, null, null, null, null, false);
+		for (Obs obs : findContentObs(contentId)) {
+			if (!obs.isComplex()) {
+				continue;
+			}
+			
+			ConceptComplex concept = Context.getConceptService().getConceptComplex(obs.getConcept().getConceptId());
+			ComplexObsHandler handler = concept!=null ? os.getHandler(concept.getHandler()) : null;
+			if (handler instanceof ContentObsHandler) {
+				return ((ContentObsHandler) handler).getContentRange(obs, offset, length);
+			}
+			
+			Object data = getComplexData(os, obs, OpenmrsConstants.TEXT_VIEW);
+			if (data!=null) {
+				Content content = data instanceof ContentDescriptor ? getDescriptorContent((ContentDescriptor) data) : (Content) data;
+				return getRange(content, offset, length);
+			}
+		}
 		
-		for (Obs obs : obsList) {
-			if (obs.getAccessionNumber() != null && obs.getAccessionNumber().equals(contentId) && obs.isComplex() && isConceptAnUnstructuredDataType(obs.getConcept())) {
-				Obs complexObs = os.getComplexObs(obs.getObsId(), OpenmrsConstants.TEXT_VIEW);
-				Object data = complexObs.getComplexData()!=null ? complexObs.getComplexData().getData() : null;
-				
-				if (data==null || !(data instanceof Content)) {
-					log.warn("Unprocessable content found in unstructured data obs (obsId = " + obs.getId() + ")");
-					continue;
-				} else {
-					return (Content) data;
+		return null;
+	}
+	
+	private static byte[] getRange(Content content, long offset, int length) {
+		byte[] data;
+		try {
+			data = content.getDecodedPayload();
+		} catch (IOException ex) {
+			throw new APIException("Unable to decode content " + content.getContentId(), ex);
+		}
+		
+		if (offset >= data.length) {
+			return new byte[0];
+		}
+		byte[] res = new byte[(int) Math.min(length, data.length - offset)];
+		System.arraycopy(data, (int) offset, res, 0, res.length);
+		return res;
+	}
+	
+	private Content getDescriptorContent(ContentDescriptor descriptor) {
+		try {
+			return descriptor.getContent();
+		} catch (ContentHandlerException ex) {
+			throw new APIException(ex);
+		}
+	}
+	
+	/**
+	 * Finds the unstructured data obs for the content id and returns its complex data (a {@link Content} or
+	 * {@link ContentDescriptor}) as loaded in the specified view. Returns null if not found.
+	 */
+	private Object findComplexData(String contentId, String view) {
+		if (!ContentIdFilter.mightContain(contentId)) {
+			return null;
+		}
+		
+		ObsService os = Context.getObsService();
+		for (Obs obs : findContentObs(contentId)) {
+			if (obs.isComplex()) {
+				Object data = getComplexData(os, obs, view);
+				if (data!=null) {
+					return data;
 				}
 			}
 		}
 		
 		return null;
 	}
+	
+	private Object getComplexData(ObsService os, Obs obs, String view) {
+		Obs complexObs = os.getComplexObs(obs.getObsId(), view);
+		Object data = complexObs.getComplexData()!=null ? complexObs.getComplexData().getData() : null;
+		
+		if (data==null || !(data instanceof Content || data instanceof ContentDescriptor)) {
+			log.warn("Unprocessable content found in unstructured data obs (obsId = " + obs.getId() + ")");
+			return null;
+		}
+		return data;
+	}
+	
+	/**
+	 * Lists the unstructured data obs of the patient using a keyset paged query on the obs table.
+	 * The format code and date criteria are applied in the query; the other criteria are applied to the loaded metadata.
+	 * 
+	 * @see ListableContentHandler#listContent(Patient, ContentFilter, String, int)
+	 * @should list the content saved for a patient, most recent first
+	 * @should page through the content using the next page token
+	 * @should only list content matching the filter
+	 */
+	@Override
+	public ContentPage listContent(Patient patient, ContentFilter filter, String pageToken, int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("The page size must be at least 1");
+		}
+		if (filter==null) {
+			filter = new ContentFilter();
+		}
+		
+		Collection<Integer> conceptIds = getUnstructuredAttachmentConceptIds(filter.getFormatCode());
+		Date beforeDatetime = null;
+		Integer beforeObsId = null;
+		if (pageToken!=null) {
+			String[] parts = pageToken.split(":");
+			try {
+				beforeDatetime = new Date(Long.parseLong(parts[0]));
+				beforeObsId = Integer.valueOf(parts[1]);
+			} catch (RuntimeException ex) {
+				throw new IllegalArgumentException("Invalid page token: " + pageToken, ex);
+			}
+		}
+		
+		ContentHandlerDAO dao = getDao();
+		ObsService os = Context.getObsService();
+		List<ContentDescriptor> res = new ArrayList<ContentDescriptor>(pageSize);
+		
+		while (res.size() < pageSize) {
+			List<Obs> obsList = dao.getPatientObs(patient, conceptIds, filter.getFromDate(), filter.getToDate(), beforeDatetime, beforeObsId, pageSize);
+			
+			for (Obs obs : obsList) {
+				beforeDatetime = obs.getObsDatetime();
+				beforeObsId = obs.getObsId();
+				
+				Object data = getComplexData(os, obs, ContentObsHandler.METADATA_VIEW);
+				ContentDescriptor descriptor = data instanceof Content ? ContentDescriptor.of((Content) data) : (ContentDescriptor) data;
+				if (descriptor!=null && filter.matches(descriptor)) {
+					res.add(descriptor);
+					if (res.size()==pageSize) {
+						break;
+					}
+				}
+			}
+			
+			if (res.size() < pageSize && obsList.size() < pageSize) {
+				//no more obs
+				return new ContentPage(res, null);
+			}
+		}
+		
+		return new ContentPage(res, beforeDatetime.getTime() + ":" + beforeObsId);
+	}
+	
+	/**
+	 * Returns the ids of the unstructured attachment concepts, or only the one for the format code if specified.
+	 */
+	private static Collection<Integer> getUnstructuredAttachmentConceptIds(CodedValue formatCode) {
+		ConceptService cs = Context.getConceptService();
+		
+		if (formatCode!=null) {
+			Concept c = cs.getConceptByName(getUnstructuredAttachmentConceptName(formatCode));
+			return c!=null ? Collections.singleton(c.getConceptId()) : Collections.<Integer>emptySet();
+		}
+		
+		return getAttachmentConceptIds();
+	}
+	
+	/**
+	 * Returns the unstructured data obs with the content id as accession number, oldest first,
+	 * using an index probe rather than a scan.
+	 */
+	private static List<Obs> findContentObs(String contentId) {
+		Set<Integer> conceptIds = getAttachmentConceptIds();
+		if (conceptIds.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return getDao().getObsByAccessionNumber(contentId, new ArrayList<Integer>(conceptIds));
+	}
+	
+	private static ContentHandlerDAO getDao() {
+		return Context.getRegisteredComponent("shrContentHandlerDAO", ContentHandlerDAO.class);
+	}
 
-	private boolean isConceptAnUnstructuredDataType(Concept c) {
-		return c.getName().getName().startsWith(UNSTRUCTURED_ATTACHMENT_CONCEPT_BASE_NAME);
+	/**
+	 * Classifies the concept by id membership in the attachment concept set; the concept's names are not loaded.
+	 * 
+	 * @return true if the concept is an unstructured attachment concept
+	 * @should return true for concepts in the attachment concept set
+	 * @should return false for other concepts
+	 */
+	public static boolean isConceptAnUnstructuredDataType(Concept c) {
+		return c.getConceptId()!=null && getAttachmentConceptIds().contains(c.getConceptId());
 	}
 	
 	/**
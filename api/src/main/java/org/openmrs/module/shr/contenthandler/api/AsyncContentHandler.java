@@ -0,0 +1,51 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import org.openmrs.Encounter;
+import org.openmrs.EncounterRole;
+import org.openmrs.EncounterType;
+import org.openmrs.Patient;
+import org.openmrs.Provider;
+
+/**
+ * An asynchronous view of a {@link ContentHandler}. Save and fetch calls return immediately, so that callers can
+ * overlap the work of several handlers, e.g. when saving a submission set with documents of different types.
+ * <p>
+ * Failures of the underlying handler are reported by {@link Future#get()} as an
+ * {@link java.util.concurrent.ExecutionException} with the handler's exception as its cause.
+ * 
+ * @see ContentHandlerService#getAsyncContentHandler(ContentHandler)
+ */
+public interface AsyncContentHandler {
+
+	/**
+	 * @see ContentHandler#saveContent(Patient, Map, EncounterType, Content)
+	 */
+	Future<Encounter> saveContent(Patient patient, Map<EncounterRole, Set<Provider>> providersByRole, EncounterType encounterType, Content content);
+
+	/**
+	 * @see ContentHandler#fetchContent(String)
+	 */
+	Future<Content> fetchContent(String contentId);
+
+	/**
+	 * @return The synchronous handler that the calls are run on
+	 */
+	ContentHandler getContentHandler();
+}
@@ -14,13 +14,30 @@
 package org.openmrs.module.shr.contenthandler.api;
 
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+/**
+ * A code from a coding scheme, e.g. a LOINC document type code.
+ * <p>
+ * Content repeats the same few type and format codes, so instances can be shared through an interning pool,
+ * see {@link #valueOf(String, String, String)} and {@link #intern(CodedValue)}. Pooled instances are weakly
+ * referenced and the pool is bounded, so an unexpected variety of codes doesn't grow it indefinitely.
+ */
 public final class CodedValue implements Comparable<CodedValue>, Serializable {
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 0L;
 	
+	/**
+	 * The maximum number of pooled instances. Codes are no longer pooled once it's reached.
+	 */
+	static final int MAX_POOL_SIZE = 4096;
+	
+	private static final Map<CodedValue, WeakReference<CodedValue>> pool = new WeakHashMap<CodedValue, WeakReference<CodedValue>>();
+	
 	
 	private final String code;
 	private final String codingScheme;
@@ -40,6 +57,66 @@ public final class CodedValue implements Comparable<CodedValue>, Serializable {
 		this.codeName = codeName;
 	}
 
+	/**
+	 * Returns a pooled coded value.
+	 * 
+	 * @see #intern(CodedValue)
+	 */
+	public static CodedValue valueOf(String code, String codingScheme) {
+		return valueOf(code, codingScheme, null);
+	}
+	
+	/**
+	 * Returns a pooled coded value.
+	 * 
+	 * @see #intern(CodedValue)
+	 */
+	public static CodedValue valueOf(String code, String codingScheme, String codeName) {
+		return intern(new CodedValue(code, codingScheme, codeName));
+	}
+	
+	/**
+	 * Returns the pooled instance with the same code, coding scheme and code name as the given value,
+	 * adding the value to the pool if there is none yet.
+	 * <p>
+	 * The value itself is returned if the pool is full, or if the pooled instance has a different code name
+	 * (the code name isn't considered by {@link #equals(Object)}).
+	 * 
+	 * @should return the same instance for equal values
+	 * @should not share instances with a different code name
+	 * @should return null for null
+	 * @should also apply to deserialized values
+	 */
+	public static CodedValue intern(CodedValue value) {
+		if (value==null) {
+			return null;
+		}
+		
+		synchronized (pool) {
+			WeakReference<CodedValue> ref = pool.get(value);
+			CodedValue pooled = ref!=null ? ref.get() : null;
+			
+			if (pooled==null) {
+				if (pool.size() < MAX_POOL_SIZE) {
+					pool.put(value, new WeakReference<CodedValue>(value));
+				}
+				return value;
+			}
+			
+			if (pooled.codeName==null ? value.codeName==null : pooled.codeName.equals(value.codeName)) {
+				return pooled;
+			}
+			return value;
+		}
+	}
+	
+	/**
+	 * Deserialized values are interned as well
+	 */
+	private Object readResolve() {
+		return intern(this);
+	}
+
 	public String getCode() {
 		return code;
 	}
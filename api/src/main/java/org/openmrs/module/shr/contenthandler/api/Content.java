@@ -15,7 +15,15 @@ package org.openmrs.module.shr.contenthandler.api;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.Locale;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
 
 import org.openmrs.module.shr.contenthandler.DataUtil;
 
@@ -56,26 +64,103 @@ public final class Content implements Comparable<Content>, Serializable {
 	public static enum CompressionFormat {
 		/**
 		 * Deflate (RFC 1951)
+		 * <p>
+		 * There is no HTTP content coding for raw deflate data (the HTTP deflate coding is ZLib)
 		 */
-		DF,
+		DF(null),
 		/**
 		 * GZip (RFC 1952)
 		 */
-		GZ,
+		GZ("gzip"),
 		/**
 		 * ZLib (RFC 1950)
 		 */
-		ZL,
+		ZL("deflate"),
 		//Since Compress (Z) is deprecated by HL7, we won't implement support for it
 		//(Note that only the Deflate algorithm is actually required to be implemented)
 		/**
 		 * Compress
 		 * <p>
-		 * Not supported in {@link Content#getRawData()}
+		 * Not supported in {@link Content#getDecodedPayload()}, but can be passed through to clients that accept it
 		 * 
 		 * @deprecated
 		 */
-		Z
+		Z("compress");
+		
+		private final String contentCoding;
+		
+		private CompressionFormat(String contentCoding) {
+			this.contentCoding = contentCoding;
+		}
+		
+		/**
+		 * @return The HTTP content coding (RFC 7231) of the format, or null if there is none
+		 */
+		public String getContentCoding() {
+			return contentCoding;
+		}
+		
+		/**
+		 * Parses an HTTP Accept-Encoding header value into the compression formats that it accepts.
+		 * Codings with a quality value of zero are excluded and a wildcard accepts all formats that have a content coding
+		 * and aren't named explicitly elsewhere in the header.
+		 * 
+		 * @param acceptEncoding The header value, may be null
+		 * @should exclude codings with a zero quality value
+		 * @should not let a wildcard override an explicitly rejected coding
+		 */
+		public static Set<CompressionFormat> fromAcceptEncoding(String acceptEncoding) {
+			Set<CompressionFormat> res = EnumSet.noneOf(CompressionFormat.class);
+			if (acceptEncoding==null) {
+				return res;
+			}
+			
+			//a wildcard only applies to codings that aren't explicitly listed (RFC 7231 section 5.3.4)
+			Set<CompressionFormat> listed = EnumSet.noneOf(CompressionFormat.class);
+			boolean wildcard = false;
+			for (String coding : acceptEncoding.split(",")) {
+				String[] parts = coding.split(";");
+				String name = parts[0].trim().toLowerCase();
+				if (name.startsWith("x-")) {
+					name = name.substring(2);
+				}
+				boolean accepted = parts.length < 2 || !isZeroQuality(parts[1]);
+				
+				if (name.equals("*")) {
+					wildcard = accepted;
+					continue;
+				}
+				for (CompressionFormat format : values()) {
+					if (name.equals(format.contentCoding)) {
+						listed.add(format);
+						if (accepted) {
+							res.add(format);
+						}
+					}
+				}
+			}
+			
+			if (wildcard) {
+				for (CompressionFormat format : values()) {
+					if (format.contentCoding!=null && !listed.contains(format)) {
+						res.add(format);
+					}
+				}
+			}
+			return res;
+		}
+		
+		private static boolean isZeroQuality(String param) {
+			String[] parts = param.split("=");
+			if (parts.length!=2 || !parts[0].trim().equalsIgnoreCase("q")) {
+				return false;
+			}
+			try {
+				return Double.parseDouble(parts[1].trim()) == 0;
+			} catch (NumberFormatException ex) {
+				return false;
+			}
+		}
 	}
 	
 	private final String contentId;
@@ -88,6 +173,7 @@ public final class Content implements Comparable<Content>, Serializable {
 	private final Locale language;
 	private final boolean payloadIsUrl;
 	private final byte[] payload;
+	private transient volatile String payloadDigest = null;
 	
 
 	/**
@@ -116,8 +202,8 @@ public final class Content implements Comparable<Content>, Serializable {
 	public Content(String contentId, byte[] payload, boolean payloadIsUrl, CodedValue typeCode, CodedValue formatCode, String contentType, String encoding, Representation representation, CompressionFormat compressionFormat, Locale language) {
 		this.contentId = contentId;
 		this.payload = payload;
-		this.typeCode = typeCode;
-		this.formatCode = formatCode;
+		this.typeCode = CodedValue.intern(typeCode);
+		this.formatCode = CodedValue.intern(formatCode);
 		this.contentType = contentType;
 		this.encoding = encoding;
 		this.representation = representation;
@@ -186,6 +272,97 @@ public final class Content implements Comparable<Content>, Serializable {
 		return payload;
 	}
 	
+	/**
+	 * Returns a read-only view of the payload, or null if there is no payload.
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		return payload!=null ? ByteBuffer.wrap(payload).asReadOnlyBuffer() : null;
+	}
+	
+	public boolean hasPayload() {
+		return payload!=null;
+	}
+	
+	/**
+	 * @return The size of the payload in bytes
+	 */
+	public int getPayloadLength() {
+		return payload!=null ? payload.length : 0;
+	}
+	
+	/**
+	 * Returns the payload in the form requested by a client that accepts the specified compression formats.
+	 * <p>
+	 * If the content is compressed with one of the accepted formats, the compressed data is returned as is (only the
+	 * base64 encoding is removed), so that it can be passed through to the client without decompressing and recompressing it.
+	 * Otherwise the decompressed data is returned. URL payloads are fetched from the URL.
+	 * 
+	 * @param acceptedFormats The compression formats that the caller can handle, e.g. from {@link CompressionFormat#fromAcceptEncoding(String)}
+	 * @throws IOException if the payload can't be fetched or decompressed
+	 * @should return compressed data as is if the compression format is accepted
+	 * @should decompress the data if the compression format is not accepted
+	 * @should decode base64 data that is not compressed
+	 */
+	public EncodedPayload getEncodedPayload(Collection<CompressionFormat> acceptedFormats) throws IOException {
+		byte[] data;
+		if (payloadIsUrl) {
+			data = DataUtil.fetchPayloadFromURL(new String(getPayload()));
+		} else {
+			data = getPayload();
+		}
+		
+		if (representation==Representation.B64 && !payloadIsUrl) {
+			data = DataUtil.decodeBase64(data);
+		}
+		
+		if (compressionFormat==null || acceptedFormats.contains(compressionFormat)) {
+			return new EncodedPayload(data, compressionFormat);
+		}
+		
+		switch (compressionFormat) {
+			case DF:
+				return new EncodedPayload(DataUtil.uncompressDeflate(data), null);
+			case GZ:
+				return new EncodedPayload(DataUtil.uncompressGZip(data), null);
+			case ZL:
+				return new EncodedPayload(DataUtil.uncompressZLib(data), null);
+			default:
+				throw new IOException("Unsupported compression format " + compressionFormat + " (content " + contentId + ")");
+		}
+	}
+	
+	/**
+	 * Returns the payload data, decoded and decompressed.
+	 * 
+	 * @see #getEncodedPayload(Collection)
+	 */
+	public byte[] getDecodedPayload() throws IOException {
+		return getEncodedPayload(EnumSet.noneOf(CompressionFormat.class)).getData();
+	}
+	
+	/**
+	 * Returns the hex encoded SHA-256 digest of the payload, or null if there is no payload.
+	 * The digest is calculated on first use and cached.
+	 * 
+	 * @should return the same digest for equal payloads
+	 * @should return a different digest for different payloads
+	 */
+	public String getPayloadDigest() {
+		String res = payloadDigest;
+		if (res==null && hasPayload()) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				digest.update(getPayloadBuffer());
+				res = Hex.encodeHexString(digest.digest());
+				payloadDigest = res;
+			} catch (NoSuchAlgorithmException ex) {
+				//every Java platform is required to support SHA-256
+				throw new IllegalStateException(ex);
+			}
+		}
+		return res;
+	}
+	
 	/**
 	 * Two Content objects are considered equal if their IDs are equal.
 	 */
@@ -201,4 +378,12 @@ public final class Content implements Comparable<Content>, Serializable {
 	public boolean equals(Object obj) {
 		return obj!=null && (obj instanceof Content) && compareTo((Content)obj)==0;
 	}
+	
+	/**
+	 * Consistent with {@link #equals(Object)}, i.e. based on the content ID only.
+	 */
+	@Override
+	public int hashCode() {
+		return contentId!=null ? contentId.hashCode() : 0;
+	}
 }
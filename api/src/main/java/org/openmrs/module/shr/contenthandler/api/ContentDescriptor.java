@@ -0,0 +1,125 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api;
+
+import java.util.Locale;
+
+import org.openmrs.module.shr.contenthandler.api.Content.CompressionFormat;
+import org.openmrs.module.shr.contenthandler.api.Content.Representation;
+
+/**
+ * The metadata of a {@link Content} object, without its payload.
+ * <p>
+ * The payload is only loaded when {@link #getContent()} is first called, so descriptors can be used
+ * for listings and metadata queries without reading the stored content.
+ */
+public final class ContentDescriptor {
+
+	/**
+	 * Loads the full content (including the payload) that a descriptor describes.
+	 */
+	public static interface ContentLoader {
+		Content load() throws ContentHandlerException;
+	}
+
+	private final Content metadata;
+	private final ContentLoader loader;
+	private Content content;
+
+
+	/**
+	 * @param metadata A content object containing the metadata. The payload, if any, is ignored.
+	 * @param loader Used for loading the full content on demand
+	 */
+	public ContentDescriptor(Content metadata, ContentLoader loader) {
+		this.metadata = metadata;
+		this.loader = loader;
+	}
+
+	/**
+	 * Creates a descriptor for content that has already been loaded.
+	 */
+	public static ContentDescriptor of(Content content) {
+		ContentDescriptor res = new ContentDescriptor(content, null);
+		res.content = content;
+		return res;
+	}
+
+	public String getContentId() {
+		return metadata.getContentId();
+	}
+
+	public CodedValue getTypeCode() {
+		return metadata.getTypeCode();
+	}
+
+	public CodedValue getFormatCode() {
+		return metadata.getFormatCode();
+	}
+
+	public String getContentType() {
+		return metadata.getContentType();
+	}
+
+	/**
+	 * Can be null
+	 */
+	public String getEncoding() {
+		return metadata.getEncoding();
+	}
+
+	public Representation getRepresentation() {
+		return metadata.getRepresentation();
+	}
+
+	/**
+	 * Can be null
+	 */
+	public CompressionFormat getCompressionFormat() {
+		return metadata.getCompressionFormat();
+	}
+
+	/**
+	 * Can be null
+	 */
+	public Locale getLanguage() {
+		return metadata.getLanguage();
+	}
+
+	public boolean payloadIsUrl() {
+		return metadata.payloadIsUrl();
+	}
+
+	/**
+	 * @return true if the full content has already been loaded
+	 */
+	public synchronized boolean isLoaded() {
+		return content!=null;
+	}
+
+	/**
+	 * Returns the full content, loading it the first time this method is called.
+	 */
+	public synchronized Content getContent() throws ContentHandlerException {
+		if (content==null) {
+			content = loader.load();
+		}
+		return content;
+	}
+
+	@Override
+	public String toString() {
+		return "ContentDescriptor [contentId=" + getContentId() + ", contentType=" + getContentType() + "]";
+	}
+}
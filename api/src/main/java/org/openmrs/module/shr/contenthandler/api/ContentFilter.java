@@ -0,0 +1,98 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api;
+
+import java.util.Date;
+
+/**
+ * Criteria for listing content. All criteria are optional; criteria that are null are ignored.
+ */
+public class ContentFilter {
+
+	private CodedValue typeCode;
+	private CodedValue formatCode;
+	private String contentType;
+	private Date fromDate;
+	private Date toDate;
+
+
+	public ContentFilter() {}
+
+	public CodedValue getTypeCode() {
+		return typeCode;
+	}
+
+	public ContentFilter setTypeCode(CodedValue typeCode) {
+		this.typeCode = typeCode;
+		return this;
+	}
+
+	public CodedValue getFormatCode() {
+		return formatCode;
+	}
+
+	public ContentFilter setFormatCode(CodedValue formatCode) {
+		this.formatCode = formatCode;
+		return this;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public ContentFilter setContentType(String contentType) {
+		this.contentType = contentType;
+		return this;
+	}
+
+	/**
+	 * Only list content saved on or after this date
+	 */
+	public Date getFromDate() {
+		return fromDate;
+	}
+
+	public ContentFilter setFromDate(Date fromDate) {
+		this.fromDate = fromDate;
+		return this;
+	}
+
+	/**
+	 * Only list content saved on or before this date
+	 */
+	public Date getToDate() {
+		return toDate;
+	}
+
+	public ContentFilter setToDate(Date toDate) {
+		this.toDate = toDate;
+		return this;
+	}
+
+	/**
+	 * @return true if the content descriptor matches the type code and content type criteria
+	 */
+	public boolean matches(ContentDescriptor descriptor) {
+		if (typeCode!=null && !typeCode.equals(descriptor.getTypeCode())) {
+			return false;
+		}
+		if (formatCode!=null && !formatCode.equals(descriptor.getFormatCode())) {
+			return false;
+		}
+		if (contentType!=null && !contentType.equals(descriptor.getContentType())) {
+			return false;
+		}
+		return true;
+	}
+}
@@ -13,7 +13,14 @@
  */
 package org.openmrs.module.shr.contenthandler.api;
 
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.Patient;
+import org.openmrs.annotation.Authorized;
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.util.PrivilegeConstants;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -37,6 +44,10 @@ public interface ContentHandlerService extends OpenmrsService {
 	 * @should Get an appropriate content handler for a specified content type
 	 * @should Return a clone of the requested handler using the handler's cloneHandler method
 	 * @should Return null for an unknown content type
+	 * @should Reject calls over the bulkhead limit if bulkheads are enabled
+	 * @should Admit calls that get a place in the bulkhead within the maximum wait if bulkheads are enabled
+	 * @should Run calls on the calling thread with the interfaces of the registered handler if bulkheads are enabled
+	 * @should Return a handler that implements the interfaces of the registered handler if instrumentation is enabled
 	 */
 	ContentHandler getContentHandler(String contentType);
  
@@ -126,12 +137,93 @@ public interface ContentHandlerService extends OpenmrsService {
 	
 	/**
 	 * Fetches a registered content handler that is of the given class type.
+	 * <p>
+	 * A handler registered with exactly the given class is preferred, otherwise a handler
+	 * that extends or implements the given type is returned.
 	 * 
 	 * @param documentHandlerClass
 	 * @return
 	 * @should return a content handler for the given class
+	 * @should return a content handler for a superclass or interface of the registered class
 	 * @should return the null if no content handler was found
+	 * @should return null once the handler has been deregistered
+	 * @should return a handler that can be cast to the given class if instrumentation is enabled
 	 */
 	ContentHandler getContentHandlerByClass(Class<? extends ContentHandler> documentHandlerClass);
 	
+	/**
+	 * Fetches content without knowing which handler stored it.
+	 * <p>
+	 * All distinct registered handlers, including the default unstructured data handler, are queried
+	 * concurrently. The first non-null content returned is used and the remaining lookups are cancelled.
+	 * Failures of individual handlers are logged and otherwise ignored.
+	 * 
+	 * @param contentId The unique id of the content
+	 * @return The content, or null if none of the handlers could find it
+	 * @should return the content found by any of the registered handlers
+	 * @should return null if none of the handlers find the content
+	 * @should ignore handlers that fail
+	 */
+	@Transactional(readOnly = true)
+	Content fetchContentAnyHandler(String contentId);
+	
+	/**
+	 * Returns an asynchronous view of a content handler, e.g. one returned by {@link #getContentHandler(String)}.
+	 * The handler's calls are run on a shared executor, which is a bounded thread pool or, on JVMs that support it,
+	 * a virtual thread per call, as configured with the {@code shr.contenthandler.async.executor} global property.
+	 * 
+	 * @param handler The handler to run calls on
+	 * @should run save and fetch calls on the handler
+	 * @should report failures of the handler through the future
+	 */
+	AsyncContentHandler getAsyncContentHandler(ContentHandler handler);
+	
+	/**
+	 * List the content stored for a patient by the default unstructured data handler, most recent first.
+	 * Only metadata is loaded.
+	 * 
+	 * @see ListableContentHandler#listContent(Patient, ContentFilter, String, int)
+	 * @throws UnsupportedOperationException if the default unstructured data handler doesn't support listing
+	 */
+	@Authorized(PrivilegeConstants.VIEW_OBS)
+	@Transactional(readOnly = true)
+	ContentPage listContent(Patient patient, ContentFilter filter, String pageToken, int pageSize) throws ContentHandlerException;
+	
+	/**
+	 * Searches the text of the content saved by the unstructured data handler, most relevant first.
+	 * Requires the full-text index to be enabled with the {@code shr.contenthandler.search.enabled} global property.
+	 * Content whose obs have been voided or purged isn't returned.
+	 * 
+	 * @param query A query in the Lucene query syntax, e.g. <i>pneumonia AND discharge</i>
+	 * @param patient (Nullable) Only return content of this patient
+	 * @param formatCode (Nullable) Only return content with this format code
+	 * @param fromDate (Nullable) Only return content with an encounter date on or after this date
+	 * @param toDate (Nullable) Only return content with an encounter date on or before this date
+	 * @param maxResults The maximum number of content ids to return
+	 * @return The ids of the matching content, which can be fetched with {@link #fetchContentAnyHandler(String)}
+	 * @throws ContentHandlerException if the query is invalid or the index can't be read
+	 * @throws UnsupportedOperationException if the full-text index is disabled
+	 * @should return the ids of the matching content of the patient
+	 * @should not return content whose obs have been voided
+	 * @should throw a ContentHandlerException for an invalid query
+	 */
+	@Authorized(PrivilegeConstants.VIEW_OBS)
+	@Transactional(readOnly = true)
+	List<String> searchContent(String query, Patient patient, CodedValue formatCode, Date fromDate, Date toDate, int maxResults) throws ContentHandlerException;
+	
+	/**
+	 * Returns the class names of the registered handlers mapped by the content type they are registered for.
+	 * 
+	 * @should return the registered handlers mapped by content type
+	 */
+	Map<String, String> getRegisteredContentTypeHandlers();
+	
+	/**
+	 * Returns the class names of the registered handlers mapped by the type and format code they are registered for.
+	 * The keys are formatted as {@code typeCodingScheme:typeCode formatCodingScheme:formatCode}.
+	 * 
+	 * @should return the registered handlers mapped by type and format code
+	 */
+	Map<String, String> getRegisteredTypeFormatCodeHandlers();
+	
 }
@@ -0,0 +1,50 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api;
+
+import java.util.List;
+
+/**
+ * A page of content descriptors returned by a content listing.
+ * <p>
+ * Listings use keyset pagination: pass the {@link #getNextPageToken() next page token} to the listing method to
+ * continue after the last item of this page. Unlike offset based paging, fetching a page doesn't get slower
+ * the further the listing progresses.
+ */
+public class ContentPage {
+
+	private final List<ContentDescriptor> content;
+	private final String nextPageToken;
+
+
+	public ContentPage(List<ContentDescriptor> content, String nextPageToken) {
+		this.content = content;
+		this.nextPageToken = nextPageToken;
+	}
+
+	public List<ContentDescriptor> getContent() {
+		return content;
+	}
+
+	/**
+	 * @return The token for fetching the next page, or null if this is the last page
+	 */
+	public String getNextPageToken() {
+		return nextPageToken;
+	}
+
+	public boolean hasNextPage() {
+		return nextPageToken!=null;
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api;
+
+import org.openmrs.module.shr.contenthandler.api.Content.CompressionFormat;
+
+/**
+ * The data of a content payload, either decompressed or still compressed in its stored compression format.
+ * 
+ * @see Content#getEncodedPayload(java.util.Collection)
+ */
+public final class EncodedPayload {
+
+	private final byte[] data;
+	private final CompressionFormat compressionFormat;
+
+
+	public EncodedPayload(byte[] data, CompressionFormat compressionFormat) {
+		this.data = data;
+		this.compressionFormat = compressionFormat;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return The compression format of the data, or null if the data isn't compressed
+	 */
+	public CompressionFormat getCompressionFormat() {
+		return compressionFormat;
+	}
+
+	public boolean isCompressed() {
+		return compressionFormat!=null;
+	}
+
+	/**
+	 * @return The value for an HTTP Content-Encoding header, or null if the data isn't compressed
+	 */
+	public String getContentEncoding() {
+		return compressionFormat!=null ? compressionFormat.getContentCoding() : null;
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api;
+
+import org.openmrs.Patient;
+
+/**
+ * A content handler that can list the content stored for a patient.
+ * 
+ * @see ContentHandlerService#listContent(Patient, ContentFilter, String, int)
+ */
+public interface ListableContentHandler extends ContentHandler {
+
+	/**
+	 * List the content stored for a patient, most recent first. Only metadata is loaded;
+	 * the payload of an item is loaded by {@link ContentDescriptor#getContent()}.
+	 * 
+	 * @param patient The patient
+	 * @param filter (Nullable) Criteria that listed content must match
+	 * @param pageToken (Nullable) The token of the page to fetch, as returned by {@link ContentPage#getNextPageToken()}.
+	 * If null, the first page is returned.
+	 * @param pageSize The maximum number of items to return
+	 * @return A page of content descriptors
+	 */
+	ContentPage listContent(Patient patient, ContentFilter filter, String pageToken, int pageSize) throws ContentHandlerException;
+}
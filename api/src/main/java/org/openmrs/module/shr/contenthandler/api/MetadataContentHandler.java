@@ -0,0 +1,32 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api;
+
+/**
+ * A content handler that can retrieve the metadata of stored content without loading its payload.
+ * <p>
+ * Callers should check whether a handler implements this interface and otherwise fall back to
+ * {@link ContentHandler#fetchContent(String)}.
+ */
+public interface MetadataContentHandler extends ContentHandler {
+
+	/**
+	 * Retrieve the metadata of the content associated with the specified id.
+	 * The payload is loaded lazily by {@link ContentDescriptor#getContent()}.
+	 * 
+	 * @param contentId The unique content identifier that was used to save the content
+	 * @return A descriptor for the content, or null if not found
+	 */
+	ContentDescriptor fetchContentDescriptor(String contentId) throws ContentHandlerException;
+}
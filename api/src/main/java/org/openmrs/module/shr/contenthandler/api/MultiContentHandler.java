@@ -0,0 +1,45 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.Encounter;
+import org.openmrs.EncounterRole;
+import org.openmrs.EncounterType;
+import org.openmrs.Patient;
+import org.openmrs.Provider;
+
+/**
+ * A content handler that can store several content items, e.g. the documents of a single submission set,
+ * as part of one encounter.
+ * <p>
+ * Callers should check whether a handler implements this interface and otherwise fall back to saving
+ * each item with {@link ContentHandler#saveContent(Patient, Map, EncounterType, Content)}.
+ */
+public interface MultiContentHandler extends ContentHandler {
+
+	/**
+	 * Parse and store a group of content items for the specified patient in a single encounter.
+	 * 
+	 * @param patient The patient associated with the content
+	 * @param providersByRole The clinical providers associated with all of the content mapped by their role
+	 * @param encounterType The encounter type
+	 * @param contents The content items to store
+	 * @return The created and saved encounter object
+	 */
+	Encounter saveContent(Patient patient, Map<EncounterRole, Set<Provider>> providersByRole, EncounterType encounterType, List<Content> contents) throws ContentHandlerException;
+}
@@ -0,0 +1,36 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api;
+
+/**
+ * A content handler that can retrieve a byte range of the data of stored content, e.g. for viewers of large documents
+ * that request the document in parts.
+ * <p>
+ * Callers should check whether a handler implements this interface and otherwise fall back to
+ * {@link ContentHandler#fetchContent(String)}.
+ */
+public interface RangeContentHandler extends ContentHandler {
+
+	/**
+	 * Retrieve a byte range of the data of the content associated with the specified id. The data is the payload with
+	 * any base64 encoding and compression removed, as returned by {@link Content#getDecodedPayload()}.
+	 * 
+	 * @param contentId The unique content identifier that was used to save the content
+	 * @param offset The offset of the first byte to return
+	 * @param length The maximum number of bytes to return
+	 * @return The bytes in the range, fewer than length if the range extends past the end of the data,
+	 * or null if the content isn't found
+	 */
+	byte[] fetchContentRange(String contentId, long offset, int length) throws ContentHandlerException;
+}
@@ -0,0 +1,116 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api.db;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Database methods for {@link ContentHandlerService} and the module's scheduler tasks.
+ * <p>
+ * The methods that aren't exposed through the service are internal to the module. The DAO is
+ * registered as the {@code shrContentHandlerDAO} bean, in its own transactional proxy.
+ */
+@Transactional
+public interface ContentHandlerDAO {
+
+	/**
+	 * Fetches the value_complex of obs whose concept uses the specified complex obs handler,
+	 * ordered by obs id. Used for walking the obs of a handler in batches.
+	 * 
+	 * @param handlerKey The complex obs handler key, e.g. ContentObsHandler
+	 * @param afterObsId Only obs with an id greater than this will be returned
+	 * @param maxResults The maximum number of obs to return
+	 * @return The value_complex of each obs mapped by obs id
+	 */
+	@Transactional(readOnly = true)
+	Map<Integer, String> getComplexObsValues(String handlerKey, Integer afterObsId, int maxResults);
+
+	/**
+	 * Updates the value_complex of the specified obs in a single batch.
+	 * <p>
+	 * This updates the obs table directly, without voiding and recreating the obs and without any privilege
+	 * checks. It's only meant for moving the storage of content (e.g. re-encoding a file) without changing it.
+	 * Obs already loaded in the session aren't refreshed, so callers should clear the session afterwards.
+	 * 
+	 * @param valueComplexByObsId The new value_complex for each obs mapped by obs id
+	 * @should update the value_complex of all obs in the batch
+	 */
+	void updateComplexObsValues(Map<Integer, String> valueComplexByObsId);
+
+	/**
+	 * Returns the non-voided obs of a patient for the specified concepts, ordered by obs datetime and obs id descending.
+	 * Obs that come after the specified keyset position (beforeDatetime, beforeObsId) in this order are returned.
+	 * 
+	 * @param patient The patient
+	 * @param conceptIds The concepts to return obs for
+	 * @param fromDate (Nullable) The earliest obs datetime
+	 * @param toDate (Nullable) The latest obs datetime
+	 * @param beforeDatetime (Nullable) The obs datetime of the last obs of the previous page
+	 * @param beforeObsId (Nullable) The obs id of the last obs of the previous page
+	 * @param maxResults The maximum number of obs to return
+	 */
+	@Transactional(readOnly = true)
+	List<Obs> getPatientObs(Patient patient, Collection<Integer> conceptIds, Date fromDate, Date toDate, Date beforeDatetime, Integer beforeObsId, int maxResults);
+
+	/**
+	 * Fetches the accession numbers of obs for the specified concepts, ordered by obs id.
+	 * Used for walking the content ids of the unstructured data obs in batches.
+	 * Voided obs are included.
+	 * 
+	 * @param conceptIds The concepts to return obs for
+	 * @param afterObsId Only obs with an id greater than this will be returned
+	 * @param maxResults The maximum number of obs to return
+	 * @return The (non-null) accession number of each obs mapped by obs id
+	 */
+	@Transactional(readOnly = true)
+	Map<Integer, String> getAccessionNumbers(Collection<Integer> conceptIds, Integer afterObsId, int maxResults);
+
+	/**
+	 * @return The highest obs id in the database, or 0 if there are no obs. Voided obs are included.
+	 */
+	@Transactional(readOnly = true)
+	int getMaxObsId();
+
+	/**
+	 * Fetches the value_complex of complex obs that were voided before the specified date, for the specified handler,
+	 * ordered by obs id. Obs that share their value_complex with a non-voided obs (e.g. after an obs edit) are excluded.
+	 * Used for reclaiming the storage of voided content in batches.
+	 * 
+	 * @param handlerKey The complex obs handler of the obs concepts, e.g. ContentObsHandler
+	 * @param voidedBefore Only obs voided before this date will be returned
+	 * @param afterObsId Only obs with an id greater than this will be returned
+	 * @param maxResults The maximum number of obs to return
+	 * @return The value_complex of each obs mapped by obs id
+	 */
+	@Transactional(readOnly = true)
+	Map<Integer, String> getVoidedComplexObsValues(String handlerKey, Date voidedBefore, Integer afterObsId, int maxResults);
+
+	/**
+	 * Returns the non-voided obs for the specified concepts with the specified accession number, ordered by obs id.
+	 * Uses the accession number index rather than scanning the obs of the concepts.
+	 * 
+	 * @param accessionNumber The accession number, e.g. a content id
+	 * @param conceptIds The concepts to return obs for
+	 */
+	@Transactional(readOnly = true)
+	List<Obs> getObsByAccessionNumber(String accessionNumber, Collection<Integer> conceptIds);
+}
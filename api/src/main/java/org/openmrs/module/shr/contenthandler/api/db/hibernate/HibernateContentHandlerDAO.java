@@ -0,0 +1,188 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api.db.hibernate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Criteria;
+import org.hibernate.SQLQuery;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.jdbc.Work;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.module.shr.contenthandler.api.db.ContentHandlerDAO;
+
+/**
+ * The default Hibernate implementation of {@link ContentHandlerDAO}.
+ */
+public class HibernateContentHandlerDAO implements ContentHandlerDAO {
+
+	private SessionFactory sessionFactory;
+
+	public void setSessionFactory(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+
+	public SessionFactory getSessionFactory() {
+		return sessionFactory;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<Integer, String> getComplexObsValues(String handlerKey, Integer afterObsId, int maxResults) {
+		SQLQuery query = sessionFactory.getCurrentSession().createSQLQuery(
+			"select o.obs_id, o.value_complex from obs o inner join concept_complex cc on cc.concept_id = o.concept_id " +
+			"where cc.handler = :handler and o.obs_id > :afterObsId and o.value_complex is not null order by o.obs_id");
+		query.setString("handler", handlerKey);
+		query.setInteger("afterObsId", afterObsId!=null ? afterObsId : 0);
+		query.setMaxResults(maxResults);
+
+		Map<Integer, String> res = new LinkedHashMap<Integer, String>();
+		for (Object[] row : (List<Object[]>) query.list()) {
+			res.put(((Number) row[0]).intValue(), (String) row[1]);
+		}
+		return res;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<Integer, String> getVoidedComplexObsValues(String handlerKey, Date voidedBefore, Integer afterObsId, int maxResults) {
+		//the lookup of obs sharing the value_complex is an index probe on shr_ch_obs_value_complex
+		SQLQuery query = sessionFactory.getCurrentSession().createSQLQuery(
+			"select o.obs_id, o.value_complex from obs o join concept_complex cc on cc.concept_id = o.concept_id " +
+			"where cc.handler = :handler and o.voided = :voided and o.date_voided < :voidedBefore and o.obs_id > :afterObsId " +
+			"and o.value_complex is not null " +
+			"and not exists (select 1 from obs o2 where o2.value_complex = o.value_complex and o2.voided = :notVoided) " +
+			"order by o.obs_id");
+		query.setString("handler", handlerKey);
+		query.setBoolean("voided", true);
+		query.setTimestamp("voidedBefore", voidedBefore);
+		query.setInteger("afterObsId", afterObsId!=null ? afterObsId : 0);
+		query.setBoolean("notVoided", false);
+		query.setMaxResults(maxResults);
+
+		Map<Integer, String> res = new LinkedHashMap<Integer, String>();
+		for (Object[] row : (List<Object[]>) query.list()) {
+			res.put(((Number) row[0]).intValue(), (String) row[1]);
+		}
+		return res;
+	}
+
+	@Override
+	public void updateComplexObsValues(final Map<Integer, String> valueComplexByObsId) {
+		if (valueComplexByObsId.isEmpty()) {
+			return;
+		}
+
+		sessionFactory.getCurrentSession().doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement ps = connection.prepareStatement("update obs set value_complex = ? where obs_id = ?");
+				try {
+					for (Map.Entry<Integer, String> entry : valueComplexByObsId.entrySet()) {
+						ps.setString(1, entry.getValue());
+						ps.setInt(2, entry.getKey());
+						ps.addBatch();
+					}
+					ps.executeBatch();
+				} finally {
+					ps.close();
+				}
+			}
+		});
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Obs> getPatientObs(Patient patient, Collection<Integer> conceptIds, Date fromDate, Date toDate, Date beforeDatetime, Integer beforeObsId, int maxResults) {
+		if (conceptIds.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
+		criteria.add(Restrictions.eq("person.personId", patient.getPatientId()));
+		criteria.add(Restrictions.in("concept.conceptId", conceptIds));
+		criteria.add(Restrictions.eq("voided", false));
+		if (fromDate!=null) {
+			criteria.add(Restrictions.ge("obsDatetime", fromDate));
+		}
+		if (toDate!=null) {
+			criteria.add(Restrictions.le("obsDatetime", toDate));
+		}
+		if (beforeDatetime!=null && beforeObsId!=null) {
+			criteria.add(Restrictions.or(
+				Restrictions.lt("obsDatetime", beforeDatetime),
+				Restrictions.and(Restrictions.eq("obsDatetime", beforeDatetime), Restrictions.lt("obsId", beforeObsId))
+			));
+		}
+		criteria.addOrder(Order.desc("obsDatetime"));
+		criteria.addOrder(Order.desc("obsId"));
+		criteria.setMaxResults(maxResults);
+
+		return criteria.list();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<Integer, String> getAccessionNumbers(Collection<Integer> conceptIds, Integer afterObsId, int maxResults) {
+		if (conceptIds.isEmpty()) {
+			return Collections.emptyMap();
+		}
+
+		SQLQuery query = sessionFactory.getCurrentSession().createSQLQuery(
+			"select o.obs_id, o.accession_number from obs o " +
+			"where o.concept_id in (:conceptIds) and o.obs_id > :afterObsId and o.accession_number is not null order by o.obs_id");
+		query.setParameterList("conceptIds", conceptIds);
+		query.setInteger("afterObsId", afterObsId!=null ? afterObsId : 0);
+		query.setMaxResults(maxResults);
+
+		Map<Integer, String> res = new LinkedHashMap<Integer, String>();
+		for (Object[] row : (List<Object[]>) query.list()) {
+			res.put(((Number) row[0]).intValue(), (String) row[1]);
+		}
+		return res;
+	}
+
+	@Override
+	public int getMaxObsId() {
+		Number res = (Number) sessionFactory.getCurrentSession().createSQLQuery("select max(obs_id) from obs").uniqueResult();
+		return res!=null ? res.intValue() : 0;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Obs> getObsByAccessionNumber(String accessionNumber, Collection<Integer> conceptIds) {
+		if (conceptIds.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
+		criteria.add(Restrictions.eq("accessionNumber", accessionNumber));
+		criteria.add(Restrictions.in("concept.conceptId", conceptIds));
+		criteria.add(Restrictions.eq("voided", false));
+		criteria.addOrder(Order.asc("obsId"));
+
+		return criteria.list();
+	}
+}
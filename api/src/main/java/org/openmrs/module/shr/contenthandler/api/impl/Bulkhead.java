@@ -0,0 +1,84 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api.impl;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openmrs.module.shr.contenthandler.api.ContentHandlerException;
+import org.openmrs.module.shr.contenthandler.metrics.BulkheadMetrics;
+import org.openmrs.module.shr.contenthandler.metrics.ContentHandlerMetrics;
+import org.openmrs.module.shr.contenthandler.metrics.Gauge;
+
+/**
+ * Limits the number of concurrent calls to a content handler.
+ * <p>
+ * The bulkhead only controls admission: a call that is admitted runs to completion on the calling thread, in the
+ * caller's transaction, and is never abandoned half-way. A call is rejected when the limit has been reached and no
+ * running call completes within the maximum wait. A slow or overloaded handler thus holds at most its own share of the
+ * request threads.
+ */
+class Bulkhead {
+
+	private final String name;
+	private final int limit;
+	private final long maxWaitMillis;
+	private final Semaphore permits;
+	private final BulkheadMetrics metrics;
+
+
+	Bulkhead(String name, int limit, long maxWaitMillis) {
+		this.name = name;
+		this.limit = limit;
+		this.maxWaitMillis = maxWaitMillis;
+		this.permits = new Semaphore(limit);
+
+		this.metrics = new BulkheadMetrics(limit, new Gauge() {
+			@Override
+			public long getValue() {
+				return Bulkhead.this.limit - permits.availablePermits();
+			}
+		});
+		ContentHandlerMetrics.registerBulkhead(name, metrics);
+	}
+
+	/**
+	 * Takes a place in the bulkhead, waiting at most the maximum wait for one to become free. Every successful call must
+	 * be followed by a call to {@link #release()}.
+	 * 
+	 * @throws ContentHandlerException if the bulkhead is full
+	 */
+	void acquire() throws ContentHandlerException {
+		boolean acquired;
+		try {
+			acquired = maxWaitMillis>0 ? permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS) : permits.tryAcquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new ContentHandlerException("Interrupted while waiting for " + name, ex);
+		}
+
+		if (!acquired) {
+			metrics.rejected();
+			throw new ContentHandlerException("Too many concurrent calls to " + name + " (limit " + limit + ")");
+		}
+	}
+
+	void release() {
+		permits.release();
+	}
+
+	void shutdown() {
+		ContentHandlerMetrics.deregisterBulkhead(name);
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api.impl;
+
+import java.lang.reflect.Method;
+
+import org.openmrs.module.shr.contenthandler.ContentHandlerDecorator;
+import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+
+/**
+ * A content handler decorator that admits calls to the handler through the bulkhead of the handler.
+ * <p>
+ * Calls run on the calling thread and in the caller's transaction.
+ */
+public class BulkheadContentHandler extends ContentHandlerDecorator {
+
+	private final Bulkhead bulkhead;
+
+
+	BulkheadContentHandler(ContentHandler delegate, Bulkhead bulkhead) {
+		super(delegate);
+		this.bulkhead = bulkhead;
+	}
+
+	@Override
+	protected ContentHandlerDecorator decorate(ContentHandler clone) {
+		return new BulkheadContentHandler(clone, bulkhead);
+	}
+
+	@Override
+	protected Object invoke(Method method, Object[] args) throws Throwable {
+		bulkhead.acquire();
+		try {
+			return invokeDelegate(method, args);
+		} finally {
+			bulkhead.release();
+		}
+	}
+}
@@ -13,19 +13,56 @@
  */
 package org.openmrs.module.shr.contenthandler.api.impl;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.shr.contenthandler.ContentSearchIndex;
 import org.openmrs.module.shr.contenthandler.UnstructuredDataHandler;
 import org.openmrs.module.shr.contenthandler.api.AlreadyRegisteredException;
+import org.openmrs.module.shr.contenthandler.api.AsyncContentHandler;
 import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.ContentFilter;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+import org.openmrs.module.shr.contenthandler.api.ContentHandlerException;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
+import org.openmrs.module.shr.contenthandler.api.ContentPage;
 import org.openmrs.module.shr.contenthandler.api.InvalidCodedValueException;
 import org.openmrs.module.shr.contenthandler.api.InvalidContentTypeException;
+import org.openmrs.module.shr.contenthandler.api.ListableContentHandler;
+import org.openmrs.module.shr.contenthandler.api.db.ContentHandlerDAO;
+import org.openmrs.module.shr.contenthandler.metrics.ContentHandlerMetrics;
+import org.openmrs.module.shr.contenthandler.metrics.Gauge;
+import org.openmrs.module.shr.contenthandler.metrics.MeteredContentHandler;
 
 /**
  * It is a default implementation of {@link ContentHandlerService}.
@@ -34,18 +71,123 @@ public class ContentHandlerServiceImpl extends BaseOpenmrsService implements Con
 	
 	protected final Log log = LogFactory.getLog(this.getClass());
 	
+	public static final String GP_INSTRUMENT_HANDLERS = "shr.contenthandler.metrics.instrumentHandlers";
+	public static final String GP_ASYNC_EXECUTOR = "shr.contenthandler.async.executor";
+	public static final String GP_BULKHEAD_ENABLED = "shr.contenthandler.bulkhead.enabled";
+	public static final String GP_BULKHEAD_MAX_CONCURRENT = "shr.contenthandler.bulkhead.maxConcurrent";
+	public static final String GP_BULKHEAD_MAX_WAIT_MILLIS = "shr.contenthandler.bulkhead.maxWaitMillis";
+	public static final String GP_ASYNC_THREADS = "shr.contenthandler.async.threads";
+	
+	private static final int FETCH_THREADS = 8;
+	private static final int FETCH_QUEUE_CAPACITY = 64;
+	private static final String FETCH_QUEUE_NAME = "fetchContentAnyHandler";
+	private static final int ASYNC_QUEUE_CAPACITY = 256;
+	private static final String ASYNC_QUEUE_NAME = "asyncContentHandler";
+	
+	/**
+	 * The executors that can be selected for asynchronous handler calls using the {@value #GP_ASYNC_EXECUTOR} global property.
+	 */
+	public static enum AsyncExecutorType {
+		/**
+		 * A bounded thread pool, sized by the {@value ContentHandlerServiceImpl#GP_ASYNC_THREADS} global property.
+		 * Calls are run on the calling thread when the pool's queue is full.
+		 */
+		POOLED,
+		/**
+		 * A virtual thread per call. Requires a JVM with virtual thread support (Java 21 or later),
+		 * otherwise the pooled executor is used.
+		 */
+		VIRTUAL
+	}
+	
 	protected final Map<String, ContentHandler> contentTypeHandlers = new HashMap<String, ContentHandler>();
 	protected final Map<TypeFormatCode, ContentHandler> typeFormatCodeHandlers = new HashMap<TypeFormatCode, ContentHandler>();
+	/**
+	 * Secondary index of registered prototypes by their class, superclasses and interfaces.
+	 * Prototypes registered with the exact class are kept at the head of each list.
+	 */
+	protected final Map<Class<?>, LinkedList<ContentHandler>> classHandlers = new HashMap<Class<?>, LinkedList<ContentHandler>>();
 	
 	protected ContentHandler defaultUnstructuredContentHandler = new UnstructuredDataHandler();
 	
+	protected ContentHandlerDAO dao;
+	
+	private Boolean instrumentHandlers = null;
+	private Boolean bulkheadsEnabled = null;
+	/**
+	 * The bulkheads of the registered handlers by handler class name
+	 */
+	private final Map<String, Bulkhead> bulkheads = new HashMap<String, Bulkhead>();
+	
+	private ThreadPoolExecutor fetchExecutor = null;
+	private ExecutorService asyncExecutor = null;
+	
+	public void setDao(ContentHandlerDAO dao) {
+		this.dao = dao;
+	}
+	
+	public ContentHandlerDAO getDao() {
+		return dao;
+	}
+	
 	@Override
 	public ContentHandler getContentHandler(String contentType) {
 		if (contentType==null || contentType.isEmpty() || !contentTypeHandlers.containsKey(contentType)) {
 			return null;
 		}
 		
-		return contentTypeHandlers.get(contentType).cloneHandler();
+		return instrument(contentTypeHandlers.get(contentType).cloneHandler());
+	}
+	
+	/**
+	 * Wraps the handler in a {@link BulkheadContentHandler} if bulkheads are enabled and in a {@link MeteredContentHandler}
+	 * if handler instrumentation is enabled. Both wrappers implement all the interfaces of the handler. The unstructured data handler records its own metrics, runs in the caller's
+	 * transaction and is never wrapped.
+	 */
+	private ContentHandler instrument(ContentHandler handler) {
+		if (handler==null || handler instanceof UnstructuredDataHandler) {
+			return handler;
+		}
+		
+		ContentHandler res = handler;
+		if (isBulkheadsEnabled()) {
+			res = new BulkheadContentHandler(res, getBulkhead(handler.getClass().getName())).proxy();
+		}
+		if (isInstrumentHandlers()) {
+			res = MeteredContentHandler.wrap(res);
+		}
+		return res;
+	}
+	
+	/**
+	 * Returns the bulkhead shared by the handlers of a class, creating it if necessary.
+	 */
+	private Bulkhead getBulkhead(String name) {
+		synchronized (bulkheads) {
+			Bulkhead res = bulkheads.get(name);
+			if (res==null) {
+				AdministrationService as = Context.getAdministrationService();
+				int maxConcurrent = Integer.parseInt(as.getGlobalProperty(GP_BULKHEAD_MAX_CONCURRENT, "16").trim());
+				long maxWaitMillis = Long.parseLong(as.getGlobalProperty(GP_BULKHEAD_MAX_WAIT_MILLIS, "0").trim());
+				res = new Bulkhead(name, maxConcurrent, maxWaitMillis);
+				bulkheads.put(name, res);
+			}
+			return res;
+		}
+	}
+	
+	private synchronized boolean isBulkheadsEnabled() {
+		if (bulkheadsEnabled==null) {
+			bulkheadsEnabled = Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(GP_BULKHEAD_ENABLED, "false").trim());
+		}
+		return bulkheadsEnabled;
+	}
+	
+	private synchronized boolean isInstrumentHandlers() {
+		if (instrumentHandlers==null) {
+			instrumentHandlers = Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(GP_INSTRUMENT_HANDLERS, "false").trim());
+		}
+		return instrumentHandlers;
 	}
 
 	@Override
@@ -65,6 +207,7 @@ public class ContentHandlerServiceImpl extends BaseOpenmrsService implements Con
 		}
 		
 		contentTypeHandlers.put(contentType, prototype);
+		indexByClass(prototype);
 	}
 	
 	private static boolean isValidContentType(String contentType) {
@@ -75,7 +218,10 @@ public class ContentHandlerServiceImpl extends BaseOpenmrsService implements Con
 
 	@Override
 	public void deregisterContentHandler(String contentType) {
-		contentTypeHandlers.remove(contentType);
+		ContentHandler removed = contentTypeHandlers.remove(contentType);
+		if (removed!=null) {
+			unindexByClass(removed);
+		}
 	}
 
 	@Override
@@ -86,7 +232,7 @@ public class ContentHandlerServiceImpl extends BaseOpenmrsService implements Con
 			return null;
 		}
 		
-		return typeFormatCodeHandlers.get(new TypeFormatCode(typeCode, formatCode)).cloneHandler();
+		return instrument(typeFormatCodeHandlers.get(new TypeFormatCode(typeCode, formatCode)).cloneHandler());
 	}
 
 	@Override
@@ -108,13 +254,65 @@ public class ContentHandlerServiceImpl extends BaseOpenmrsService implements Con
 		}
 		
 		typeFormatCodeHandlers.put(codes, prototype);
-		
+		indexByClass(prototype);
 	}
 
 	@Override
 	public void deregisterContentHandler(CodedValue typeCode, CodedValue formatCode) {
-		typeFormatCodeHandlers.remove(new TypeFormatCode(typeCode, formatCode));
+		ContentHandler removed = typeFormatCodeHandlers.remove(new TypeFormatCode(typeCode, formatCode));
+		if (removed!=null) {
+			unindexByClass(removed);
+		}
+	}
+	
+	private void indexByClass(ContentHandler prototype) {
+		for (Class<?> type : getHandlerTypes(prototype.getClass())) {
+			LinkedList<ContentHandler> handlers = classHandlers.get(type);
+			if (handlers==null) {
+				handlers = new LinkedList<ContentHandler>();
+				classHandlers.put(type, handlers);
+			}
+			
+			if (type.equals(prototype.getClass())) {
+				handlers.addFirst(prototype);
+			} else {
+				handlers.addLast(prototype);
+			}
+		}
+	}
+	
+	private void unindexByClass(ContentHandler prototype) {
+		for (Class<?> type : getHandlerTypes(prototype.getClass())) {
+			LinkedList<ContentHandler> handlers = classHandlers.get(type);
+			if (handlers==null) {
+				continue;
+			}
+			
+			handlers.remove(prototype);
+			if (handlers.isEmpty()) {
+				classHandlers.remove(type);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the class along with all of its superclasses and interfaces that are content handler types.
+	 */
+	private static Set<Class<?>> getHandlerTypes(Class<?> clazz) {
+		Set<Class<?>> res = new HashSet<Class<?>>();
+		collectHandlerTypes(clazz, res);
+		return res;
+	}
+	
+	private static void collectHandlerTypes(Class<?> clazz, Set<Class<?>> res) {
+		if (clazz==null || !ContentHandler.class.isAssignableFrom(clazz) || !res.add(clazz)) {
+			return;
+		}
 		
+		collectHandlerTypes(clazz.getSuperclass(), res);
+		for (Class<?> iface : clazz.getInterfaces()) {
+			collectHandlerTypes(iface, res);
+		}
 	}
 	
 	private static class TypeFormatCode {
@@ -164,6 +362,29 @@ public class ContentHandlerServiceImpl extends BaseOpenmrsService implements Con
 			}
 			return true;
 		}
+		
+		@Override
+		public String toString() {
+			return typeCode.getCodingScheme() + ":" + typeCode.getCode() + " " + formatCode.getCodingScheme() + ":" + formatCode.getCode();
+		}
+	}
+	
+	@Override
+	public Map<String, String> getRegisteredContentTypeHandlers() {
+		Map<String, String> res = new TreeMap<String, String>();
+		for (Map.Entry<String, ContentHandler> entry : contentTypeHandlers.entrySet()) {
+			res.put(entry.getKey(), entry.getValue().getClass().getName());
+		}
+		return res;
+	}
+	
+	@Override
+	public Map<String, String> getRegisteredTypeFormatCodeHandlers() {
+		Map<String, String> res = new TreeMap<String, String>();
+		for (Map.Entry<TypeFormatCode, ContentHandler> entry : typeFormatCodeHandlers.entrySet()) {
+			res.put(entry.getKey().toString(), entry.getValue().getClass().getName());
+		}
+		return res;
 	}
 
 	
@@ -176,23 +397,232 @@ public class ContentHandlerServiceImpl extends BaseOpenmrsService implements Con
 	public ContentHandler getContentHandlerByClass(
 			Class<? extends ContentHandler> documentHandlerClass) {
 		
-		for(ContentHandler ch : typeFormatCodeHandlers.values()) {
-			if (ch.getClass().equals(documentHandlerClass)) {
-				return ch.cloneHandler();
-			}
+		LinkedList<ContentHandler> handlers = classHandlers.get(documentHandlerClass);
+		if (handlers==null || handlers.isEmpty()) {
+			return null;
 		}
 		
-		for(ContentHandler ch : contentTypeHandlers.values()) {
-			if (ch.getClass().equals(documentHandlerClass)) {
-				return ch.cloneHandler();
+		//returned as is, so that callers can cast the handler to the requested class
+		return handlers.getFirst().cloneHandler();
+	}
+
+	@Override
+	public void setDefaultUnstructuredHandler(ContentHandler defaultHandler) {
+		this.defaultUnstructuredContentHandler = defaultHandler;
+	}
+
+	@Override
+	public Content fetchContentAnyHandler(final String contentId) {
+		List<ContentHandler> handlers = getDistinctHandlers();
+		CompletionService<Content> completionService = new ExecutorCompletionService<Content>(getFetchExecutor());
+		List<Future<Content>> futures = new ArrayList<Future<Content>>(handlers.size());
+		
+		for (final ContentHandler handler : handlers) {
+			futures.add(completionService.submit(new ContextPropagatingCallable<Content>(new Callable<Content>() {
+				@Override
+				public Content call() throws Exception {
+					return handler.fetchContent(contentId);
+				}
+			})));
+		}
+		
+		try {
+			for (int i=0; i<futures.size(); i++) {
+				try {
+					Content content = completionService.take().get();
+					if (content!=null) {
+						return content;
+					}
+				} catch (ExecutionException ex) {
+					log.warn("Content handler failed to fetch content (contentId = " + contentId + ")", ex.getCause());
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (Future<Content> future : futures) {
+				future.cancel(true);
 			}
 		}
 		
 		return null;
 	}
+	
+	@Override
+	public AsyncContentHandler getAsyncContentHandler(ContentHandler handler) {
+		if (handler==null) {
+			throw new NullPointerException();
+		}
+		return new ExecutorAsyncContentHandler(handler, getAsyncExecutor());
+	}
+	
+	private synchronized ExecutorService getAsyncExecutor() {
+		if (asyncExecutor==null) {
+			AdministrationService as = Context.getAdministrationService();
+			String value = as.getGlobalProperty(GP_ASYNC_EXECUTOR, AsyncExecutorType.POOLED.name());
+			AsyncExecutorType type;
+			try {
+				type = AsyncExecutorType.valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				log.warn("Invalid value for " + GP_ASYNC_EXECUTOR + ": " + value + ". Defaulting to " + AsyncExecutorType.POOLED);
+				type = AsyncExecutorType.POOLED;
+			}
+			
+			if (type==AsyncExecutorType.VIRTUAL) {
+				asyncExecutor = createVirtualThreadExecutor();
+			}
+			if (asyncExecutor==null) {
+				int threads = Integer.parseInt(as.getGlobalProperty(GP_ASYNC_THREADS, "8").trim());
+				final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(ASYNC_QUEUE_CAPACITY), new DaemonThreadFactory("shr-contenthandler-async-"),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+				executor.allowCoreThreadTimeOut(true);
+				
+				ContentHandlerMetrics.registerQueue(ASYNC_QUEUE_NAME, new Gauge() {
+					@Override
+					public long getValue() {
+						return executor.getQueue().size();
+					}
+				});
+				asyncExecutor = executor;
+			}
+		}
+		return asyncExecutor;
+	}
+	
+	/**
+	 * The module is built for older JVMs, so the virtual thread executor is looked up reflectively.
+	 * 
+	 * @return The executor, or null if virtual threads aren't supported by the JVM
+	 */
+	private ExecutorService createVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException ex) {
+			log.warn("Virtual threads aren't supported by this JVM. Using a thread pool for asynchronous handler calls");
+		} catch (Exception ex) {
+			log.warn("Unable to create a virtual thread executor. Using a thread pool for asynchronous handler calls", ex);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns clones of all distinct registered handlers, including the default unstructured data handler.
+	 */
+	private List<ContentHandler> getDistinctHandlers() {
+		Set<ContentHandler> prototypes = Collections.newSetFromMap(new IdentityHashMap<ContentHandler, Boolean>());
+		prototypes.addAll(contentTypeHandlers.values());
+		prototypes.addAll(typeFormatCodeHandlers.values());
+		prototypes.add(defaultUnstructuredContentHandler);
+		
+		List<ContentHandler> res = new ArrayList<ContentHandler>(prototypes.size());
+		for (ContentHandler prototype : prototypes) {
+			res.add(instrument(prototype.cloneHandler()));
+		}
+		return res;
+	}
+	
+	/**
+	 * A bounded pool shared by all fan-out lookups. When the queue is full the lookup is run on the calling thread.
+	 */
+	private synchronized ThreadPoolExecutor getFetchExecutor() {
+		if (fetchExecutor==null) {
+			fetchExecutor = new ThreadPoolExecutor(FETCH_THREADS, FETCH_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(FETCH_QUEUE_CAPACITY), new DaemonThreadFactory("shr-contenthandler-fetch-"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+			fetchExecutor.allowCoreThreadTimeOut(true);
+			
+			final ThreadPoolExecutor executor = fetchExecutor;
+			ContentHandlerMetrics.registerQueue(FETCH_QUEUE_NAME, new Gauge() {
+				@Override
+				public long getValue() {
+					return executor.getQueue().size();
+				}
+			});
+		}
+		return fetchExecutor;
+	}
+	
+	@Override
+	public synchronized void onShutdown() {
+		if (fetchExecutor!=null) {
+			fetchExecutor.shutdownNow();
+			fetchExecutor = null;
+			ContentHandlerMetrics.deregisterQueue(FETCH_QUEUE_NAME);
+		}
+		if (asyncExecutor!=null) {
+			asyncExecutor.shutdown();
+			asyncExecutor = null;
+			ContentHandlerMetrics.deregisterQueue(ASYNC_QUEUE_NAME);
+		}
+		synchronized (bulkheads) {
+			for (Bulkhead bulkhead : bulkheads.values()) {
+				bulkhead.shutdown();
+			}
+			bulkheads.clear();
+		}
+		bulkheadsEnabled = null;
+		instrumentHandlers = null;
+	}
+	
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+		
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
 
 	@Override
-	public void setDefaultUnstructuredHandler(ContentHandler defaultHandler) {
-		this.defaultUnstructuredContentHandler = defaultHandler;
+	public ContentPage listContent(Patient patient, ContentFilter filter, String pageToken, int pageSize) throws ContentHandlerException {
+		ContentHandler handler = getDefaultUnstructuredHandler();
+		if (!(handler instanceof ListableContentHandler)) {
+			throw new UnsupportedOperationException("The default unstructured data handler (" + handler.getClass().getName() + ") doesn't support listing content");
+		}
+		return ((ListableContentHandler) handler).listContent(patient, filter, pageToken, pageSize);
+	}
+
+	@Override
+	public List<String> searchContent(String query, Patient patient, CodedValue formatCode, Date fromDate, Date toDate, int maxResults) throws ContentHandlerException {
+		try {
+			ContentSearchIndex index = ContentSearchIndex.getInstance();
+			if (index==null) {
+				throw new UnsupportedOperationException("The content search index is disabled (see " + ContentSearchIndex.GP_ENABLED + ")");
+			}
+			Integer patientId = patient!=null ? patient.getPatientId() : null;
+			
+			//the index still holds voided and purged content, so fetch more hits until enough of them are current
+			int limit = maxResults;
+			while (true) {
+				List<String> hits = index.search(query, patientId, formatCode, fromDate, toDate, limit);
+				List<String> res = new ArrayList<String>(Math.min(hits.size(), maxResults));
+				for (String contentId : hits) {
+					if (res.size() == maxResults) {
+						break;
+					}
+					List<Obs> obs = dao.getObsByAccessionNumber(contentId, UnstructuredDataHandler.getAttachmentConceptIds());
+					if (!obs.isEmpty() && (patientId==null || patientId.equals(obs.get(0).getPersonId()))) {
+						res.add(contentId);
+					}
+				}
+				
+				if (res.size() == maxResults || hits.size() < limit) {
+					return res;
+				}
+				limit *= 2;
+			}
+		} catch (IllegalArgumentException ex) {
+			throw new ContentHandlerException(ex.getMessage(), ex);
+		} catch (IOException ex) {
+			throw new ContentHandlerException("Failed to search the content search index", ex);
+		}
 	}
 }
\ No newline at end of file
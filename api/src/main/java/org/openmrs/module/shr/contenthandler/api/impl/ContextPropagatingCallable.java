@@ -0,0 +1,55 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api.impl;
+
+import java.util.concurrent.Callable;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+
+/**
+ * Runs a task on another thread with the user context of the thread that created it.
+ * <p>
+ * The OpenMRS context is bound to the current thread, so a worker thread opens its own session
+ * for the duration of the task. If the task ends up running on the creating thread (e.g. because
+ * the executor rejected it and ran it on the caller), the existing session is used as is.
+ */
+class ContextPropagatingCallable<V> implements Callable<V> {
+
+	private final Callable<V> task;
+	private final UserContext userContext;
+	private final Thread creator;
+
+
+	ContextPropagatingCallable(Callable<V> task) {
+		this.task = task;
+		this.userContext = Context.getUserContext();
+		this.creator = Thread.currentThread();
+	}
+
+	@Override
+	public V call() throws Exception {
+		if (Thread.currentThread()==creator) {
+			return task.call();
+		}
+
+		Context.openSession();
+		try {
+			Context.setUserContext(userContext);
+			return task.call();
+		} finally {
+			Context.closeSession();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api.impl;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.openmrs.Encounter;
+import org.openmrs.EncounterRole;
+import org.openmrs.EncounterType;
+import org.openmrs.Patient;
+import org.openmrs.Provider;
+import org.openmrs.module.shr.contenthandler.api.AsyncContentHandler;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+
+/**
+ * Adapts a synchronous content handler to {@link AsyncContentHandler} by running its calls on an executor,
+ * with the user context of the calling thread.
+ */
+public class ExecutorAsyncContentHandler implements AsyncContentHandler {
+
+	private final ContentHandler handler;
+	private final ExecutorService executor;
+
+
+	public ExecutorAsyncContentHandler(ContentHandler handler, ExecutorService executor) {
+		this.handler = handler;
+		this.executor = executor;
+	}
+
+	@Override
+	public Future<Encounter> saveContent(final Patient patient, final Map<EncounterRole, Set<Provider>> providersByRole,
+			final EncounterType encounterType, final Content content) {
+		return executor.submit(new ContextPropagatingCallable<Encounter>(new Callable<Encounter>() {
+			@Override
+			public Encounter call() throws Exception {
+				return handler.saveContent(patient, providersByRole, encounterType, content);
+			}
+		}));
+	}
+
+	@Override
+	public Future<Content> fetchContent(final String contentId) {
+		return executor.submit(new ContextPropagatingCallable<Content>(new Callable<Content>() {
+			@Override
+			public Content call() throws Exception {
+				return handler.fetchContent(contentId);
+			}
+		}));
+	}
+
+	@Override
+	public ContentHandler getContentHandler() {
+		return handler;
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Usage and rejection counts for a bulkhead that limits the concurrent calls of a content handler.
+ */
+public class BulkheadMetrics {
+
+	private final AtomicLong rejections = new AtomicLong();
+	private final int limit;
+	private final Gauge active;
+
+
+	/**
+	 * @param limit The maximum number of concurrent calls
+	 * @param active Reports the current number of calls in progress
+	 */
+	public BulkheadMetrics(int limit, Gauge active) {
+		this.limit = limit;
+		this.active = active;
+	}
+
+	public void rejected() {
+		rejections.incrementAndGet();
+	}
+
+	public long getRejections() {
+		return rejections.get();
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public long getActive() {
+		return active.getValue();
+	}
+}
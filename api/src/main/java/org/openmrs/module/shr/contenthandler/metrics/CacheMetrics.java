@@ -0,0 +1,63 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit and miss counts for a cache.
+ */
+public class CacheMetrics {
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final Gauge size;
+
+
+	/**
+	 * @param size Reports the current number of entries in the cache
+	 */
+	public CacheMetrics(Gauge size) {
+		this.size = size;
+	}
+
+	public void hit() {
+		hits.incrementAndGet();
+	}
+
+	public void miss() {
+		misses.incrementAndGet();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getSize() {
+		return size.getValue();
+	}
+
+	/**
+	 * @return The ratio of hits to lookups, between 0 and 1
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total==0 ? 0 : (double) h / total;
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A registry of the module's runtime metrics: handler operation latencies, cache hit rates,
+ * queue depths and storage usage.
+ * <p>
+ * Metrics are kept in memory only and are reset when the server restarts.
+ */
+public class ContentHandlerMetrics {
+
+	public static final String OPERATION_SAVE = "save";
+	public static final String OPERATION_FETCH = "fetch";
+	public static final String OPERATION_FETCH_RANGE = "fetchRange";
+
+	private static final ConcurrentMap<String, ConcurrentMap<String, OperationMetrics>> handlers = new ConcurrentHashMap<String, ConcurrentMap<String, OperationMetrics>>();
+	private static final ConcurrentMap<String, CacheMetrics> caches = new ConcurrentHashMap<String, CacheMetrics>();
+	private static final ConcurrentMap<String, Gauge> queues = new ConcurrentHashMap<String, Gauge>();
+	private static final ConcurrentMap<String, BulkheadMetrics> bulkheads = new ConcurrentHashMap<String, BulkheadMetrics>();
+	private static final ConcurrentMap<String, Gauge> storage = new ConcurrentHashMap<String, Gauge>();
+
+	private static final AtomicLong bytesWritten = new AtomicLong();
+	private static final AtomicLong filesWritten = new AtomicLong();
+
+
+	private ContentHandlerMetrics() {}
+
+	/**
+	 * Returns the metrics for an operation of a handler, creating them if necessary.
+	 *
+	 * @param handler The handler name, usually the handler's class name
+	 * @param operation The operation, e.g. {@link #OPERATION_SAVE}
+	 */
+	public static OperationMetrics getOperationMetrics(String handler, String operation) {
+		ConcurrentMap<String, OperationMetrics> operations = handlers.get(handler);
+		if (operations==null) {
+			handlers.putIfAbsent(handler, new ConcurrentHashMap<String, OperationMetrics>());
+			operations = handlers.get(handler);
+		}
+
+		OperationMetrics metrics = operations.get(operation);
+		if (metrics==null) {
+			operations.putIfAbsent(operation, new OperationMetrics());
+			metrics = operations.get(operation);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Register a cache. If a cache is already registered with the name, the existing metrics are returned.
+	 */
+	public static CacheMetrics registerCache(String name, Gauge size) {
+		caches.putIfAbsent(name, new CacheMetrics(size));
+		return caches.get(name);
+	}
+
+	/**
+	 * Register (or replace) a gauge reporting the number of tasks waiting in a queue.
+	 */
+	public static void registerQueue(String name, Gauge depth) {
+		queues.put(name, depth);
+	}
+
+	public static void deregisterQueue(String name) {
+		queues.remove(name);
+	}
+
+	/**
+	 * Register (or replace) the metrics of a handler bulkhead.
+	 */
+	public static void registerBulkhead(String name, BulkheadMetrics metrics) {
+		bulkheads.put(name, metrics);
+	}
+
+	public static void deregisterBulkhead(String name) {
+		bulkheads.remove(name);
+	}
+
+	/**
+	 * Register (or replace) a gauge reporting storage usage in bytes, e.g. the free space of a storage directory.
+	 */
+	public static void registerStorage(String name, Gauge bytes) {
+		storage.put(name, bytes);
+	}
+
+	/**
+	 * Record that a content payload has been written to storage.
+	 */
+	public static void recordWrite(long bytes) {
+		filesWritten.incrementAndGet();
+		bytesWritten.addAndGet(bytes);
+	}
+
+	/**
+	 * Takes a snapshot of all metrics in a form that is suitable for rendering or serializing to JSON.
+	 */
+	public static Map<String, Object> snapshot() {
+		Map<String, Object> res = new LinkedHashMap<String, Object>();
+
+		Map<String, Object> handlerSnapshot = new TreeMap<String, Object>();
+		for (Map.Entry<String, ConcurrentMap<String, OperationMetrics>> handler : handlers.entrySet()) {
+			Map<String, Object> operations = new TreeMap<String, Object>();
+			for (Map.Entry<String, OperationMetrics> operation : handler.getValue().entrySet()) {
+				OperationMetrics m = operation.getValue();
+				Map<String, Object> values = new LinkedHashMap<String, Object>();
+				values.put("count", m.getCount());
+				values.put("errors", m.getErrors());
+				values.put("throughput", m.getThroughput());
+				values.put("meanMillis", m.getMeanMillis());
+				values.put("p50Millis", m.getPercentileMillis(50));
+				values.put("p99Millis", m.getPercentileMillis(99));
+				operations.put(operation.getKey(), values);
+			}
+			handlerSnapshot.put(handler.getKey(), operations);
+		}
+		res.put("handlers", handlerSnapshot);
+
+		Map<String, Object> cacheSnapshot = new TreeMap<String, Object>();
+		for (Map.Entry<String, CacheMetrics> cache : caches.entrySet()) {
+			Map<String, Object> values = new LinkedHashMap<String, Object>();
+			values.put("size", cache.getValue().getSize());
+			values.put("hits", cache.getValue().getHits());
+			values.put("misses", cache.getValue().getMisses());
+			values.put("hitRate", cache.getValue().getHitRate());
+			cacheSnapshot.put(cache.getKey(), values);
+		}
+		res.put("caches", cacheSnapshot);
+
+		res.put("queues", sample(queues));
+
+		Map<String, Object> bulkheadSnapshot = new TreeMap<String, Object>();
+		for (Map.Entry<String, BulkheadMetrics> bulkhead : bulkheads.entrySet()) {
+			Map<String, Object> values = new LinkedHashMap<String, Object>();
+			values.put("active", bulkhead.getValue().getActive());
+			values.put("limit", bulkhead.getValue().getLimit());
+			values.put("rejections", bulkhead.getValue().getRejections());
+			bulkheadSnapshot.put(bulkhead.getKey(), values);
+		}
+		res.put("bulkheads", bulkheadSnapshot);
+
+		Map<String, Object> storageSnapshot = sample(storage);
+		storageSnapshot.put("bytesWritten", bytesWritten.get());
+		storageSnapshot.put("filesWritten", filesWritten.get());
+		res.put("storage", storageSnapshot);
+
+		return res;
+	}
+
+	private static Map<String, Object> sample(Map<String, Gauge> gauges) {
+		Map<String, Object> res = new TreeMap<String, Object>();
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+			res.put(gauge.getKey(), gauge.getValue().getValue());
+		}
+		return res;
+	}
+}
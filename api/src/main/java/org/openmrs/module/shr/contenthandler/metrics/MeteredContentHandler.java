@@ -0,0 +1,80 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.metrics;
+
+import java.lang.reflect.Method;
+
+import org.openmrs.module.shr.contenthandler.ContentHandlerDecorator;
+import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+
+/**
+ * A content handler decorator that records the latency of save, fetch and range fetch calls in
+ * {@link ContentHandlerMetrics}. Other calls are passed on unmetered.
+ *
+ * @see #wrap(ContentHandler)
+ */
+public class MeteredContentHandler extends ContentHandlerDecorator {
+
+	private final String name;
+
+
+	public MeteredContentHandler(ContentHandler delegate) {
+		super(delegate);
+		this.name = unwrap(delegate).getClass().getName();
+	}
+
+	/**
+	 * Returns a metered proxy for the handler that implements all of the handler's interfaces.
+	 */
+	public static ContentHandler wrap(ContentHandler handler) {
+		return new MeteredContentHandler(handler).proxy();
+	}
+
+	@Override
+	protected ContentHandlerDecorator decorate(ContentHandler clone) {
+		return new MeteredContentHandler(clone);
+	}
+
+	@Override
+	protected Object invoke(Method method, Object[] args) throws Throwable {
+		String operation = getOperation(method);
+		if (operation==null) {
+			return invokeDelegate(method, args);
+		}
+
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			Object res = invokeDelegate(method, args);
+			success = true;
+			return res;
+		} finally {
+			ContentHandlerMetrics.getOperationMetrics(name, operation).record(System.nanoTime() - start, success);
+		}
+	}
+
+	private static String getOperation(Method method) {
+		String methodName = method.getName();
+		if ("saveContent".equals(methodName)) {
+			return ContentHandlerMetrics.OPERATION_SAVE;
+		}
+		if ("fetchContent".equals(methodName)) {
+			return ContentHandlerMetrics.OPERATION_FETCH;
+		}
+		if ("fetchContentRange".equals(methodName)) {
+			return ContentHandlerMetrics.OPERATION_FETCH_RANGE;
+		}
+		return null;
+	}
+}
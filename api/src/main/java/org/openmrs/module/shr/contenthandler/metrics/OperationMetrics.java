@@ -0,0 +1,221 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call counts and a latency histogram for a single operation (e.g. save or fetch) of a content handler.
+ * <p>
+ * Latencies are recorded in logarithmic buckets (four per power of two microseconds), so percentiles are
+ * accurate to within roughly 20%. Recording is lock free, apart from starting a new minute.
+ * <p>
+ * The throughput, mean and percentiles cover a sliding window of recent minutes, kept as a ring of per-minute
+ * histograms, so that they reflect the current load. The call and error counts are totals.
+ */
+public class OperationMetrics {
+
+	public static final int DEFAULT_WINDOW_MINUTES = 5;
+
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = 40 * SUB_BUCKETS;
+	private static final long MINUTE = 60 * 1000;
+
+	private final long startTime = now();
+	private final int windowMinutes;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final Slot[] slots;
+
+
+	private static class Slot {
+		volatile long minute;
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong totalNanos = new AtomicLong();
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		Slot(long minute) {
+			this.minute = minute;
+		}
+
+		/**
+		 * Clears the slot for a new minute, unless another thread already has.
+		 */
+		synchronized void reset(long newMinute) {
+			if (minute >= newMinute) {
+				return;
+			}
+			count.set(0);
+			totalNanos.set(0);
+			for (int i=0; i<BUCKETS; i++) {
+				buckets.set(i, 0);
+			}
+			minute = newMinute;
+		}
+	}
+
+	/**
+	 * Metrics with a window of the last {@value #DEFAULT_WINDOW_MINUTES} minutes.
+	 */
+	public OperationMetrics() {
+		this(DEFAULT_WINDOW_MINUTES);
+	}
+
+	/**
+	 * @param windowMinutes The number of minutes covered by the throughput, mean and percentiles,
+	 * or 0 for the whole lifetime of the metrics (e.g. for a benchmark run)
+	 * @should only include calls within the window
+	 * @should include all calls if the window is 0
+	 */
+	public OperationMetrics(int windowMinutes) {
+		this.windowMinutes = Math.max(windowMinutes, 0);
+		slots = new Slot[Math.max(windowMinutes, 1)];
+		long minute = currentMinute();
+		for (int i=0; i<slots.length; i++) {
+			slots[i] = new Slot(minute - slots.length);
+		}
+	}
+
+	/**
+	 * Only overridden by tests.
+	 */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	private long currentMinute() {
+		return windowMinutes==0 ? 0 : now() / MINUTE;
+	}
+
+	/**
+	 * Record a call to the operation.
+	 *
+	 * @param nanos The time taken by the call
+	 * @param success false if the call failed
+	 */
+	public void record(long nanos, boolean success) {
+		count.incrementAndGet();
+		if (!success) {
+			errors.incrementAndGet();
+		}
+
+		long minute = currentMinute();
+		Slot slot = slots[(int) (minute % slots.length)];
+		if (slot.minute != minute) {
+			slot.reset(minute);
+		}
+		slot.count.incrementAndGet();
+		slot.totalNanos.addAndGet(nanos);
+		slot.buckets.incrementAndGet(bucketFor(nanos / 1000));
+	}
+
+	private static int bucketFor(long micros) {
+		if (micros < 1) {
+			return 0;
+		}
+		//log2(micros) * SUB_BUCKETS
+		int bucket = (int) (Math.log(micros) / Math.log(2) * SUB_BUCKETS) + 1;
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	private static double bucketUpperBoundMillis(int bucket) {
+		return Math.pow(2, (double) bucket / SUB_BUCKETS) / 1000.0;
+	}
+
+	/**
+	 * @return The slots of the minutes in the window
+	 */
+	private List<Slot> getWindow() {
+		long minute = currentMinute();
+		List<Slot> res = new ArrayList<Slot>(slots.length);
+		for (Slot slot : slots) {
+			if (slot.minute > minute - slots.length) {
+				res.add(slot);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return The total number of calls
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return The total number of failed calls
+	 */
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * @return The average number of calls per second in the window
+	 */
+	public double getThroughput() {
+		long now = now();
+		long windowStart = windowMinutes==0 ? startTime : Math.max(startTime, (now / MINUTE - slots.length + 1) * MINUTE);
+		long calls = 0;
+		for (Slot slot : getWindow()) {
+			calls += slot.count.get();
+		}
+		return calls * 1000.0 / Math.max(now - windowStart, 1);
+	}
+
+	/**
+	 * @return The mean latency in milliseconds of the calls in the window
+	 */
+	public double getMeanMillis() {
+		long calls = 0;
+		long nanos = 0;
+		for (Slot slot : getWindow()) {
+			calls += slot.count.get();
+			nanos += slot.totalNanos.get();
+		}
+		return calls==0 ? 0 : nanos / 1000000.0 / calls;
+	}
+
+	/**
+	 * @param percentile A value between 0 and 100, e.g. 99 for the 99th percentile
+	 * @return The (approximate) latency in milliseconds at the specified percentile of the calls in the window
+	 */
+	public double getPercentileMillis(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (Slot slot : getWindow()) {
+			for (int i=0; i<BUCKETS; i++) {
+				long value = slot.buckets.get(i);
+				snapshot[i] += value;
+				total += value;
+			}
+		}
+		if (total==0) {
+			return 0;
+		}
+
+		long threshold = (long) Math.ceil(total * percentile / 100.0);
+		long cumulative = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			cumulative += snapshot[i];
+			if (cumulative >= threshold) {
+				return bucketUpperBoundMillis(i);
+			}
+		}
+		return bucketUpperBoundMillis(BUCKETS - 1);
+	}
+}
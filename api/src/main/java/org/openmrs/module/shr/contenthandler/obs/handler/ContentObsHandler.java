@@ -13,46 +13,246 @@
  */
 package org.openmrs.module.shr.contenthandler.obs.handler;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
 import java.util.UUID;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
 import org.openmrs.Obs;
 import org.openmrs.api.APIException;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.ContentSerializer;
 import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.ContentDescriptor;
+import org.openmrs.module.shr.contenthandler.api.ContentDescriptor.ContentLoader;
+import org.openmrs.module.shr.contenthandler.api.ContentHandlerException;
+import org.openmrs.module.shr.contenthandler.metrics.ContentHandlerMetrics;
+import org.openmrs.module.shr.contenthandler.metrics.Gauge;
+import org.openmrs.module.shr.contenthandler.store.ContentStore;
+import org.openmrs.module.shr.contenthandler.store.DatabaseContentStore;
+import org.openmrs.module.shr.contenthandler.store.FileSystemContentStore;
+import org.openmrs.module.shr.contenthandler.store.InMemoryContentStore;
+import org.openmrs.module.shr.contenthandler.store.PackFileContentStore;
+import org.openmrs.module.shr.contenthandler.store.SeekableContentStore;
+import org.openmrs.module.shr.contenthandler.store.SeekableContentStore.StoredContent;
+import org.openmrs.module.shr.contenthandler.store.SizeThresholdContentStore;
+import org.openmrs.module.shr.contenthandler.store.TieredContentStore;
 import org.openmrs.obs.ComplexData;
 import org.openmrs.obs.handler.TextHandler;
-
-import com.google.gson.Gson;
+import org.openmrs.util.OpenmrsConstants;
+import org.openmrs.util.OpenmrsUtil;
 
 /**
  * A basic complex obs handler for saving Content objects to the filesystem.
  * <p>
  * The purpose of this class is to provide a simple default obs handler for the Content Handler Module,
  * however the SHR Unstructured Data Handler Module is expected to be used instead.
+ * <p>
+ * Content is saved in a {@link ContentStore}, with the store key saved as the obs value_complex. The store is selected using
+ * the {@value #GP_CONTENT_STORE} global property, or can be set directly with {@link #setContentStore(ContentStore)}.
+ * By default content is streamed to files in the complex obs directory. Whether a {@link java.nio.channels.FileChannel}
+ * is used for writing and whether (and how) the files are synced to disk can be configured using global properties.
  */
 public class ContentObsHandler extends TextHandler {
 	
 	Log log = LogFactory.getLog(this.getClass());
 	
+	public static final String GP_USE_FILE_CHANNEL = "shr.contenthandler.contentobshandler.useFileChannel";
+	public static final String GP_FSYNC_POLICY = "shr.contenthandler.contentobshandler.fsyncPolicy";
+	public static final String GP_CONTENT_STORE = "shr.contenthandler.contentobshandler.store";
+	public static final String GP_TIERED_HOT_DIR = "shr.contenthandler.contentobshandler.tiered.hotDir";
+	public static final String GP_TIERED_HOT_MAX_AGE_HOURS = "shr.contenthandler.contentobshandler.tiered.hotMaxAgeHours";
+	public static final String GP_TIERED_HOT_MAX_MEGABYTES = "shr.contenthandler.contentobshandler.tiered.hotMaxMegabytes";
+	public static final String GP_INLINE_MAX_KILOBYTES = "shr.contenthandler.contentobshandler.inline.maxKilobytes";
+	public static final String GP_PACK_DIR = "shr.contenthandler.contentobshandler.pack.dir";
+	public static final String GP_PACK_MAX_SEGMENT_MEGABYTES = "shr.contenthandler.contentobshandler.pack.maxSegmentMegabytes";
+	
+	/**
+	 * The built-in content stores that can be selected using the {@value #GP_CONTENT_STORE} global property.
+	 */
+	public static enum StoreType {
+		/**
+		 * Files in the complex obs directory
+		 */
+		FILESYSTEM,
+		/**
+		 * A BLOB table in the OpenMRS database
+		 */
+		DATABASE,
+		/**
+		 * In memory. Only suitable for testing.
+		 */
+		MEMORY,
+		/**
+		 * Recent content in a hot directory, older content in the complex obs directory
+		 */
+		TIERED,
+		/**
+		 * Small content in the database, larger content in the complex obs directory
+		 */
+		INLINE,
+		/**
+		 * Append-only segment files in a pack directory
+		 */
+		PACK
+	}
+	
+	/**
+	 * A view that returns a {@link ContentDescriptor} as complex data. Only the metadata at the start of the file is read;
+	 * the payload is loaded when the descriptor's content is requested.
+	 */
+	public static final String METADATA_VIEW = "METADATA";
+	
+	/**
+	 * Determines if and how written files are synced to the storage device.
+	 */
+	public static enum FsyncPolicy {
+		/**
+		 * Leave it to the operating system to flush the file
+		 */
+		NONE,
+		/**
+		 * Sync the file content
+		 */
+		DATA,
+		/**
+		 * Sync the file content and metadata
+		 */
+		ALL
+	}
+	
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * TextHandler reads files using the platform charset, so use the same charset when writing.
+	 */
+	public static final Charset FILE_CHARSET = Charset.defaultCharset();
+	
+	private Boolean useFileChannel = null;
+	private FsyncPolicy fsyncPolicy = null;
+	private ContentStore contentStore = null;
+	private boolean closed = false;
+	
+	static {
+		ContentHandlerMetrics.registerStorage("complexObsDirUsableBytes", new Gauge() {
+			@Override
+			public long getValue() {
+				return getComplexObsDir().getUsableSpace();
+			}
+		});
+		ContentHandlerMetrics.registerStorage("complexObsDirTotalBytes", new Gauge() {
+			@Override
+			public long getValue() {
+				return getComplexObsDir().getTotalSpace();
+			}
+		});
+	}
+	
 
 	@Override
 	public Obs getObs(Obs obs, String view) {
-		obs = super.getObs(obs, view);
+		if (METADATA_VIEW.equals(view)) {
+			return getMetadataObs(obs);
+		}
 		
-		ComplexData data = obs.getComplexData();
-        //TODO Add some smarter logic for this to work for 2.0+ versions of
-        //OpenMRS where the TextHandler sets the data as a String instead
-        if (data==null || !(data.getData() instanceof char[])) {
-			throw new APIException("Unprocessable ComplexData found (obsId=" + obs.getObsId() + ")");
+		Content content;
+		try {
+			content = getContentStore().get(getStoreKey(obs));
+		} catch (IOException ex) {
+			throw new APIException("Unable to read content (obsId=" + obs.getObsId() + ")", ex);
+		}
+		if (content==null) {
+			throw new APIException("Content not found (obsId=" + obs.getObsId() + ")");
 		}
-        String json = new String((char[])data.getData());
-		Content content = new Gson().fromJson(json, Content.class);
 		obs.setComplexData(new ComplexData(content.getContentType(), content));
 		
 		return obs;
 	}
 
+	/**
+	 * Reads a byte range of the data of the content of an obs. If the content store supports it, only the part of the
+	 * stored content that covers the range is read; otherwise the content is read in full.
+	 * 
+	 * @see org.openmrs.module.shr.contenthandler.api.RangeContentHandler#fetchContentRange(String, long, int)
+	 */
+	public byte[] getContentRange(Obs obs, long offset, int length) {
+		String key = getStoreKey(obs);
+		try {
+			ContentStore store = getContentStore();
+			if (store instanceof SeekableContentStore) {
+				StoredContent stored = ((SeekableContentStore) store).openStored(key);
+				if (stored!=null) {
+					try {
+						byte[] res = ContentSerializer.readPayloadRange(stored, offset, length);
+						if (res!=null) {
+							return res;
+						}
+					} finally {
+						stored.close();
+					}
+				}
+			}
+			
+			Content content = store.get(key);
+			if (content==null) {
+				throw new APIException("Content not found (obsId=" + obs.getObsId() + ")");
+			}
+			
+			byte[] data = content.getDecodedPayload();
+			if (offset >= data.length || length <= 0) {
+				return new byte[0];
+			}
+			byte[] res = new byte[(int) Math.min(length, data.length - offset)];
+			System.arraycopy(data, (int) offset, res, 0, res.length);
+			return res;
+		} catch (IOException ex) {
+			throw new APIException("Unable to read content (obsId=" + obs.getObsId() + ")", ex);
+		}
+	}
+	
+	private Obs getMetadataObs(Obs obs) {
+		final Integer obsId = obs.getObsId();
+		Content metadata;
+		
+		try {
+			Reader in = getContentStore().stream(getStoreKey(obs));
+			if (in==null) {
+				throw new APIException("Content not found (obsId=" + obsId + ")");
+			}
+			try {
+				metadata = ContentSerializer.readMetadata(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			throw new APIException("Unable to read content metadata (obsId=" + obsId + ")", ex);
+		}
+		
+		ContentDescriptor descriptor = new ContentDescriptor(metadata, new ContentLoader() {
+			@Override
+			public Content load() throws ContentHandlerException {
+				Obs complexObs = Context.getObsService().getComplexObs(obsId, OpenmrsConstants.TEXT_VIEW);
+				if (complexObs==null || complexObs.getComplexData()==null) {
+					throw new ContentHandlerException("Content not found (obsId=" + obsId + ")");
+				}
+				return (Content) complexObs.getComplexData().getData();
+			}
+		});
+		obs.setComplexData(new ComplexData(metadata.getContentType(), descriptor));
+		
+		return obs;
+	}
+
 	@Override
 	public Obs saveObs(Obs obs) throws APIException {
 		ComplexData data = obs.getComplexData();
@@ -65,12 +265,203 @@ public class ContentObsHandler extends TextHandler {
 		}
 		
 		Content content = (Content)data.getData();
-		String filename = UUID.randomUUID().toString() + ".json";
-		String json = new Gson().toJson(content, Content.class);
+		String key = UUID.randomUUID().toString() + ".json";
 		
-		obs.setComplexData(new ComplexData(filename, json.toCharArray()));
-		obs = super.saveObs(obs);
+		try {
+			getContentStore().put(key, content);
+			
+			obs.setValueComplex(key + "|" + key);
+			obs.setComplexData(null);
+		} catch (IOException ex) {
+			throw new APIException("Unable to store content (obsId=" + obs.getObsId() + ")", ex);
+		}
 		
 		return obs;
 	}
+	
+	@Override
+	public boolean purgeComplexData(Obs obs) {
+		try {
+			return getContentStore().delete(getStoreKey(obs));
+		} catch (IOException ex) {
+			log.warn("Unable to delete content (obsId=" + obs.getObsId() + ")", ex);
+			return false;
+		}
+	}
+	
+	private static String getStoreKey(Obs obs) {
+		return getStoreKey(obs.getValueComplex());
+	}
+	
+	/**
+	 * The store key is the file name part of the value_complex (title|filename).
+	 */
+	public static String getStoreKey(String valueComplex) {
+		String[] parts = valueComplex.split("\\|");
+		return parts[parts.length - 1].trim();
+	}
+	
+	public synchronized void setContentStore(ContentStore contentStore) {
+		this.contentStore = contentStore;
+	}
+	
+	/**
+	 * Returns the content store, creating the store selected by the {@value #GP_CONTENT_STORE} global property if not set.
+	 */
+	public synchronized ContentStore getContentStore() {
+		if (closed) {
+			throw new APIException("The content store of this handler has been closed");
+		}
+		if (contentStore == null) {
+			String value = Context.getAdministrationService().getGlobalProperty(GP_CONTENT_STORE, StoreType.FILESYSTEM.name());
+			StoreType type;
+			try {
+				type = StoreType.valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				log.warn("Invalid value for " + GP_CONTENT_STORE + ": " + value + ". Defaulting to " + StoreType.FILESYSTEM);
+				type = StoreType.FILESYSTEM;
+			}
+			contentStore = createContentStore(type);
+		}
+		return contentStore;
+	}
+	
+	/**
+	 * Closes the content store if it holds open files (i.e. the pack file store). The handler can't be used afterwards;
+	 * the module closes it when it stops or the context is refreshed, as the new handler opens the store again.
+	 */
+	public synchronized void closeContentStore() {
+		if (contentStore instanceof PackFileContentStore) {
+			((PackFileContentStore) contentStore).close();
+		}
+		contentStore = null;
+		closed = true;
+	}
+	
+	protected ContentStore createContentStore(StoreType type) {
+		switch (type) {
+			case DATABASE:
+				return new DatabaseContentStore(Context.getRegisteredComponent("sessionFactory", SessionFactory.class));
+			case MEMORY:
+				return new InMemoryContentStore();
+			case TIERED:
+				return createTieredContentStore();
+			case INLINE:
+				int maxKilobytes = Integer.parseInt(Context.getAdministrationService().getGlobalProperty(GP_INLINE_MAX_KILOBYTES, "16").trim());
+				return new SizeThresholdContentStore(
+					new DatabaseContentStore(Context.getRegisteredComponent("sessionFactory", SessionFactory.class)),
+					new FileSystemContentStore(getComplexObsDir(), isUseFileChannel(), getFsyncPolicy()),
+					maxKilobytes * 1024);
+			case PACK:
+				return createPackFileContentStore();
+			default:
+				return new FileSystemContentStore(getComplexObsDir(), isUseFileChannel(), getFsyncPolicy());
+		}
+	}
+	
+	/**
+	 * Stream the content to the specified file in the format expected by this handler.
+	 */
+	public static void writeContent(Content content, File outfile, boolean useFileChannel, FsyncPolicy fsyncPolicy) throws IOException {
+		FileOutputStream fout = new FileOutputStream(outfile);
+		try {
+			Writer out;
+			if (useFileChannel) {
+				out = Channels.newWriter(fout.getChannel(), FILE_CHARSET.newEncoder(), WRITE_BUFFER_SIZE);
+			} else {
+				out = new BufferedWriter(new OutputStreamWriter(fout, FILE_CHARSET), WRITE_BUFFER_SIZE);
+			}
+			
+			ContentSerializer.write(content, out);
+			out.flush();
+			
+			switch (fsyncPolicy) {
+				case DATA:
+					fout.getChannel().force(false);
+					break;
+				case ALL:
+					fout.getChannel().force(true);
+					break;
+				default:
+					break;
+			}
+		} finally {
+			fout.close();
+		}
+		ContentHandlerMetrics.recordWrite(outfile.length());
+	}
+	
+	private TieredContentStore createTieredContentStore() {
+		AdministrationService as = Context.getAdministrationService();
+		File hotDir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(as.getGlobalProperty(GP_TIERED_HOT_DIR, "complex_obs_hot"));
+		long maxAgeHours = Long.parseLong(as.getGlobalProperty(GP_TIERED_HOT_MAX_AGE_HOURS, "72").trim());
+		long maxMegabytes = Long.parseLong(as.getGlobalProperty(GP_TIERED_HOT_MAX_MEGABYTES, "1024").trim());
+		
+		final TieredContentStore store = new TieredContentStore(
+			new FileSystemContentStore(hotDir, isUseFileChannel(), getFsyncPolicy()),
+			new FileSystemContentStore(getComplexObsDir(), isUseFileChannel(), getFsyncPolicy()),
+			maxAgeHours * 60 * 60 * 1000, maxMegabytes * 1024 * 1024);
+		
+		ContentHandlerMetrics.registerStorage("hotTierBytes", new Gauge() {
+			@Override
+			public long getValue() {
+				return store.getHotBytes();
+			}
+		});
+		return store;
+	}
+	
+	private PackFileContentStore createPackFileContentStore() {
+		AdministrationService as = Context.getAdministrationService();
+		File dir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(as.getGlobalProperty(GP_PACK_DIR, "complex_obs_pack"));
+		long maxSegmentMegabytes = Long.parseLong(as.getGlobalProperty(GP_PACK_MAX_SEGMENT_MEGABYTES, "256").trim());
+		
+		final PackFileContentStore store;
+		try {
+			store = PackFileContentStore.open(dir, maxSegmentMegabytes * 1024 * 1024, getFsyncPolicy());
+		} catch (IOException ex) {
+			throw new APIException("Unable to open the pack file store in " + dir, ex);
+		}
+		
+		ContentHandlerMetrics.registerStorage("packStoreBytes", new Gauge() {
+			@Override
+			public long getValue() {
+				return store.getTotalBytes();
+			}
+		});
+		ContentHandlerMetrics.registerStorage("packStoreLiveBytes", new Gauge() {
+			@Override
+			public long getValue() {
+				return store.getLiveBytes();
+			}
+		});
+		return store;
+	}
+	
+	private static File getComplexObsDir() {
+		String dir = Context.getAdministrationService().getGlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_COMPLEX_OBS_DIR);
+		return OpenmrsUtil.getDirectoryInApplicationDataDirectory(dir);
+	}
+	
+	private synchronized boolean isUseFileChannel() {
+		if (useFileChannel == null) {
+			String value = Context.getAdministrationService().getGlobalProperty(GP_USE_FILE_CHANNEL, "false");
+			useFileChannel = Boolean.parseBoolean(value.trim());
+		}
+		return useFileChannel;
+	}
+	
+	private synchronized FsyncPolicy getFsyncPolicy() {
+		if (fsyncPolicy == null) {
+			AdministrationService as = Context.getAdministrationService();
+			String value = as.getGlobalProperty(GP_FSYNC_POLICY, FsyncPolicy.NONE.name());
+			try {
+				fsyncPolicy = FsyncPolicy.valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				log.warn("Invalid value for " + GP_FSYNC_POLICY + ": " + value + ". Defaulting to " + FsyncPolicy.NONE);
+				fsyncPolicy = FsyncPolicy.NONE;
+			}
+		}
+		return fsyncPolicy;
+	}
 }
@@ -0,0 +1,55 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.store;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.openmrs.module.shr.contenthandler.api.Content;
+
+/**
+ * A storage backend for content payloads.
+ * <p>
+ * Content is stored under a key chosen by the caller. The {@link org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler}
+ * uses the key that is saved as the obs value_complex. Implementations must be thread safe.
+ */
+public interface ContentStore {
+
+	/**
+	 * Store the content under the specified key, replacing any existing content with the same key.
+	 */
+	void put(String key, Content content) throws IOException;
+
+	/**
+	 * @return The content stored under the key, or null if there is none
+	 */
+	Content get(String key) throws IOException;
+
+	/**
+	 * Open a reader for the JSON representation of the content stored under the key,
+	 * e.g. for reading only the metadata. The caller must close the reader.
+	 * 
+	 * @return A reader, or null if there is no content stored under the key
+	 */
+	Reader stream(String key) throws IOException;
+
+	/**
+	 * Remove the content stored under the key.
+	 * 
+	 * @return true if content was removed
+	 */
+	boolean delete(String key) throws IOException;
+
+	boolean exists(String key) throws IOException;
+}
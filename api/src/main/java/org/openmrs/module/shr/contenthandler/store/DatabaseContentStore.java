@@ -0,0 +1,195 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.jdbc.Work;
+import org.openmrs.module.shr.contenthandler.ContentSerializer;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.metrics.ContentHandlerMetrics;
+
+/**
+ * Stores content as UTF-8 JSON in a BLOB column of the {@value #TABLE} table, using the connection
+ * of the current Hibernate session so that content is saved in the same transaction as the obs.
+ * <p>
+ * Reads are streamed from the BLOB. Writes serialize the content into a single buffer which is then streamed to the driver.
+ */
+public class DatabaseContentStore implements ContentStore {
+
+	public static final String TABLE = "shr_contenthandler_content";
+
+	private final SessionFactory sessionFactory;
+
+
+	public DatabaseContentStore(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+
+	@Override
+	public void put(final String key, Content content) throws IOException {
+		final ExposedByteArrayOutputStream buffer = new ExposedByteArrayOutputStream();
+		ContentSerializer.write(content, buffer);
+
+		sessionFactory.getCurrentSession().doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				deleteRow(connection, key);
+
+				PreparedStatement ps = connection.prepareStatement("insert into " + TABLE + " (content_key, content, date_created) values (?, ?, ?)");
+				try {
+					ps.setString(1, key);
+					ps.setBinaryStream(2, buffer.toInputStream(), buffer.size());
+					ps.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+					ps.executeUpdate();
+				} finally {
+					ps.close();
+				}
+			}
+		});
+		ContentHandlerMetrics.recordWrite(buffer.size());
+	}
+
+	@Override
+	public Content get(String key) throws IOException {
+		Reader in = stream(key);
+		if (in==null) {
+			return null;
+		}
+
+		try {
+			return ContentSerializer.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public Reader stream(final String key) throws IOException {
+		final Reader[] res = new Reader[1];
+
+		sessionFactory.getCurrentSession().doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				final PreparedStatement ps = connection.prepareStatement("select content from " + TABLE + " where content_key = ?");
+				boolean open = false;
+				try {
+					ps.setString(1, key);
+					final ResultSet rs = ps.executeQuery();
+					if (rs.next()) {
+						InputStream in = rs.getBinaryStream(1);
+						//the result set is closed along with the reader
+						res[0] = new FilterReader(new InputStreamReader(in, ContentSerializer.CHARSET)) {
+							@Override
+							public void close() throws IOException {
+								try {
+									super.close();
+								} finally {
+									closeQuietly(rs, ps);
+								}
+							}
+						};
+						open = true;
+					}
+				} finally {
+					if (!open) {
+						ps.close();
+					}
+				}
+			}
+		});
+
+		return res[0];
+	}
+
+	@Override
+	public boolean delete(final String key) {
+		final boolean[] res = new boolean[1];
+
+		sessionFactory.getCurrentSession().doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				res[0] = deleteRow(connection, key);
+			}
+		});
+
+		return res[0];
+	}
+
+	@Override
+	public boolean exists(final String key) {
+		final boolean[] res = new boolean[1];
+
+		sessionFactory.getCurrentSession().doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement ps = connection.prepareStatement("select 1 from " + TABLE + " where content_key = ?");
+				try {
+					ps.setString(1, key);
+					ResultSet rs = ps.executeQuery();
+					res[0] = rs.next();
+					rs.close();
+				} finally {
+					ps.close();
+				}
+			}
+		});
+
+		return res[0];
+	}
+
+	private static boolean deleteRow(Connection connection, String key) throws SQLException {
+		PreparedStatement ps = connection.prepareStatement("delete from " + TABLE + " where content_key = ?");
+		try {
+			ps.setString(1, key);
+			return ps.executeUpdate() > 0;
+		} finally {
+			ps.close();
+		}
+	}
+
+	private static void closeQuietly(ResultSet rs, PreparedStatement ps) {
+		try {
+			rs.close();
+		} catch (SQLException ex) {
+			//ignore
+		}
+		try {
+			ps.close();
+		} catch (SQLException ex) {
+			//ignore
+		}
+	}
+
+	/**
+	 * Allows streaming the written bytes without copying the buffer.
+	 */
+	private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+		InputStream toInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+}
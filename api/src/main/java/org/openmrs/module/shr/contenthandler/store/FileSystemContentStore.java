@@ -0,0 +1,146 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.store;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import org.openmrs.module.shr.contenthandler.ContentSerializer;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler.FsyncPolicy;
+
+/**
+ * Stores each content item as a JSON file in a directory. This is the layout used by previous versions of
+ * {@link ContentObsHandler}, with the key being the file name.
+ */
+public class FileSystemContentStore implements SeekableContentStore {
+
+	private final File dir;
+	private final boolean useFileChannel;
+	private final FsyncPolicy fsyncPolicy;
+
+
+	public FileSystemContentStore(File dir, boolean useFileChannel, FsyncPolicy fsyncPolicy) {
+		this.dir = dir;
+		this.useFileChannel = useFileChannel;
+		this.fsyncPolicy = fsyncPolicy;
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * @return The file that content with the specified key is stored in
+	 */
+	public File getFile(String key) {
+		File file = new File(dir, key);
+		if (!file.getParentFile().equals(dir)) {
+			throw new IllegalArgumentException("Invalid content key: " + key);
+		}
+		return file;
+	}
+
+	@Override
+	public void put(String key, Content content) throws IOException {
+		ContentObsHandler.writeContent(content, getFile(key), useFileChannel, fsyncPolicy);
+	}
+
+	@Override
+	public Content get(String key) throws IOException {
+		Reader in = stream(key);
+		if (in==null) {
+			return null;
+		}
+
+		try {
+			return ContentSerializer.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public Reader stream(String key) throws IOException {
+		File file = getFile(key);
+		if (!file.exists()) {
+			return null;
+		}
+
+		try {
+			return new BufferedReader(new InputStreamReader(new FileInputStream(file), ContentObsHandler.FILE_CHARSET));
+		} catch (FileNotFoundException ex) {
+			//deleted in the meantime
+			return null;
+		}
+	}
+
+	@Override
+	public StoredContent openStored(String key) throws IOException {
+		File file = getFile(key);
+		if (!file.exists()) {
+			return null;
+		}
+
+		final FileChannel channel;
+		try {
+			channel = new FileInputStream(file).getChannel();
+		} catch (FileNotFoundException ex) {
+			//deleted in the meantime
+			return null;
+		}
+		final long length = channel.size();
+
+		return new StoredContent() {
+			@Override
+			public long length() {
+				return length;
+			}
+
+			@Override
+			public Charset getCharset() {
+				return ContentObsHandler.FILE_CHARSET;
+			}
+
+			@Override
+			public int read(ByteBuffer dst, long position) throws IOException {
+				return channel.read(dst, position);
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	@Override
+	public boolean delete(String key) {
+		return getFile(key).delete();
+	}
+
+	@Override
+	public boolean exists(String key) {
+		return getFile(key).exists();
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.store;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openmrs.module.shr.contenthandler.ContentSerializer;
+import org.openmrs.module.shr.contenthandler.api.Content;
+
+/**
+ * Keeps content in memory. Intended for tests and benchmarks; stored content is lost when the server restarts.
+ */
+public class InMemoryContentStore implements ContentStore {
+
+	private final ConcurrentMap<String, Content> store = new ConcurrentHashMap<String, Content>();
+
+
+	@Override
+	public void put(String key, Content content) {
+		store.put(key, content);
+	}
+
+	@Override
+	public Content get(String key) {
+		return store.get(key);
+	}
+
+	@Override
+	public Reader stream(String key) throws IOException {
+		Content content = store.get(key);
+		return content!=null ? new StringReader(ContentSerializer.toJson(content)) : null;
+	}
+
+	@Override
+	public boolean delete(String key) {
+		return store.remove(key)!=null;
+	}
+
+	@Override
+	public boolean exists(String key) {
+		return store.containsKey(key);
+	}
+
+	public int size() {
+		return store.size();
+	}
+
+	public void clear() {
+		store.clear();
+	}
+}
@@ -0,0 +1,890 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.shr.contenthandler.ContentSerializer;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.metrics.ContentHandlerMetrics;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler.FsyncPolicy;
+
+/**
+ * An append-only store that writes content to large segment files rather than to a file per content item,
+ * so that writes are sequential and the number of files stays small.
+ * <p>
+ * Each record holds a key and the content as JSON. Deleting content appends a tombstone record.
+ * Content is located through an in-memory index of record offsets, which is rebuilt when the store is opened,
+ * from the offset index file written for each full segment or, for the current segment, by scanning its record headers.
+ * Reads are positional reads on a shared {@link FileChannel} and are checked against the record's CRC32.
+ * <p>
+ * Once the current segment reaches the maximum segment size, a new segment is started. Space taken by replaced and
+ * deleted content is reclaimed by {@link #compact(double)}, which copies the live records of mostly dead segments
+ * to the current segment. Compacted segments are removed at the next compaction, so that reads in progress can complete.
+ * <p>
+ * The directory is locked while the store is open, so that it can't be opened twice. A full segment with an invalid record
+ * is renamed with a {@value #QUARANTINE_SUFFIX} suffix and left out, rather than failing to open the store.
+ */
+public class PackFileContentStore implements SeekableContentStore {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".pack";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final String QUARANTINE_SUFFIX = ".corrupt";
+	private static final String LOCK_FILE = ".lock";
+
+	private static final int RECORD_MAGIC = 0x5348504B; //SHPK
+	private static final int INDEX_MAGIC = 0x53484958; //SHIX
+	private static final byte TYPE_PUT = 0;
+	private static final byte TYPE_DELETE = 1;
+	/**
+	 * Magic, type, CRC, key length and data length, followed by the key and the data
+	 */
+	private static final int HEADER_BYTES = 4 + 1 + 4 + 2 + 4;
+	private static final int CRC_OFFSET = 5;
+	private static final int DATA_LENGTH_OFFSET = 11;
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_READ_ATTEMPTS = 3;
+
+	private final File dir;
+	private final long maxSegmentBytes;
+	private final FsyncPolicy fsyncPolicy;
+
+	private final ConcurrentMap<String, Record> index = new ConcurrentHashMap<String, Record>();
+	private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+	/**
+	 * The segment that is written to and its records, guarded by this
+	 */
+	private Segment active;
+	private List<Record> activeRecords;
+	/**
+	 * Compacted segments that are removed at the next compaction, guarded by this
+	 */
+	private final List<Segment> retired = new ArrayList<Segment>();
+	private FileLock lock;
+
+
+	/**
+	 * Opens the store, creating the directory if it doesn't exist and rebuilding the index from the segments in it.
+	 * 
+	 * @param dir The directory that the segment files are stored in
+	 * @param maxSegmentBytes The size from which a new segment is started
+	 * @param fsyncPolicy Determines if and how records are synced to the storage device after they're written
+	 * @throws IOException If the directory is locked by a store that is already open, possibly in another process
+	 * @should not open a directory that is already open
+	 * @should quarantine a full segment with an invalid record
+	 */
+	public static PackFileContentStore open(File dir, long maxSegmentBytes, FsyncPolicy fsyncPolicy) throws IOException {
+		PackFileContentStore res = new PackFileContentStore(dir, maxSegmentBytes, fsyncPolicy);
+		try {
+			res.load();
+		} catch (IOException ex) {
+			res.close();
+			throw ex;
+		}
+		return res;
+	}
+
+	private PackFileContentStore(File dir, long maxSegmentBytes, FsyncPolicy fsyncPolicy) {
+		this.dir = dir;
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.fsyncPolicy = fsyncPolicy;
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	private static class Record {
+		final int segment;
+		final byte type;
+		final String key;
+		final long offset;
+		final long dataOffset;
+		final int dataLength;
+		final int crc;
+
+		Record(int segment, byte type, String key, long offset, long dataOffset, int dataLength, int crc) {
+			this.segment = segment;
+			this.type = type;
+			this.key = key;
+			this.offset = offset;
+			this.dataOffset = dataOffset;
+			this.dataLength = dataLength;
+			this.crc = crc;
+		}
+
+		long getLength() {
+			return dataOffset - offset + dataLength;
+		}
+	}
+
+	private static class Segment {
+		final int id;
+		final File file;
+		final AtomicLong liveBytes = new AtomicLong();
+		volatile long size;
+		volatile boolean retired = false;
+		private volatile FileChannel channel;
+
+		Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.size = channel.size();
+		}
+
+		/**
+		 * Returns the channel, reopening it if it was closed because a thread using it was interrupted.
+		 */
+		synchronized FileChannel getChannel() throws IOException {
+			if (!channel.isOpen()) {
+				if (retired) {
+					throw new ClosedChannelException();
+				}
+				channel = new RandomAccessFile(file, "rw").getChannel();
+			}
+			return channel;
+		}
+
+		int read(ByteBuffer dst, long position) throws IOException {
+			try {
+				return getChannel().read(dst, position);
+			} catch (ClosedByInterruptException ex) {
+				throw ex;
+			} catch (ClosedChannelException ex) {
+				//closed by another thread being interrupted
+				return getChannel().read(dst, position);
+			}
+		}
+
+		void readFully(ByteBuffer dst, long position) throws IOException {
+			while (dst.hasRemaining()) {
+				int read = read(dst, position);
+				if (read < 0) {
+					throw new EOFException("Unexpected end of " + file);
+				}
+				position += read;
+			}
+		}
+
+		synchronized void close() {
+			IOUtils.closeQuietly(channel);
+		}
+	}
+
+	private interface RecordData {
+		/**
+		 * Writes the record data at the position of the channel
+		 * 
+		 * @return The CRC32 of the data
+		 */
+		int write(FileChannel channel) throws IOException;
+	}
+
+
+	private synchronized void load() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create the directory " + dir);
+		}
+		lock(new File(dir, LOCK_FILE));
+
+		File[] files = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+
+		for (File file : files) {
+			String id = file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length());
+			try {
+				segments.put(Integer.valueOf(id), new Segment(Integer.valueOf(id), file));
+			} catch (NumberFormatException ex) {
+				log.warn("Ignoring unexpected file " + file);
+			}
+		}
+
+		List<Record> records = null;
+		for (Segment segment : new ArrayList<Segment>(segments.values())) {
+			boolean last = segment.id == segments.lastKey();
+			try {
+				records = readRecords(segment, last);
+			} catch (IOException ex) {
+				if (last) {
+					throw ex;
+				}
+				quarantine(segment, ex);
+				continue;
+			}
+			for (Record record : records) {
+				apply(record);
+			}
+		}
+
+		if (segments.isEmpty()) {
+			startSegment(1);
+		} else {
+			active = segments.lastEntry().getValue();
+			activeRecords = records;
+		}
+		log.info("Opened pack file store " + dir + " with " + index.size() + " content items in " + segments.size() + " segments");
+	}
+
+	private void lock(File file) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException ex) {
+			//locked by this JVM
+			lock = null;
+		}
+
+		if (lock==null) {
+			channel.close();
+			throw new IOException("The pack file store in " + dir + " is already open");
+		}
+	}
+
+	/**
+	 * Leaves a segment that can't be read out of the store, keeping the file for recovery.
+	 * Callers must hold the lock on this.
+	 */
+	private void quarantine(Segment segment, IOException cause) throws IOException {
+		segments.remove(segment.id);
+		segment.retired = true;
+		segment.close();
+		getIndexFile(segment).delete();
+
+		File target = new File(segment.file.getPath() + QUARANTINE_SUFFIX);
+		if (!segment.file.renameTo(target)) {
+			throw new IOException("Unable to quarantine the invalid segment " + segment.file, cause);
+		}
+		log.error("Quarantined the invalid segment " + segment.file + " as " + target + "; its content isn't available", cause);
+	}
+
+	/**
+	 * Reads the records of a segment from its offset index, or by scanning the segment if there is no (valid) index.
+	 * 
+	 * @param repair If true, an incomplete record at the end of the segment (from an interrupted write) is truncated
+	 */
+	private List<Record> readRecords(Segment segment, boolean repair) throws IOException {
+		List<Record> res = readIndex(segment);
+		return res!=null ? res : scan(segment, repair);
+	}
+
+	private List<Record> scan(Segment segment, boolean repair) throws IOException {
+		List<Record> res = new ArrayList<Record>();
+		long size = segment.getChannel().size();
+		long offset = 0;
+
+		while (offset < size) {
+			Record record = readRecord(segment, offset, size);
+			if (record==null) {
+				if (!repair) {
+					throw new IOException("Invalid record at offset " + offset + " of " + segment.file);
+				}
+				log.warn("Truncating " + segment.file + " at offset " + offset + " after an incomplete record");
+				segment.getChannel().truncate(offset);
+				break;
+			}
+			res.add(record);
+			offset = record.dataOffset + record.dataLength;
+		}
+
+		segment.size = offset;
+		return res;
+	}
+
+	/**
+	 * @return The record at the offset, or null if there isn't a complete record at the offset
+	 */
+	private Record readRecord(Segment segment, long offset, long size) throws IOException {
+		if (offset + HEADER_BYTES > size) {
+			return null;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		segment.readFully(header, offset);
+		header.flip();
+		if (header.getInt() != RECORD_MAGIC) {
+			return null;
+		}
+		byte type = header.get();
+		int crc = header.getInt();
+		int keyLength = header.getShort() & 0xFFFF;
+		int dataLength = header.getInt();
+
+		long dataOffset = offset + HEADER_BYTES + keyLength;
+		if ((type!=TYPE_PUT && type!=TYPE_DELETE) || dataLength < 0 || dataOffset + dataLength > size) {
+			return null;
+		}
+
+		ByteBuffer key = ByteBuffer.allocate(keyLength);
+		segment.readFully(key, offset + HEADER_BYTES);
+		return new Record(segment.id, type, new String(key.array(), ContentSerializer.CHARSET), offset, dataOffset, dataLength, crc);
+	}
+
+	private static File getIndexFile(Segment segment) {
+		return new File(segment.file.getParentFile(), SEGMENT_PREFIX + segment.id + INDEX_SUFFIX);
+	}
+
+	/**
+	 * @return The records from the segment's offset index, or null if there is no index matching the segment
+	 */
+	private List<Record> readIndex(Segment segment) {
+		File file = getIndexFile(segment);
+		if (!file.exists()) {
+			return null;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != INDEX_MAGIC || in.readLong() != segment.getChannel().size()) {
+				log.warn("Ignoring outdated offset index " + file);
+				return null;
+			}
+
+			int count = in.readInt();
+			List<Record> res = new ArrayList<Record>(count);
+			for (int i=0; i<count; i++) {
+				res.add(new Record(segment.id, in.readByte(), in.readUTF(), in.readLong(), in.readLong(), in.readInt(), in.readInt()));
+			}
+			return res;
+		} catch (IOException ex) {
+			log.warn("Ignoring unreadable offset index " + file, ex);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private void writeIndex(Segment segment, List<Record> records) throws IOException {
+		File file = getIndexFile(segment);
+		File tmp = new File(file.getPath() + ".tmp");
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(INDEX_MAGIC);
+			out.writeLong(segment.size);
+			out.writeInt(records.size());
+			for (Record record : records) {
+				out.writeByte(record.type);
+				out.writeUTF(record.key);
+				out.writeLong(record.offset);
+				out.writeLong(record.dataOffset);
+				out.writeInt(record.dataLength);
+				out.writeInt(record.crc);
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Unable to write the offset index " + file);
+		}
+	}
+
+	/**
+	 * Updates the index (and the live size of the segments) for a record. Callers must hold the lock on this,
+	 * unless the store is being loaded.
+	 */
+	private void apply(Record record) {
+		Record previous;
+		if (record.type == TYPE_PUT) {
+			previous = index.put(record.key, record);
+			segments.get(record.segment).liveBytes.addAndGet(record.getLength());
+		} else {
+			previous = index.remove(record.key);
+		}
+
+		if (previous!=null) {
+			Segment segment = segments.get(previous.segment);
+			if (segment!=null) {
+				segment.liveBytes.addAndGet(-previous.getLength());
+			}
+		}
+	}
+
+	private void startSegment(int id) throws IOException {
+		Segment segment = new Segment(id, new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+		segments.put(id, segment);
+		active = segment;
+		activeRecords = new ArrayList<Record>();
+	}
+
+	/**
+	 * Returns the segment to append to, starting a new segment (and writing the offset index of the current one)
+	 * if the current segment is full. Callers must hold the lock on this.
+	 */
+	private Segment getWritableSegment() throws IOException {
+		if (active.size >= maxSegmentBytes) {
+			writeIndex(active, activeRecords);
+			startSegment(active.id + 1);
+		}
+		return active;
+	}
+
+	/**
+	 * Appends a record to the current segment and applies it to the index. Callers must hold the lock on this,
+	 * and must call {@link #force(Segment)} on the segment the record was appended to once they have released it.
+	 * 
+	 * @param data The data to write, or null for a tombstone
+	 */
+	private Record append(byte type, String key, RecordData data) throws IOException {
+		byte[] keyBytes = key.getBytes(ContentSerializer.CHARSET);
+		if (keyBytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Key too long: " + key);
+		}
+
+		Segment segment = getWritableSegment();
+		long offset = segment.size;
+		boolean appended = false;
+		try {
+			FileChannel channel = segment.getChannel();
+
+			//the data length is only set once the data is written, so that an interrupted write can be detected
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + keyBytes.length);
+			header.putInt(RECORD_MAGIC).put(type).putInt(0).putShort((short) keyBytes.length).putInt(-1).put(keyBytes);
+			header.flip();
+			writeFully(channel, header, offset);
+
+			long dataOffset = offset + header.capacity();
+			int crc = 0;
+			long dataLength = 0;
+			if (data!=null) {
+				channel.position(dataOffset);
+				crc = data.write(channel);
+				dataLength = channel.position() - dataOffset;
+				if (dataLength > Integer.MAX_VALUE) {
+					throw new IOException("Content too large for a pack file record: " + key);
+				}
+			}
+
+			ByteBuffer patch = ByteBuffer.allocate(4);
+			patch.putInt(crc).flip();
+			writeFully(channel, patch, offset + CRC_OFFSET);
+			patch.clear();
+			patch.putInt((int) dataLength).flip();
+			writeFully(channel, patch, offset + DATA_LENGTH_OFFSET);
+
+			segment.size = dataOffset + dataLength;
+			Record record = new Record(segment.id, type, key, offset, dataOffset, (int) dataLength, crc);
+			activeRecords.add(record);
+			apply(record);
+			appended = true;
+			return record;
+		} finally {
+			if (!appended) {
+				try {
+					segment.getChannel().truncate(offset);
+				} catch (IOException ex) {
+					log.error("Unable to truncate " + segment.file + " after a failed write", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flushes the appended records of the segment to disk, as required by the fsync policy. Doesn't need the lock on this,
+	 * so that concurrent writers can append while a previous write is being flushed.
+	 */
+	private void force(Segment segment) throws IOException {
+		switch (fsyncPolicy) {
+			case DATA:
+				segment.getChannel().force(false);
+				break;
+			case ALL:
+				segment.getChannel().force(true);
+				break;
+			default:
+				break;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+		while (src.hasRemaining()) {
+			position += channel.write(src, position);
+		}
+	}
+
+	/**
+	 * The content is serialized before the lock is taken and flushed to disk after it has been released,
+	 * so that the lock is only held while the record is appended to the segment.
+	 */
+	@Override
+	public void put(String key, Content content) throws IOException {
+		final RecordBuffer buffer = new RecordBuffer(content.getPayloadLength() / 3 * 4 + 1024);
+		CRC32 crc = new CRC32();
+		OutputStream out = new CheckedOutputStream(buffer, crc);
+		ContentSerializer.write(content, out);
+		out.flush();
+		final int dataCrc = (int) crc.getValue();
+
+		Record record;
+		Segment segment;
+		synchronized (this) {
+			record = append(TYPE_PUT, key, new RecordData() {
+				@Override
+				public int write(FileChannel channel) throws IOException {
+					ByteBuffer src = buffer.toByteBuffer();
+					while (src.hasRemaining()) {
+						channel.write(src);
+					}
+					return dataCrc;
+				}
+			});
+			segment = active;
+		}
+		force(segment);
+		ContentHandlerMetrics.recordWrite(record.getLength());
+	}
+
+	/**
+	 * A byte array output stream whose contents can be written without copying them.
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer(int size) {
+			super(size);
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+
+	@Override
+	public Content get(String key) throws IOException {
+		for (int attempt=0; attempt<MAX_READ_ATTEMPTS; attempt++) {
+			Record record = index.get(key);
+			if (record==null) {
+				return null;
+			}
+			Segment segment = segments.get(record.segment);
+			if (segment==null) {
+				//moved by a compaction
+				continue;
+			}
+
+			ByteBuffer data = ByteBuffer.allocate(record.dataLength);
+			try {
+				segment.readFully(data, record.dataOffset);
+			} catch (ClosedByInterruptException ex) {
+				throw ex;
+			} catch (ClosedChannelException ex) {
+				//the segment was removed after a compaction
+				continue;
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(data.array(), 0, record.dataLength);
+			if ((int) crc.getValue() != record.crc) {
+				throw new IOException("Checksum mismatch for content " + key + " in " + segment.file);
+			}
+			return ContentSerializer.read(new ByteArrayInputStream(data.array()));
+		}
+		throw new IOException("Content " + key + " was moved repeatedly while being read");
+	}
+
+	/**
+	 * Streams the JSON of the content directly from the segment. The data isn't checked against its CRC.
+	 */
+	@Override
+	public Reader stream(String key) throws IOException {
+		Record record = index.get(key);
+		if (record==null) {
+			return null;
+		}
+		Segment segment = segments.get(record.segment);
+		if (segment==null) {
+			//moved by a compaction
+			record = index.get(key);
+			segment = record!=null ? segments.get(record.segment) : null;
+			if (segment==null) {
+				return null;
+			}
+		}
+		return new InputStreamReader(new BufferedInputStream(new RecordInputStream(segment, record), WRITE_BUFFER_SIZE), ContentSerializer.CHARSET);
+	}
+
+	private static class RecordInputStream extends InputStream {
+		private final Segment segment;
+		private final long end;
+		private long position;
+
+		RecordInputStream(Segment segment, Record record) {
+			this.segment = segment;
+			this.position = record.dataOffset;
+			this.end = record.dataOffset + record.dataLength;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			int read = segment.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of " + segment.file);
+			}
+			position += read;
+			return read;
+		}
+	}
+
+	/**
+	 * Opens the record data for positional reads. The data isn't checked against its CRC.
+	 */
+	@Override
+	public StoredContent openStored(String key) throws IOException {
+		final Record record = index.get(key);
+		if (record==null) {
+			return null;
+		}
+		final Segment segment = segments.get(record.segment);
+		if (segment==null) {
+			//moved by a compaction; let the caller read it in full
+			return null;
+		}
+
+		return new StoredContent() {
+			@Override
+			public long length() {
+				return record.dataLength;
+			}
+
+			@Override
+			public Charset getCharset() {
+				return ContentSerializer.CHARSET;
+			}
+
+			@Override
+			public int read(ByteBuffer dst, long position) throws IOException {
+				if (position >= record.dataLength) {
+					return -1;
+				}
+				if (dst.remaining() > record.dataLength - position) {
+					ByteBuffer slice = dst.duplicate();
+					slice.limit(slice.position() + (int) (record.dataLength - position));
+					int read = segment.read(slice, record.dataOffset + position);
+					dst.position(slice.position());
+					return read;
+				}
+				return segment.read(dst, record.dataOffset + position);
+			}
+
+			@Override
+			public void close() {
+				//the segment channel is shared
+			}
+		};
+	}
+
+	@Override
+	public boolean delete(String key) throws IOException {
+		Segment segment;
+		synchronized (this) {
+			if (!index.containsKey(key)) {
+				return false;
+			}
+			append(TYPE_DELETE, key, null);
+			segment = active;
+		}
+		force(segment);
+		return true;
+	}
+
+	@Override
+	public boolean exists(String key) {
+		return index.containsKey(key);
+	}
+
+	/**
+	 * Compacts the segments (other than the current one) in which at least the specified fraction of the space
+	 * is taken by replaced or deleted content. The live records of such a segment are copied to the current segment,
+	 * after which the segment is retired. Segments retired by the previous compaction are removed.
+	 * 
+	 * @param minGarbageRatio E.g. 0.5 to compact segments that are at least half garbage
+	 * @return The number of segments compacted
+	 */
+	public int compact(double minGarbageRatio) throws IOException {
+		removeRetiredSegments();
+
+		int compacted = 0;
+		for (Segment segment : new ArrayList<Segment>(segments.values())) {
+			synchronized (this) {
+				if (segment==active || segment.size==0 || getGarbageRatio(segment) < minGarbageRatio) {
+					continue;
+				}
+			}
+
+			List<Record> records = readRecords(segment, false);
+			for (Record record : records) {
+				synchronized (this) {
+					if (record.type==TYPE_PUT) {
+						Record current = index.get(record.key);
+						if (current!=null && current.segment==segment.id && current.offset==record.offset) {
+							copy(segment, record);
+						}
+					} else if (!index.containsKey(record.key) && segment.id!=segments.firstKey()) {
+						//the deleted content may still be in an older segment
+						append(TYPE_DELETE, record.key, null);
+					}
+				}
+			}
+
+			//the copies must be on disk before the segment is retired
+			Segment target;
+			synchronized (this) {
+				target = active;
+			}
+			force(target);
+
+			synchronized (this) {
+				segments.remove(segment.id);
+				segment.retired = true;
+				retired.add(segment);
+			}
+			compacted++;
+			log.debug("Compacted " + segment.file + " (" + records.size() + " records)");
+		}
+
+		if (compacted > 0) {
+			log.info("Compacted " + compacted + " segments of " + dir);
+		}
+		return compacted;
+	}
+
+	private void copy(final Segment source, final Record record) throws IOException {
+		append(TYPE_PUT, record.key, new RecordData() {
+			@Override
+			public int write(FileChannel channel) throws IOException {
+				long copied = 0;
+				while (copied < record.dataLength) {
+					long transferred = source.getChannel().transferTo(record.dataOffset + copied, record.dataLength - copied, channel);
+					if (transferred <= 0) {
+						throw new EOFException("Unexpected end of " + source.file);
+					}
+					copied += transferred;
+				}
+				return record.crc;
+			}
+		});
+	}
+
+	private synchronized void removeRetiredSegments() {
+		for (Segment segment : retired) {
+			segment.close();
+			getIndexFile(segment).delete();
+			if (!segment.file.delete()) {
+				log.warn("Unable to remove the compacted segment " + segment.file);
+			}
+		}
+		retired.clear();
+	}
+
+	private static double getGarbageRatio(Segment segment) {
+		return segment.size==0 ? 0 : 1 - (double) segment.liveBytes.get() / segment.size;
+	}
+
+	/**
+	 * @return The number of segment files
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return The total size of the segment files
+	 */
+	public long getTotalBytes() {
+		long res = 0;
+		for (Segment segment : segments.values()) {
+			res += segment.size;
+		}
+		return res;
+	}
+
+	/**
+	 * @return The size of the records of the content that is currently stored
+	 */
+	public long getLiveBytes() {
+		long res = 0;
+		for (Segment segment : segments.values()) {
+			res += segment.liveBytes.get();
+		}
+		return res;
+	}
+
+	/**
+	 * Closes the segment files. The store can't be used afterwards.
+	 */
+	public synchronized void close() {
+		removeRetiredSegments();
+		for (Segment segment : segments.values()) {
+			segment.retired = true;
+			segment.close();
+		}
+
+		if (lock!=null) {
+			IOUtils.closeQuietly(lock.channel());
+			lock = null;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A content store that can read parts of the stored JSON representation of content without reading all of it,
+ * e.g. for returning a byte range of a large payload.
+ * 
+ * @see org.openmrs.module.shr.contenthandler.ContentSerializer#readPayloadRange(StoredContent, long, int)
+ */
+public interface SeekableContentStore extends ContentStore {
+
+	/**
+	 * The stored JSON representation of a content item, open for positional reads.
+	 */
+	public static interface StoredContent extends Closeable {
+		/**
+		 * @return The size of the stored JSON in bytes
+		 */
+		long length();
+
+		/**
+		 * @return The charset that the JSON is encoded with
+		 */
+		Charset getCharset();
+
+		/**
+		 * Reads bytes starting at the specified position into the buffer, as {@link java.nio.channels.FileChannel#read(ByteBuffer, long)}.
+		 * 
+		 * @return The number of bytes read, or -1 if the position is at or after the end
+		 */
+		int read(ByteBuffer dst, long position) throws IOException;
+	}
+
+	/**
+	 * Open the stored JSON representation of the content for positional reads. The caller must close it.
+	 * 
+	 * @return The stored content, or null if there is no content stored under the key or if it can't be read positionally
+	 * (in which case the caller should fall back to {@link #get(String)})
+	 */
+	StoredContent openStored(String key) throws IOException;
+}
@@ -0,0 +1,109 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.store;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.openmrs.module.shr.contenthandler.api.Content;
+
+/**
+ * Stores content with a payload smaller than a threshold in one store (e.g. inline in the database) and larger content
+ * in another (e.g. files), so that saving small documents doesn't cost a file create and sync.
+ * <p>
+ * Lookups check the store for small content first, so reading small content doesn't touch the store for large content.
+ * Saving large content doesn't touch the small store, so content can't be replaced by content in the larger size class
+ * without deleting it first; {@link org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler} always saves
+ * content under a new key. When small content replaces large content, an outdated copy remains in the large store,
+ * where it's shadowed by the small store.
+ */
+public class SizeThresholdContentStore implements SeekableContentStore {
+
+	private final ContentStore small;
+	private final ContentStore large;
+	private final int thresholdBytes;
+
+
+	/**
+	 * @param small The store for content with a payload smaller than the threshold
+	 * @param large The store for all other content
+	 * @param thresholdBytes The payload size from which content is stored in the large store
+	 */
+	public SizeThresholdContentStore(ContentStore small, ContentStore large, int thresholdBytes) {
+		this.small = small;
+		this.large = large;
+		this.thresholdBytes = thresholdBytes;
+	}
+
+	public ContentStore getSmallStore() {
+		return small;
+	}
+
+	public ContentStore getLargeStore() {
+		return large;
+	}
+
+	public int getThresholdBytes() {
+		return thresholdBytes;
+	}
+
+	/**
+	 * Unlike other stores, this doesn't replace small content with large content; delete the content first.
+	 * 
+	 * @should not access the small store for large content
+	 */
+	@Override
+	public void put(String key, Content content) throws IOException {
+		if (content.getPayloadLength() < thresholdBytes) {
+			small.put(key, content);
+		} else {
+			large.put(key, content);
+		}
+	}
+
+	@Override
+	public Content get(String key) throws IOException {
+		Content res = small.get(key);
+		return res!=null ? res : large.get(key);
+	}
+
+	@Override
+	public Reader stream(String key) throws IOException {
+		Reader res = small.stream(key);
+		return res!=null ? res : large.stream(key);
+	}
+
+	/**
+	 * Content in the small store is returned as not seekable; it's small enough to be read in full.
+	 */
+	@Override
+	public StoredContent openStored(String key) throws IOException {
+		if (small.exists(key) || !(large instanceof SeekableContentStore)) {
+			return null;
+		}
+		return ((SeekableContentStore) large).openStored(key);
+	}
+
+	@Override
+	public boolean delete(String key) throws IOException {
+		boolean deletedSmall = small.delete(key);
+		boolean deletedLarge = large.delete(key);
+		return deletedSmall || deletedLarge;
+	}
+
+	@Override
+	public boolean exists(String key) throws IOException {
+		return small.exists(key) || large.exists(key);
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.store;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.shr.contenthandler.api.Content;
+
+/**
+ * A two tier file store. New content is written to a hot directory (e.g. on a local SSD) and is moved to a cold
+ * directory by {@link #migrate()} once it's older than the maximum age, or when the hot tier grows beyond its maximum size.
+ * Lookups check the hot tier first and then the cold tier.
+ * <p>
+ * Content is copied to the cold tier before it's removed from the hot tier, so it can always be found in at least one of them.
+ * <p>
+ * The size of the hot tier is counted when the store is created and kept up to date by puts, deletes and migrations,
+ * so changes made to the hot directory by other means aren't included in it.
+ */
+public class TieredContentStore implements SeekableContentStore {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	private final FileSystemContentStore hot;
+	private final FileSystemContentStore cold;
+	private final long maxAgeMillis;
+	private final long maxHotBytes;
+	private final AtomicLong hotBytes = new AtomicLong();
+
+
+	/**
+	 * @param hot The store for recent content
+	 * @param cold The store that content is migrated to
+	 * @param maxAgeMillis Content older than this is migrated to the cold tier
+	 * @param maxHotBytes The oldest content is migrated when the hot tier grows beyond this size (0 for unlimited)
+	 */
+	public TieredContentStore(FileSystemContentStore hot, FileSystemContentStore cold, long maxAgeMillis, long maxHotBytes) {
+		this.hot = hot;
+		this.cold = cold;
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxHotBytes = maxHotBytes;
+
+		for (File file : listHotFiles()) {
+			hotBytes.addAndGet(file.length());
+		}
+	}
+
+	public FileSystemContentStore getHotTier() {
+		return hot;
+	}
+
+	public FileSystemContentStore getColdTier() {
+		return cold;
+	}
+
+	@Override
+	public void put(String key, Content content) throws IOException {
+		File file = hot.getFile(key);
+		long previousLength = file.length();
+		hot.put(key, content);
+		hotBytes.addAndGet(file.length() - previousLength);
+	}
+
+	@Override
+	public Content get(String key) throws IOException {
+		Content res = hot.get(key);
+		return res!=null ? res : cold.get(key);
+	}
+
+	@Override
+	public Reader stream(String key) throws IOException {
+		Reader res = hot.stream(key);
+		return res!=null ? res : cold.stream(key);
+	}
+
+	@Override
+	public StoredContent openStored(String key) throws IOException {
+		StoredContent res = hot.openStored(key);
+		return res!=null ? res : cold.openStored(key);
+	}
+
+	@Override
+	public boolean delete(String key) throws IOException {
+		long length = hot.getFile(key).length();
+		boolean deletedHot = hot.delete(key);
+		if (deletedHot) {
+			hotBytes.addAndGet(-length);
+		}
+		boolean deletedCold = cold.delete(key);
+		return deletedHot || deletedCold;
+	}
+
+	@Override
+	public boolean exists(String key) throws IOException {
+		return hot.exists(key) || cold.exists(key);
+	}
+
+	/**
+	 * @return The total size of the content in the hot tier
+	 * @should keep count of the content put, deleted and migrated
+	 */
+	public long getHotBytes() {
+		return hotBytes.get();
+	}
+
+	/**
+	 * Moves content that has aged out of the hot tier to the cold tier, followed by the oldest content
+	 * until the hot tier is within its maximum size.
+	 * 
+	 * @return The number of content items that were moved
+	 */
+	public int migrate() throws IOException {
+		File[] files = listHotFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long m1 = f1.lastModified();
+				long m2 = f2.lastModified();
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
+
+		long cutoff = System.currentTimeMillis() - maxAgeMillis;
+		int moved = 0;
+		for (File file : files) {
+			boolean aged = file.lastModified() < cutoff;
+			boolean overSize = maxHotBytes > 0 && hotBytes.get() > maxHotBytes;
+			if (!aged && !overSize) {
+				//files are sorted oldest first
+				break;
+			}
+
+			moveToCold(file);
+			moved++;
+		}
+
+		if (moved > 0) {
+			log.info("Moved " + moved + " content items to the cold tier");
+		}
+		return moved;
+	}
+
+	private void moveToCold(File file) throws IOException {
+		File target = cold.getFile(file.getName());
+		File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+
+		FileUtils.copyFile(file, tmp, true);
+		if (!tmp.renameTo(target)) {
+			tmp.delete();
+			throw new IOException("Unable to move " + file + " to " + target);
+		}
+		long length = file.length();
+		if (file.delete()) {
+			hotBytes.addAndGet(-length);
+		} else {
+			log.warn("Unable to remove " + file + " from the hot tier");
+		}
+	}
+
+	private File[] listHotFiles() {
+		File[] res = hot.getDirectory().listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile();
+			}
+		});
+		return res!=null ? res : new File[0];
+	}
+}
@@ -0,0 +1,53 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.shr.contenthandler.ContentIdFilter;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * A scheduler task that reads content saved since the content id filter was last updated into the filter
+ * and persists it, so that the filter can be restored quickly after a restart.
+ * 
+ * @see ContentIdFilter
+ */
+public class ContentIdFilterTask extends AbstractTask {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+
+	@Override
+	public void execute() {
+		if (isExecuting) {
+			return;
+		}
+
+		startExecuting();
+		try {
+			if (!ContentIdFilter.isReady()) {
+				log.debug("The content id filter isn't built; nothing to update");
+				return;
+			}
+
+			ContentIdFilter.catchUp();
+			ContentIdFilter.persist();
+		} catch (Exception ex) {
+			log.error("Content id filter update failed", ex);
+		} finally {
+			stopExecuting();
+		}
+	}
+}
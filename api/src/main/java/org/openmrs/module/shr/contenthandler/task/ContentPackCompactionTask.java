@@ -0,0 +1,122 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.task;
+
+import java.util.Date;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.api.db.ContentHandlerDAO;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler;
+import org.openmrs.module.shr.contenthandler.store.ContentStore;
+import org.openmrs.module.shr.contenthandler.store.PackFileContentStore;
+import org.openmrs.obs.ComplexObsHandler;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * A scheduler task that reclaims space in the pack file store, if {@link ContentObsHandler} is configured to use it.
+ * <p>
+ * The content of obs that have been voided for longer than the retention period is deleted from the store,
+ * after which the segments that are mostly taken up by deleted or replaced content are compacted.
+ * <p>
+ * The following task properties are supported:
+ * <ul>
+ * <li>{@value #PROP_VOIDED_RETENTION_DAYS} - The number of days after which the content of voided obs is deleted
+ * (default 30, -1 to keep the content of voided obs)</li>
+ * <li>{@value #PROP_MIN_GARBAGE_PERCENT} - The percentage of a segment that must be garbage for it to be compacted (default 50)</li>
+ * </ul>
+ * 
+ * @see PackFileContentStore#compact(double)
+ */
+public class ContentPackCompactionTask extends AbstractTask {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	public static final String PROP_VOIDED_RETENTION_DAYS = "voidedRetentionDays";
+	public static final String PROP_MIN_GARBAGE_PERCENT = "minGarbagePercent";
+
+	private static final String HANDLER_KEY = "ContentObsHandler";
+	private static final int BATCH_SIZE = 500;
+
+
+	@Override
+	public void execute() {
+		if (isExecuting) {
+			return;
+		}
+
+		startExecuting();
+		try {
+			ComplexObsHandler handler = Context.getObsService().getHandler(HANDLER_KEY);
+			if (!(handler instanceof ContentObsHandler)) {
+				log.warn("No ContentObsHandler registered; nothing to compact");
+				return;
+			}
+
+			ContentStore store = ((ContentObsHandler) handler).getContentStore();
+			if (!(store instanceof PackFileContentStore)) {
+				log.debug("The pack file content store isn't enabled; nothing to compact");
+				return;
+			}
+
+			int retentionDays = getIntProperty(PROP_VOIDED_RETENTION_DAYS, 30);
+			if (retentionDays >= 0) {
+				deleteVoidedContent((PackFileContentStore) store, new Date(System.currentTimeMillis() - retentionDays * 24L * 60 * 60 * 1000));
+			}
+
+			((PackFileContentStore) store).compact(getIntProperty(PROP_MIN_GARBAGE_PERCENT, 50) / 100.0);
+		} catch (Exception ex) {
+			log.error("Pack file compaction failed", ex);
+		} finally {
+			stopExecuting();
+		}
+	}
+
+	private void deleteVoidedContent(PackFileContentStore store, Date voidedBefore) throws Exception {
+		ContentHandlerDAO dao = Context.getRegisteredComponent("shrContentHandlerDAO", ContentHandlerDAO.class);
+		Integer lastObsId = null;
+		int deleted = 0;
+
+		Map<Integer, String> batch;
+		do {
+			batch = dao.getVoidedComplexObsValues(HANDLER_KEY, voidedBefore, lastObsId, BATCH_SIZE);
+			for (Map.Entry<Integer, String> entry : batch.entrySet()) {
+				if (store.delete(ContentObsHandler.getStoreKey(entry.getValue()))) {
+					deleted++;
+				}
+				lastObsId = entry.getKey();
+			}
+		} while (batch.size() == BATCH_SIZE);
+
+		if (deleted > 0) {
+			log.info("Deleted the content of " + deleted + " voided obs from the pack file store");
+		}
+	}
+
+	private int getIntProperty(String name, int defaultValue) {
+		String value = getTaskDefinition()!=null ? getTaskDefinition().getProperty(name) : null;
+		if (value==null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			log.warn("Invalid value for task property " + name + ": " + value);
+			return defaultValue;
+		}
+	}
+}
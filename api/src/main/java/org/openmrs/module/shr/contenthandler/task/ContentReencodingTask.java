@@ -0,0 +1,463 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.task;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.ContentSerializer;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.db.ContentHandlerDAO;
+import org.openmrs.module.shr.contenthandler.metrics.ContentHandlerMetrics;
+import org.openmrs.module.shr.contenthandler.metrics.Gauge;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler.FsyncPolicy;
+import org.openmrs.scheduler.tasks.AbstractTask;
+import org.openmrs.util.OpenmrsConstants;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * A resumable scheduler task that re-encodes content files saved by {@link ContentObsHandler} with previous
+ * versions of the module (integer array payloads) into the current base64 format.
+ * <p>
+ * Obs are walked in batches in obs id order. The files of a batch are re-encoded in parallel into new files,
+ * after which the value_complex of the batch is updated in a single transaction. If the update fails, the new files
+ * are removed and the obs keep pointing to the original files.
+ * <p>
+ * Each replacement is recorded in a list in the application data directory before the update. The original files
+ * aren't removed right away, since requests that loaded an obs before the update may still be about to read them.
+ * Once the grace period has passed, a later run of the task checks which of the two files the obs points to and
+ * removes the other one, so that no files are left behind if the task is stopped halfway through a batch.
+ * <p>
+ * The last processed obs id is checkpointed in the {@value #GP_LAST_OBS_ID} global property, so that the task
+ * continues where it left off when it's restarted. Obs whose files fail to re-encode are recorded and retried
+ * at the start of the next run. Existing files remain readable throughout the migration.
+ * <p>
+ * The following task properties are supported:
+ * <ul>
+ * <li>{@value #PROP_THREADS} - The number of files to re-encode in parallel (default 2)</li>
+ * <li>{@value #PROP_BATCH_SIZE} - The number of obs per batch (default 100)</li>
+ * <li>{@value #PROP_MAX_BYTES_PER_SECOND} - Limits the rate at which files are read (default 0, i.e. unlimited)</li>
+ * <li>{@value #PROP_DELETE_REPLACED_AFTER_MINUTES} - How long the original files are kept after they were replaced (default 60)</li>
+ * </ul>
+ */
+public class ContentReencodingTask extends AbstractTask {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	public static final String GP_LAST_OBS_ID = "shr.contenthandler.reencode.lastObsId";
+
+	public static final String PROP_THREADS = "threads";
+	public static final String PROP_BATCH_SIZE = "batchSize";
+	public static final String PROP_MAX_BYTES_PER_SECOND = "maxBytesPerSecond";
+	public static final String PROP_DELETE_REPLACED_AFTER_MINUTES = "deleteReplacedAfterMinutes";
+
+	private static final String HANDLER_KEY = "ContentObsHandler";
+	private static final String LEGACY_PAYLOAD_MARKER = "\"payload\":[";
+	private static final String METRICS_QUEUE_NAME = "reencodingTask";
+	private static final String DATA_DIRECTORY = "shr_contenthandler";
+	private static final String REPLACED_FILES_NAME = "reencodedFiles.txt";
+	private static final String FAILED_OBS_IDS_NAME = "reencodeFailedObsIds.txt";
+
+	private volatile boolean shutdown = false;
+
+
+	@Override
+	public void execute() {
+		if (isExecuting) {
+			return;
+		}
+
+		startExecuting();
+		ExecutorService executor = null;
+		try {
+			int threads = getIntProperty(PROP_THREADS, 2);
+			int batchSize = getIntProperty(PROP_BATCH_SIZE, 100);
+			IoThrottle throttle = new IoThrottle(getIntProperty(PROP_MAX_BYTES_PER_SECOND, 0));
+			deleteReplacedFiles(getDao(), getIntProperty(PROP_DELETE_REPLACED_AFTER_MINUTES, 60) * 60L * 1000);
+
+			executor = Executors.newFixedThreadPool(threads);
+			final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+			ContentHandlerMetrics.registerQueue(METRICS_QUEUE_NAME, new Gauge() {
+				@Override
+				public long getValue() {
+					return pool.getQueue().size();
+				}
+			});
+			reencode(executor, batchSize, throttle);
+		} catch (Exception ex) {
+			log.error("Content re-encoding failed", ex);
+		} finally {
+			if (executor!=null) {
+				executor.shutdownNow();
+			}
+			ContentHandlerMetrics.deregisterQueue(METRICS_QUEUE_NAME);
+			stopExecuting();
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		super.shutdown();
+	}
+
+	private void reencode(ExecutorService executor, int batchSize, IoThrottle throttle) throws InterruptedException, IOException {
+		ContentHandlerDAO dao = getDao();
+		AdministrationService as = Context.getAdministrationService();
+		File complexObsDir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(as.getGlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_COMPLEX_OBS_DIR));
+		int reencoded = 0;
+
+		//retry the obs that failed during previous runs
+		List<Integer> retry = new ArrayList<Integer>(readFailedObsIds());
+		Set<Integer> failed = new TreeSet<Integer>();
+		for (int i=0; i<retry.size() && !shutdown; i+=batchSize) {
+			Map<Integer, String> batch = new LinkedHashMap<Integer, String>();
+			for (Integer obsId : retry.subList(i, Math.min(i + batchSize, retry.size()))) {
+				String valueComplex = getComplexObsValue(dao, obsId);
+				if (valueComplex!=null) {
+					batch.put(obsId, valueComplex);
+				}
+			}
+			reencoded += reencodeBatch(dao, executor, complexObsDir, batch, throttle, failed);
+			Context.flushSession();
+			Context.clearSession();
+		}
+		if (shutdown) {
+			return;
+		}
+		saveFailedObsIds(failed);
+
+		Integer lastObsId = Integer.valueOf(as.getGlobalProperty(GP_LAST_OBS_ID, "0"));
+		while (!shutdown) {
+			Map<Integer, String> batch = dao.getComplexObsValues(HANDLER_KEY, lastObsId, batchSize);
+			if (batch.isEmpty()) {
+				log.info("Content re-encoding completed. " + reencoded + " files were re-encoded during this run"
+					+ (failed.isEmpty() ? "." : ", " + failed.size() + " failed and will be retried on the next run."));
+				break;
+			}
+
+			int failures = failed.size();
+			reencoded += reencodeBatch(dao, executor, complexObsDir, batch, throttle, failed);
+			for (Integer obsId : batch.keySet()) {
+				lastObsId = obsId;
+			}
+
+			//the failures must be recorded before the checkpoint moves past them
+			if (failed.size() > failures) {
+				saveFailedObsIds(failed);
+			}
+			saveCheckpoint(as, lastObsId);
+			Context.flushSession();
+			Context.clearSession();
+		}
+	}
+
+	/**
+	 * Re-encodes the files of a batch and points the obs to the new files.
+	 * Obs whose file fails to re-encode are added to the failed obs ids.
+	 * 
+	 * @return The number of obs that were updated
+	 */
+	private int reencodeBatch(ContentHandlerDAO dao, ExecutorService executor, File complexObsDir, Map<Integer, String> batch,
+			IoThrottle throttle, Set<Integer> failed) throws InterruptedException, IOException {
+		Map<Integer, Future<File>> results = new LinkedHashMap<Integer, Future<File>>();
+		for (Map.Entry<Integer, String> entry : batch.entrySet()) {
+			File file = new File(complexObsDir, getFilename(entry.getValue()));
+			results.put(entry.getKey(), executor.submit(new ReencodeFile(file, throttle)));
+		}
+
+		Map<Integer, String> updates = new LinkedHashMap<Integer, String>();
+		List<File> newFiles = new ArrayList<File>();
+		List<String> replacements = new ArrayList<String>();
+		for (Map.Entry<Integer, Future<File>> result : results.entrySet()) {
+			Integer obsId = result.getKey();
+			try {
+				File newFile = result.getValue().get();
+				if (newFile!=null) {
+					File original = new File(complexObsDir, getFilename(batch.get(obsId)));
+					updates.put(obsId, newFile.getName() + "|" + newFile.getName());
+					newFiles.add(newFile);
+					replacements.add(obsId + "\t" + original.getAbsolutePath() + "\t" + newFile.getAbsolutePath());
+				}
+			} catch (ExecutionException ex) {
+				log.warn("Failed to re-encode content for obs " + obsId + "; it will be retried on the next run", ex.getCause());
+				failed.add(obsId);
+			}
+		}
+		if (updates.isEmpty()) {
+			return 0;
+		}
+
+		try {
+			//recorded before the update, so that the unused files can be found whether or not the update commits
+			addReplacedFiles(replacements);
+			updateComplexObsValues(dao, updates);
+		} catch (IOException ex) {
+			deleteFiles(newFiles);
+			throw ex;
+		} catch (RuntimeException ex) {
+			//the obs still point to the original files
+			deleteFiles(newFiles);
+			throw ex;
+		}
+		return updates.size();
+	}
+
+	/**
+	 * Points the obs of a batch to the re-encoded files in a single transaction.
+	 */
+	protected void updateComplexObsValues(ContentHandlerDAO dao, Map<Integer, String> updates) {
+		dao.updateComplexObsValues(updates);
+	}
+
+	private static ContentHandlerDAO getDao() {
+		return Context.getRegisteredComponent("shrContentHandlerDAO", ContentHandlerDAO.class);
+	}
+
+	/**
+	 * Returns the current value_complex of an obs of the handler, or null if there is none.
+	 */
+	private static String getComplexObsValue(ContentHandlerDAO dao, Integer obsId) {
+		return dao.getComplexObsValues(HANDLER_KEY, obsId - 1, 1).get(obsId);
+	}
+
+	private static void deleteFiles(List<File> files) {
+		for (File file : files) {
+			FileUtils.deleteQuietly(file);
+		}
+	}
+
+	/**
+	 * Records the original and new file of each obs of a batch, so that the unused one can be removed once the
+	 * grace period has passed.
+	 */
+	private void addReplacedFiles(List<String> replacements) throws IOException {
+		long now = System.currentTimeMillis();
+		List<String> lines = new ArrayList<String>(replacements.size());
+		for (String replacement : replacements) {
+			lines.add(now + "\t" + replacement);
+		}
+		FileUtils.writeLines(getReplacedFilesList(), ContentObsHandler.FILE_CHARSET.name(), lines, true);
+	}
+
+	/**
+	 * Removes the unused file of each replacement recorded longer than the grace period ago: the original file if the
+	 * obs points to the new file, otherwise the new file (e.g. if the task was stopped before the update committed).
+	 */
+	private void deleteReplacedFiles(ContentHandlerDAO dao, long graceMillis) {
+		File list = getReplacedFilesList();
+		if (!list.exists()) {
+			return;
+		}
+
+		try {
+			long deleteBefore = System.currentTimeMillis() - graceMillis;
+			List<String> remaining = new ArrayList<String>();
+			int deleted = 0;
+			for (String line : FileUtils.readLines(list, ContentObsHandler.FILE_CHARSET.name())) {
+				String[] fields = line.split("\t");
+				if (fields.length!=4) {
+					log.warn("Ignoring invalid entry in " + list.getAbsolutePath() + ": " + line);
+					continue;
+				}
+
+				if (Long.parseLong(fields[0]) > deleteBefore) {
+					remaining.add(line);
+					continue;
+				}
+
+				File original = new File(fields[2]);
+				File newFile = new File(fields[3]);
+				String valueComplex = getComplexObsValue(dao, Integer.valueOf(fields[1]));
+				File unused = valueComplex!=null && getFilename(valueComplex).equals(newFile.getName()) ? original : newFile;
+				if (unused.delete()) {
+					deleted++;
+				} else if (unused.exists()) {
+					log.warn("Could not delete re-encoded file " + unused.getAbsolutePath());
+				}
+			}
+
+			writeLines(list, remaining);
+
+			if (deleted > 0) {
+				log.info("Removed " + deleted + " files that were left unused by re-encoding");
+			}
+		} catch (IOException ex) {
+			log.warn("Could not remove the files left unused by re-encoding", ex);
+		} catch (NumberFormatException ex) {
+			log.warn("Invalid list of files replaced by re-encoded files: " + list.getAbsolutePath(), ex);
+		}
+	}
+
+	private Set<Integer> readFailedObsIds() throws IOException {
+		Set<Integer> res = new TreeSet<Integer>();
+		File list = getFailedObsIdsList();
+		if (list.exists()) {
+			for (String line : FileUtils.readLines(list, ContentObsHandler.FILE_CHARSET.name())) {
+				if (!line.trim().isEmpty()) {
+					res.add(Integer.valueOf(line.trim()));
+				}
+			}
+		}
+		return res;
+	}
+
+	private void saveFailedObsIds(Set<Integer> failed) throws IOException {
+		File list = getFailedObsIdsList();
+		if (failed.isEmpty() && !list.exists()) {
+			return;
+		}
+		writeLines(list, failed);
+	}
+
+	/**
+	 * Replaces the content of a file through a temporary file, so that a crash doesn't leave it half written.
+	 */
+	private static void writeLines(File file, Collection<?> lines) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileUtils.writeLines(tmp, ContentObsHandler.FILE_CHARSET.name(), lines);
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			throw new IOException("Failed to rename " + tmp + " to " + file);
+		}
+	}
+
+	static File getReplacedFilesList() {
+		return new File(OpenmrsUtil.getDirectoryInApplicationDataDirectory(DATA_DIRECTORY), REPLACED_FILES_NAME);
+	}
+
+	static File getFailedObsIdsList() {
+		return new File(OpenmrsUtil.getDirectoryInApplicationDataDirectory(DATA_DIRECTORY), FAILED_OBS_IDS_NAME);
+	}
+
+	private static String getFilename(String valueComplex) {
+		String[] parts = valueComplex.split("\\|");
+		return parts[parts.length - 1].trim();
+	}
+
+	private static void saveCheckpoint(AdministrationService as, Integer lastObsId) {
+		GlobalProperty gp = as.getGlobalPropertyObject(GP_LAST_OBS_ID);
+		if (gp==null) {
+			gp = new GlobalProperty(GP_LAST_OBS_ID, lastObsId.toString(),
+				"The id of the last obs processed by the content re-encoding task");
+		} else {
+			gp.setPropertyValue(lastObsId.toString());
+		}
+		as.saveGlobalProperty(gp);
+	}
+
+	private int getIntProperty(String name, int defaultValue) {
+		String value = getTaskDefinition()!=null ? getTaskDefinition().getProperty(name) : null;
+		if (value==null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			log.warn("Invalid value for task property " + name + ": " + value);
+			return defaultValue;
+		}
+	}
+
+
+	/**
+	 * Re-encodes a single legacy file into a new file alongside it.
+	 * Returns the new file, or null if the file didn't need to be re-encoded.
+	 */
+	private static class ReencodeFile implements Callable<File> {
+		private final File file;
+		private final IoThrottle throttle;
+
+		ReencodeFile(File file, IoThrottle throttle) {
+			this.file = file;
+			this.throttle = throttle;
+		}
+
+		@Override
+		public File call() throws IOException, InterruptedException {
+			if (!file.exists()) {
+				return null;
+			}
+
+			throttle.acquire(file.length());
+			String json = FileUtils.readFileToString(file, ContentObsHandler.FILE_CHARSET.name());
+			if (!json.contains(LEGACY_PAYLOAD_MARKER)) {
+				return null;
+			}
+
+			Content content = ContentSerializer.fromJson(json);
+			File newFile = new File(file.getParentFile(), UUID.randomUUID().toString() + ".json");
+			//the new file must be on disk before the obs is pointed to it
+			ContentObsHandler.writeContent(content, newFile, false, FsyncPolicy.DATA);
+			return newFile;
+		}
+	}
+
+	/**
+	 * A simple rate limiter shared by the re-encoding threads.
+	 */
+	static class IoThrottle {
+		private final long maxBytesPerSecond;
+		private long windowStart = System.currentTimeMillis();
+		private long bytesInWindow = 0;
+
+		IoThrottle(long maxBytesPerSecond) {
+			this.maxBytesPerSecond = maxBytesPerSecond;
+		}
+
+		synchronized void acquire(long bytes) throws InterruptedException {
+			if (maxBytesPerSecond <= 0) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - windowStart >= 1000) {
+				windowStart = now;
+				bytesInWindow = 0;
+			}
+
+			bytesInWindow += bytes;
+			if (bytesInWindow > maxBytesPerSecond) {
+				//wait until the window has drained enough for the bytes read
+				long wait = (bytesInWindow * 1000 / maxBytesPerSecond) - (now - windowStart);
+				if (wait > 0) {
+					Thread.sleep(wait);
+				}
+				windowStart = System.currentTimeMillis();
+				bytesInWindow = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler;
+import org.openmrs.module.shr.contenthandler.store.ContentStore;
+import org.openmrs.module.shr.contenthandler.store.TieredContentStore;
+import org.openmrs.obs.ComplexObsHandler;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * A scheduler task that moves content that has aged out of the hot tier to the cold tier,
+ * if {@link ContentObsHandler} is configured to use the tiered content store.
+ * 
+ * @see TieredContentStore#migrate()
+ */
+public class ContentTierMigrationTask extends AbstractTask {
+
+	protected final Log log = LogFactory.getLog(this.getClass());
+
+	private static final String HANDLER_KEY = "ContentObsHandler";
+
+
+	@Override
+	public void execute() {
+		if (isExecuting) {
+			return;
+		}
+
+		startExecuting();
+		try {
+			ComplexObsHandler handler = Context.getObsService().getHandler(HANDLER_KEY);
+			if (!(handler instanceof ContentObsHandler)) {
+				log.warn("No ContentObsHandler registered; nothing to migrate");
+				return;
+			}
+
+			ContentStore store = ((ContentObsHandler) handler).getContentStore();
+			if (!(store instanceof TieredContentStore)) {
+				log.debug("The tiered content store isn't enabled; nothing to migrate");
+				return;
+			}
+
+			((TieredContentStore) store).migrate();
+		} catch (Exception ex) {
+			log.error("Content tier migration failed", ex);
+		} finally {
+			stopExecuting();
+		}
+	}
+}
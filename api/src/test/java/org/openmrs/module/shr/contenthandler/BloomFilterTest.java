@@ -0,0 +1,93 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+	/**
+	 * @see BloomFilter#mightContain(String)
+	 * @verifies return true for every added string
+	 */
+	@Test
+	public void mightContain_shouldReturnTrueForEveryAddedString() throws Exception {
+		BloomFilter filter = new BloomFilter(10000, 0.01);
+		String[] values = new String[10000];
+		for (int i=0; i<values.length; i++) {
+			values[i] = UUID.randomUUID().toString();
+			filter.put(values[i]);
+		}
+
+		for (String value : values) {
+			assertTrue(filter.mightContain(value));
+		}
+		assertEquals(values.length, filter.getInsertions());
+	}
+
+	/**
+	 * @see BloomFilter#mightContain(String)
+	 * @verifies return false for most strings that were not added
+	 */
+	@Test
+	public void mightContain_shouldReturnFalseForMostStringsThatWereNotAdded() throws Exception {
+		BloomFilter filter = new BloomFilter(10000, 0.01);
+		for (int i=0; i<10000; i++) {
+			filter.put("content-" + i);
+		}
+
+		int falsePositives = 0;
+		for (int i=0; i<10000; i++) {
+			if (filter.mightContain("missing-" + i)) {
+				falsePositives++;
+			}
+		}
+		//1% expected, allow for variance
+		assertTrue("Too many false positives: " + falsePositives, falsePositives < 300);
+	}
+
+	/**
+	 * @see BloomFilter#readFrom(java.io.DataInput)
+	 * @verifies read a filter written by writeTo
+	 */
+	@Test
+	public void readFrom_shouldReadAFilterWrittenByWriteTo() throws Exception {
+		BloomFilter filter = new BloomFilter(1000, 0.01);
+		for (int i=0; i<1000; i++) {
+			filter.put("content-" + i);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		filter.writeTo(new DataOutputStream(out));
+		BloomFilter read = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+
+		assertEquals(filter.getExpectedInsertions(), read.getExpectedInsertions());
+		assertEquals(filter.getNumBits(), read.getNumBits());
+		assertEquals(filter.getNumHashes(), read.getNumHashes());
+		assertEquals(filter.getInsertions(), read.getInsertions());
+		for (int i=0; i<1000; i++) {
+			assertTrue(read.mightContain("content-" + i));
+			assertEquals(filter.mightContain("missing-" + i), read.mightContain("missing-" + i));
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.EncounterRole;
+import org.openmrs.Provider;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+public class ContentHandlerWarmupTest extends BaseModuleContextSensitiveTest {
+
+	private static final CodedValue TEST_CODE = new CodedValue("warmuptest", "test", "test");
+
+
+	@SuppressWarnings("deprecation")
+	@Before
+	public void before() {
+		Context.getAdministrationService().setGlobalProperty("shr.contenthandler.unstructureddatahandler.key", "InMemoryComplexObsHandler");
+		Context.getAdministrationService().setGlobalProperty("shr.contenthandler.cacheConceptsByName", "false");
+		Context.getAdministrationService().setGlobalProperty(ContentHandlerWarmup.GP_WARMUP_ITERATIONS, "2");
+		Context.getAdministrationService().setGlobalProperty(ContentHandlerWarmup.GP_WARMUP_PATIENT_ID, "2");
+		UnstructuredDataHandler.resetAttachmentConceptIds();
+	}
+
+	@After
+	public void after() {
+		ContentHandlerWarmup.setReady(false);
+	}
+
+	/**
+	 * @see ContentHandlerWarmup#run()
+	 * @verifies leave nothing behind in the database or the content store
+	 */
+	@Test
+	public void run_shouldLeaveNothingBehindInTheDatabaseOrTheContentStore() throws Exception {
+		Content content = new Content("warmupTestId", "Warm-up test content".getBytes(), TEST_CODE, TEST_CODE, "text/plain");
+		Map<EncounterRole, Set<Provider>> providersByRole = new HashMap<EncounterRole, Set<Provider>>();
+		providersByRole.put(Context.getEncounterService().getEncounterRole(1), Collections.singleton(Context.getProviderService().getProvider(1)));
+		new UnstructuredDataHandler().saveContent(Context.getPatientService().getPatient(2), providersByRole,
+			Context.getEncounterService().getEncounterType(1), content);
+		Context.flushSession();
+		Set<String> storedBefore = new HashSet<String>(UnstructuredDataHandlerTest.InMemoryComplexObsHandler.store.keySet());
+		Map<String, Long> before = countRows();
+
+		new ContentHandlerWarmup().run();
+		Context.flushSession();
+
+		assertTrue(ContentHandlerWarmup.isReady());
+		assertEquals(before, countRows());
+		assertEquals(storedBefore, UnstructuredDataHandlerTest.InMemoryComplexObsHandler.store.keySet());
+	}
+
+	/**
+	 * @see ContentHandlerWarmup#run()
+	 * @verifies not create the attachment concept set
+	 */
+	@Test
+	public void run_shouldNotCreateTheAttachmentConceptSet() throws Exception {
+		Map<String, Long> before = countRows();
+
+		new ContentHandlerWarmup().run();
+		Context.flushSession();
+
+		assertTrue(ContentHandlerWarmup.isReady());
+		assertEquals(before, countRows());
+		assertNull(Context.getConceptService().getConceptByName(UnstructuredDataHandler.UNSTRUCTURED_ATTACHMENTS_CONCEPT_SET_NAME));
+	}
+
+	private Map<String, Long> countRows() {
+		Map<String, Long> res = new HashMap<String, Long>();
+		for (String table : new String[] { "obs", "encounter", "concept", "concept_set", "global_property" }) {
+			List<List<Object>> rows = Context.getAdministrationService().executeSQL("select count(*) from " + table, true);
+			res.put(table, ((Number) rows.get(0).get(0)).longValue());
+		}
+		return res;
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ContentIdLocksTest {
+
+	/**
+	 * @see ContentIdLocks#lock(java.util.Collection)
+	 * @verifies let only one of concurrent saves of the same content id insert it
+	 */
+	@Test
+	public void lock_shouldLetOnlyOneOfConcurrentSavesOfTheSameContentIdInsertIt() throws Exception {
+		final Map<String, Integer> saved = new ConcurrentHashMap<String, Integer>();
+		final AtomicInteger inserts = new AtomicInteger();
+		final AtomicInteger nextEncounterId = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		//a client and its retries, all saving the same content at once
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int i=0; i<8; i++) {
+				results.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						start.await();
+						ContentIdLocks.Held locks = ContentIdLocks.lock(Collections.singletonList("contentId"));
+						try {
+							Integer existing = saved.get("contentId");
+							if (existing!=null) {
+								return existing;
+							}
+							//widen the window between the lookup and the insert
+							Thread.sleep(20);
+							Integer encounterId = nextEncounterId.incrementAndGet();
+							saved.put("contentId", encounterId);
+							inserts.incrementAndGet();
+							return encounterId;
+						} finally {
+							locks.releaseAfterCompletion();
+						}
+					}
+				}));
+			}
+			start.countDown();
+
+			Integer first = results.get(0).get(10, TimeUnit.SECONDS);
+			for (Future<Integer> result : results) {
+				assertEquals(first, result.get(10, TimeUnit.SECONDS));
+			}
+			assertEquals(1, inserts.get());
+			assertEquals(0, ContentIdLocks.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @see ContentIdLocks#lock(java.util.Collection)
+	 * @verifies not block saves of other content ids
+	 */
+	@Test
+	public void lock_shouldNotBlockSavesOfOtherContentIds() throws Exception {
+		ContentIdLocks.Held held = ContentIdLocks.lock(Arrays.asList("first", "second"));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> other = executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					ContentIdLocks.lock(Collections.singletonList("third")).releaseAfterCompletion();
+					return true;
+				}
+			});
+			assertTrue(other.get(10, TimeUnit.SECONDS));
+		} finally {
+			held.releaseAfterCompletion();
+			executor.shutdownNow();
+		}
+		assertEquals(0, ContentIdLocks.size());
+	}
+}
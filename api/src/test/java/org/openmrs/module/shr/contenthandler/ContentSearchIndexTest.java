@@ -0,0 +1,159 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.Content.CompressionFormat;
+import org.openmrs.module.shr.contenthandler.api.Content.Representation;
+
+public class ContentSearchIndexTest {
+
+	private static final CodedValue TYPE_CODE = new CodedValue("18842-5", "2.16.840.1.113883.6.1", "Discharge summary");
+	private static final CodedValue CDA_FORMAT = new CodedValue("urn:ihe:pcc:xds-ms:2007", "1.3.6.1.4.1.19376.1.2.3");
+	private static final CodedValue TEXT_FORMAT = new CodedValue("urn:ihe:iti:xds:2017:mimeTypeSufficient", "1.3.6.1.4.1.19376.1.2.3");
+
+	private File dir;
+	private ContentSearchIndex index;
+
+
+	@Before
+	public void before() throws IOException {
+		dir = File.createTempFile("searchindex", "");
+		dir.delete();
+		index = new ContentSearchIndex(dir);
+	}
+
+	@After
+	public void after() throws IOException {
+		index.close();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private Content textContent(String contentId, String text, CodedValue formatCode) {
+		return new Content(contentId, text.getBytes(), TYPE_CODE, formatCode, "text/plain");
+	}
+
+	/**
+	 * @see ContentSearchIndex#search(String, Integer, CodedValue, Date, Date, int)
+	 * @verifies find indexed content by words in its payload
+	 */
+	@Test
+	public void search_shouldFindIndexedContentByWordsInItsPayload() throws Exception {
+		index.index(textContent("1", "Patient discharged after treatment for pneumonia", TEXT_FORMAT), 1, new Date());
+		index.index(textContent("2", "Routine follow-up, no complaints", TEXT_FORMAT), 1, new Date());
+
+		assertEquals(Collections.singletonList("1"), index.search("pneumonia", null, null, null, null, 10));
+		assertEquals(Collections.singletonList("2"), index.search("complaints", null, null, null, null, 10));
+		assertTrue(index.search("fracture", null, null, null, null, 10).isEmpty());
+	}
+
+	/**
+	 * @see ContentSearchIndex#search(String, Integer, CodedValue, Date, Date, int)
+	 * @verifies filter by patient, format code and date
+	 */
+	@Test
+	public void search_shouldFilterByPatientFormatCodeAndDate() throws Exception {
+		Date earlier = new Date(System.currentTimeMillis() - 86400000);
+		Date now = new Date();
+		index.index(textContent("1", "pneumonia", TEXT_FORMAT), 1, earlier);
+		index.index(textContent("2", "pneumonia", TEXT_FORMAT), 2, now);
+		index.index(new Content("3", "<note>pneumonia</note>".getBytes(), TYPE_CODE, CDA_FORMAT, "text/xml"), 2, now);
+
+		assertEquals(Collections.singletonList("1"), index.search("pneumonia", 1, null, null, null, 10));
+		assertEquals(Collections.singletonList("3"), index.search("pneumonia", null, CDA_FORMAT, null, null, 10));
+		assertEquals(Collections.singletonList("1"), index.search("pneumonia", null, null, null, new Date(now.getTime() - 1000), 10));
+		assertEquals(2, index.search("pneumonia", 2, null, earlier, null, 10).size());
+		assertEquals(Collections.singletonList("2"), index.search("pneumonia", 2, TEXT_FORMAT, now, now, 10));
+	}
+
+	/**
+	 * @see ContentSearchIndex#search(String, Integer, CodedValue, Date, Date, int)
+	 * @verifies rank content by relevance
+	 */
+	@Test
+	public void search_shouldRankContentByRelevance() throws Exception {
+		index.index(textContent("1", "Chest x-ray normal. History of asthma in the family, patient reports occasional wheezing", TEXT_FORMAT), 1, new Date());
+		index.index(textContent("2", "Asthma exacerbation. Asthma medication adjusted", TEXT_FORMAT), 1, new Date());
+
+		assertEquals(Arrays.asList("2", "1"), index.search("asthma", null, null, null, null, 10));
+	}
+
+	/**
+	 * @see ContentSearchIndex#search(String, Integer, CodedValue, Date, Date, int)
+	 * @verifies throw an IllegalArgumentException for an invalid query
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void search_shouldThrowAnIllegalArgumentExceptionForAnInvalidQuery() throws Exception {
+		index.search("pneumonia AND (", null, null, null, null, 10);
+	}
+
+	/**
+	 * @see ContentSearchIndex#index(Content, Integer, Date)
+	 * @verifies index the text of compressed and base64 encoded payloads
+	 */
+	@Test
+	public void index_shouldIndexTheTextOfCompressedAndBase64EncodedPayloads() throws Exception {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(compressed);
+		out.write("Discharge diagnosis: pneumonia".getBytes("UTF-8"));
+		out.close();
+		byte[] payload = Base64.encodeBase64(compressed.toByteArray());
+
+		index.index(new Content("1", payload, false, TYPE_CODE, TEXT_FORMAT, "text/plain", "UTF-8", Representation.B64, CompressionFormat.GZ, null), 1, new Date());
+
+		assertEquals(Collections.singletonList("1"), index.search("pneumonia", null, null, null, null, 10));
+	}
+
+	/**
+	 * @see ContentSearchIndex#index(Content, Integer, Date)
+	 * @verifies not index xml markup
+	 */
+	@Test
+	public void index_shouldNotIndexXmlMarkup() throws Exception {
+		index.index(new Content("1", "<section><title>Diagnosis</title><text>pneumonia</text></section>".getBytes(), TYPE_CODE, CDA_FORMAT, "text/xml"), 1, new Date());
+
+		assertEquals(Collections.singletonList("1"), index.search("diagnosis AND pneumonia", null, null, null, null, 10));
+		assertTrue(index.search("section", null, null, null, null, 10).isEmpty());
+	}
+
+	/**
+	 * @see ContentSearchIndex#index(Content, Integer, Date)
+	 * @verifies replace content indexed with the same id
+	 */
+	@Test
+	public void index_shouldReplaceContentIndexedWithTheSameId() throws Exception {
+		index.index(textContent("1", "pneumonia", TEXT_FORMAT), 1, new Date());
+		index.index(textContent("1", "bronchitis", TEXT_FORMAT), 1, new Date());
+
+		assertTrue(index.search("pneumonia", null, null, null, null, 10).isEmpty());
+		assertEquals(Collections.singletonList("1"), index.search("bronchitis", null, null, null, null, 10));
+	}
+}
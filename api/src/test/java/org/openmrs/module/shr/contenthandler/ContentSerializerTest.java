@@ -0,0 +1,241 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.Content.CompressionFormat;
+import org.openmrs.module.shr.contenthandler.api.Content.Representation;
+import org.openmrs.module.shr.contenthandler.store.SeekableContentStore.StoredContent;
+
+import com.google.gson.Gson;
+
+public class ContentSerializerTest {
+
+	private static final byte[] TEST_DATA = "<test>This is a test string. It is awesome.</test>".getBytes();
+	private static final CodedValue TEST_TYPE_CODE = new CodedValue("testType", "test", "Test Type");
+	private static final CodedValue TEST_FORMAT_CODE = new CodedValue("testFormat", "test", "Test Format");
+
+	private static final Content TEST_CONTENT = new Content("testId", TEST_DATA, false, TEST_TYPE_CODE, TEST_FORMAT_CODE,
+		"text/xml", "UTF-8", Representation.TXT, null, new Locale("en", "ZA"));
+
+
+	/**
+	 * @see ContentSerializer#toJson(Content)
+	 * @verifies write the payload as base64
+	 */
+	@Test
+	public void toJson_shouldWriteThePayloadAsBase64() throws Exception {
+		String json = ContentSerializer.toJson(TEST_CONTENT);
+
+		assertTrue(json.contains("\"payload\":\"PHRlc3Q+"));
+		assertFalse(json.contains("\"payload\":["));
+	}
+
+	/**
+	 * @see ContentSerializer#fromJson(String)
+	 * @verifies read content written by the serializer
+	 */
+	@Test
+	public void fromJson_shouldReadContentWrittenByTheSerializer() throws Exception {
+		assertContentEquals(TEST_CONTENT, ContentSerializer.fromJson(ContentSerializer.toJson(TEST_CONTENT)));
+	}
+
+	/**
+	 * @see ContentSerializer#fromJson(String)
+	 * @verifies read legacy content written with an integer array payload
+	 */
+	@Test
+	public void fromJson_shouldReadLegacyContentWrittenWithAnIntegerArrayPayload() throws Exception {
+		String legacyJson = new Gson().toJson(TEST_CONTENT, Content.class);
+		assertTrue(legacyJson.contains("\"payload\":["));
+
+		assertContentEquals(TEST_CONTENT, ContentSerializer.fromJson(legacyJson));
+	}
+
+	/**
+	 * @see ContentSerializer#read(java.io.InputStream)
+	 * @verifies read content written to an output stream
+	 */
+	@Test
+	public void read_shouldReadContentWrittenToAnOutputStream() throws Exception {
+		Content compressed = new Content("compressedId", new byte[] {-1, 0, 1, 127, -128}, false, TEST_TYPE_CODE, TEST_FORMAT_CODE,
+			"application/pdf", null, Representation.B64, CompressionFormat.GZ, null);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ContentSerializer.write(compressed, out);
+
+		assertContentEquals(compressed, ContentSerializer.read(new ByteArrayInputStream(out.toByteArray())));
+	}
+
+	/**
+	 * @see ContentSerializer#write(Content, java.io.Writer)
+	 * @verifies write payloads spanning multiple chunks
+	 */
+	@Test
+	public void write_shouldWritePayloadsSpanningMultipleChunks() throws Exception {
+		byte[] payload = new byte[200 * 1024 + 1];
+		new Random(42).nextBytes(payload);
+		Content large = new Content("largeId", payload, false, TEST_TYPE_CODE, TEST_FORMAT_CODE,
+			"application/pdf", null, Representation.B64, null, null);
+
+		StringWriter out = new StringWriter();
+		ContentSerializer.write(large, out);
+
+		assertTrue(out.toString().endsWith("\"payload\":\"" + Base64.encodeBase64String(payload) + "\"}"));
+		assertContentEquals(large, ContentSerializer.fromJson(out.toString()));
+	}
+
+	/**
+	 * @see ContentSerializer#readMetadata(java.io.Reader)
+	 * @verifies read the metadata without reading the payload
+	 */
+	@Test
+	public void readMetadata_shouldReadTheMetadataWithoutReadingThePayload() throws Exception {
+		String json = ContentSerializer.toJson(TEST_CONTENT);
+		//anything after the start of the payload must not be read
+		String truncated = json.substring(0, json.indexOf("\"payload\":") + "\"payload\":".length()) + "<not json>";
+
+		Content metadata = ContentSerializer.readMetadata(new StringReader(truncated));
+
+		assertNull(metadata.getPayload());
+		assertEquals(TEST_CONTENT.getContentId(), metadata.getContentId());
+		assertEquals(TEST_CONTENT.getTypeCode(), metadata.getTypeCode());
+		assertEquals(TEST_CONTENT.getFormatCode(), metadata.getFormatCode());
+		assertEquals(TEST_CONTENT.getContentType(), metadata.getContentType());
+		assertEquals(TEST_CONTENT.getLanguage(), metadata.getLanguage());
+	}
+
+	/**
+	 * @see ContentSerializer#readMetadata(java.io.Reader)
+	 * @verifies read the metadata of legacy content
+	 */
+	@Test
+	public void readMetadata_shouldReadTheMetadataOfLegacyContent() throws Exception {
+		String legacyJson = new Gson().toJson(TEST_CONTENT, Content.class);
+
+		Content metadata = ContentSerializer.readMetadata(new StringReader(legacyJson));
+
+		assertNull(metadata.getPayload());
+		assertEquals(TEST_CONTENT.getContentId(), metadata.getContentId());
+		assertEquals(TEST_CONTENT.getContentType(), metadata.getContentType());
+		assertEquals(TEST_CONTENT.getEncoding(), metadata.getEncoding());
+	}
+
+	/**
+	 * @see ContentSerializer#readPayloadRange(StoredContent, long, int)
+	 * @verifies read ranges of text and base64 encoded payloads
+	 */
+	@Test
+	public void readPayloadRange_shouldReadRangesOfTextAndBase64EncodedPayloads() throws Exception {
+		byte[] data = new byte[1000];
+		new Random(1).nextBytes(data);
+		Content b64 = new Content("testId", Base64.encodeBase64(data), false, TEST_TYPE_CODE, TEST_FORMAT_CODE,
+			"application/pdf", null, Representation.B64, null, null);
+
+		StoredContent stored = toStoredContent(b64);
+		for (int offset=0; offset<10; offset++) {
+			for (int length=0; length<10; length++) {
+				assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), ContentSerializer.readPayloadRange(stored, offset, length));
+			}
+		}
+		assertArrayEquals(Arrays.copyOfRange(data, 500, 1000), ContentSerializer.readPayloadRange(stored, 500, 1000));
+		assertEquals(0, ContentSerializer.readPayloadRange(stored, 1000, 10).length);
+
+		StoredContent text = toStoredContent(TEST_CONTENT);
+		assertArrayEquals(Arrays.copyOfRange(TEST_DATA, 6, 10), ContentSerializer.readPayloadRange(text, 6, 4));
+	}
+
+	/**
+	 * @see ContentSerializer#readPayloadRange(StoredContent, long, int)
+	 * @verifies return null if the range can't be located without reading the whole payload
+	 */
+	@Test
+	public void readPayloadRange_shouldReturnNullIfTheRangeCantBeLocatedWithoutReadingTheWholePayload() throws Exception {
+		Content compressed = new Content("testId", Base64.encodeBase64(TEST_DATA), false, TEST_TYPE_CODE, TEST_FORMAT_CODE,
+			"text/xml", null, Representation.B64, CompressionFormat.GZ, null);
+		assertNull(ContentSerializer.readPayloadRange(toStoredContent(compressed), 0, 10));
+
+		Content wrapped = new Content("testId", Base64.encodeBase64(new byte[200], true), false, TEST_TYPE_CODE, TEST_FORMAT_CODE,
+			"application/pdf", null, Representation.B64, null, null);
+		assertNull(ContentSerializer.readPayloadRange(toStoredContent(wrapped), 0, 10));
+
+		String legacy = "{\"contentId\":\"testId\",\"representation\":\"TXT\",\"payload\":[60,116,101,115,116,62]}";
+		assertNull(ContentSerializer.readPayloadRange(toStoredContent(legacy.getBytes(ContentSerializer.CHARSET)), 0, 2));
+	}
+
+	private static StoredContent toStoredContent(Content content) throws Exception {
+		return toStoredContent(ContentSerializer.toJson(content).getBytes(ContentSerializer.CHARSET));
+	}
+
+	private static StoredContent toStoredContent(final byte[] json) {
+		return new StoredContent() {
+			@Override
+			public long length() {
+				return json.length;
+			}
+
+			@Override
+			public Charset getCharset() {
+				return ContentSerializer.CHARSET;
+			}
+
+			@Override
+			public int read(ByteBuffer dst, long position) {
+				if (position >= json.length) {
+					return -1;
+				}
+				int length = (int) Math.min(dst.remaining(), json.length - position);
+				dst.put(json, (int) position, length);
+				return length;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	private static void assertContentEquals(Content expected, Content actual) {
+		assertEquals(expected.getContentId(), actual.getContentId());
+		assertEquals(expected.getTypeCode(), actual.getTypeCode());
+		assertEquals(expected.getTypeCode().getCodeName(), actual.getTypeCode().getCodeName());
+		assertEquals(expected.getFormatCode(), actual.getFormatCode());
+		assertEquals(expected.getContentType(), actual.getContentType());
+		assertEquals(expected.getEncoding(), actual.getEncoding());
+		assertEquals(expected.getRepresentation(), actual.getRepresentation());
+		assertEquals(expected.getCompressionFormat(), actual.getCompressionFormat());
+		assertEquals(expected.getLanguage(), actual.getLanguage());
+		assertEquals(expected.payloadIsUrl(), actual.payloadIsUrl());
+		assertArrayEquals(expected.getPayload(), actual.getPayload());
+	}
+}
@@ -13,19 +13,27 @@
  */
 package org.openmrs.module.shr.contenthandler;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.Concept;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterRole;
 import org.openmrs.EncounterType;
@@ -36,6 +44,11 @@ import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.shr.contenthandler.api.CodedValue;
 import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.ContentDescriptor;
+import org.openmrs.module.shr.contenthandler.api.ContentFilter;
+import org.openmrs.module.shr.contenthandler.api.ContentPage;
+import org.openmrs.module.shr.contenthandler.metrics.CacheMetrics;
+import org.openmrs.module.shr.contenthandler.metrics.ContentHandlerMetrics;
 import org.openmrs.obs.ComplexData;
 import org.openmrs.obs.ComplexObsHandler;
 import org.openmrs.obs.handler.AbstractHandler;
@@ -61,6 +74,8 @@ public class UnstructuredDataHandlerTest extends BaseModuleContextSensitiveTest
 		//Use our in-memory complex obs handler
 		Context.getAdministrationService().setGlobalProperty(UnstructuredDataHandler.UNSTRUCTURED_DATA_HANDLER_GLOBAL_PROP, "InMemoryComplexObsHandler");
         Context.getAdministrationService().setGlobalProperty("shr.contenthandler.cacheConceptsByName", "false");
+        Context.getAdministrationService().setGlobalProperty(ContentIdFilter.GP_ENABLED, "true");
+        UnstructuredDataHandler.resetAttachmentConceptIds();
 	}
 		
 	/**
@@ -102,6 +117,83 @@ public class UnstructuredDataHandlerTest extends BaseModuleContextSensitiveTest
 		assertTrue(diff <= 1000);
 	}
 
+	/**
+	 * @see UnstructuredDataHandler#saveContent(Patient,Map,EncounterType,List)
+	 * @verifies create a single encounter containing a complex obs for each content item
+	 */
+	@Test
+	public void saveContent_shouldCreateASingleEncounterContainingAComplexObsForEachContentItem()
+			throws Exception {
+		Content second = new Content("testId2", "This is another test string.".getBytes(), TEST_CODE_PLAIN, TEST_CODE_PLAIN, "text/plain");
+		Encounter res = saveTestEncounter(Arrays.asList(TEST_CONTENT_PLAIN, second));
+		
+		Set<Obs> obs = res.getAllObs();
+		assertEquals(2, obs.size());
+		
+		Set<Object> data = new HashSet<Object>();
+		for (Obs o : obs) {
+			assertTrue(o.isComplex());
+			assertEquals(res.getEncounterDatetime(), o.getObsDatetime());
+			data.add(o.getComplexData().getData());
+		}
+		assertTrue(data.contains(TEST_CONTENT_PLAIN));
+		assertTrue(data.contains(second));
+	}
+	
+	/**
+	 * @see UnstructuredDataHandler#saveContent(Patient,Map,EncounterType,List)
+	 * @verifies fail if no content is specified
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void saveContent_shouldFailIfNoContentIsSpecified()
+			throws Exception {
+		saveTestEncounter(Collections.<Content>emptyList());
+	}
+
+	/**
+	 * @see UnstructuredDataHandler#saveContent(Patient,Map,EncounterType,Content)
+	 * @verifies return the existing encounter when replaying a save in idempotent mode
+	 */
+	@Test
+	public void saveContent_shouldReturnTheExistingEncounterWhenReplayingASaveInIdempotentMode()
+			throws Exception {
+		Context.getAdministrationService().setGlobalProperty(UnstructuredDataHandler.GP_IDEMPOTENT_SAVE, "true");
+		UnstructuredDataHandler.resetIdempotentSave();
+		
+		try {
+			Patient patient = Context.getPatientService().getPatient(2);
+			int encountersBefore = Context.getEncounterService().getEncountersByPatient(patient).size();
+			
+			Encounter first = saveTestEncounter(TEST_CONTENT_PLAIN);
+			Content replay = new Content(TEST_CONTENT_PLAIN.getContentId(), TEST_CONTENT_PLAIN.getPayload().clone(), TEST_CODE_PLAIN, TEST_CODE_PLAIN, "text/plain");
+			Encounter second = saveTestEncounter(replay);
+			
+			assertEquals(first, second);
+			assertEquals(encountersBefore + 1, Context.getEncounterService().getEncountersByPatient(patient).size());
+		} finally {
+			UnstructuredDataHandler.resetIdempotentSave();
+		}
+	}
+	
+	/**
+	 * @see UnstructuredDataHandler#saveContent(Patient,Map,EncounterType,Content)
+	 * @verifies fail when saving a different payload with an existing content id in idempotent mode
+	 */
+	@Test(expected = APIException.class)
+	public void saveContent_shouldFailWhenSavingADifferentPayloadWithAnExistingContentIdInIdempotentMode()
+			throws Exception {
+		Context.getAdministrationService().setGlobalProperty(UnstructuredDataHandler.GP_IDEMPOTENT_SAVE, "true");
+		UnstructuredDataHandler.resetIdempotentSave();
+		
+		try {
+			saveTestEncounter(TEST_CONTENT_PLAIN);
+			Content conflicting = new Content(TEST_CONTENT_PLAIN.getContentId(), "A different payload".getBytes(), TEST_CODE_PLAIN, TEST_CODE_PLAIN, "text/plain");
+			saveTestEncounter(conflicting);
+		} finally {
+			UnstructuredDataHandler.resetIdempotentSave();
+		}
+	}
+	
 	/**
 	 * @see UnstructuredDataHandler#fetchContent(string)
 	 * @verifies return a Content object for the encounter if found
@@ -132,6 +224,293 @@ public class UnstructuredDataHandlerTest extends BaseModuleContextSensitiveTest
 		assertNull(content);
 	}
 
+	/**
+	 * @see UnstructuredDataHandler#fetchContent(String)
+	 * @verifies find content saved before and after the content id filter was built
+	 */
+	@Test
+	public void fetchContent_shouldFindContentSavedBeforeAndAfterTheContentIdFilterWasBuilt()
+			throws Exception {
+		UnstructuredDataHandler handler = new UnstructuredDataHandler();
+		Content second = new Content("testId2", "This is another test string.".getBytes(), TEST_CODE_PLAIN, TEST_CODE_PLAIN, "text/plain");
+		
+		try {
+			saveTestEncounter(TEST_CONTENT_PLAIN);
+			Context.flushSession();
+			ContentIdFilter.initialize();
+			assertTrue(ContentIdFilter.isReady());
+			saveTestEncounter(second);
+			
+			assertEquals(TEST_CONTENT_PLAIN, handler.fetchContent(TEST_CONTENT_PLAIN.getContentId()));
+			assertEquals(second, handler.fetchContent(second.getContentId()));
+		} finally {
+			ContentIdFilter.reset();
+		}
+	}
+	
+	/**
+	 * @see UnstructuredDataHandler#fetchContent(String)
+	 * @verifies return null for ids that are not in the content id filter
+	 */
+	@Test
+	public void fetchContent_shouldReturnNullForIdsThatAreNotInTheContentIdFilter()
+			throws Exception {
+		UnstructuredDataHandler handler = new UnstructuredDataHandler();
+		//returns the metrics registered by the filter
+		ContentIdFilter.reset();
+		CacheMetrics filterMetrics = ContentHandlerMetrics.registerCache("contentIdFilter", null);
+		
+		try {
+			saveTestEncounter(TEST_CONTENT_PLAIN);
+			Context.flushSession();
+			ContentIdFilter.initialize();
+			
+			long hits = filterMetrics.getHits();
+			assertNull(handler.fetchContent("unknownId"));
+			assertEquals(hits + 1, filterMetrics.getHits());
+		} finally {
+			ContentIdFilter.reset();
+		}
+	}
+
+	/**
+	 * @see UnstructuredDataHandler#fetchContent(String)
+	 * @verifies find content committed out of order once the content id filter has caught up
+	 */
+	@Test
+	public void fetchContent_shouldFindContentCommittedOutOfOrderOnceTheContentIdFilterHasCaughtUp()
+			throws Exception {
+		UnstructuredDataHandler handler = new UnstructuredDataHandler();
+		Content second = new Content("testId2", "This is another test string.".getBytes(), TEST_CODE_PLAIN, TEST_CODE_PLAIN, "text/plain");
+		
+		try {
+			Integer obsId = saveTestEncounter(TEST_CONTENT_PLAIN).getAllObs().iterator().next().getObsId();
+			saveTestEncounter(second);
+			Context.flushSession();
+			
+			//the obs of the first content isn't visible yet when the filter is built, as if its transaction was still running
+			Context.getAdministrationService().executeSQL("update obs set accession_number = null where obs_id = " + obsId, false);
+			ContentIdFilter.initialize();
+			assertFalse(ContentIdFilter.mightContain(TEST_CONTENT_PLAIN.getContentId()));
+			assertTrue(ContentIdFilter.mightContain(second.getContentId()));
+			
+			Context.getAdministrationService().executeSQL("update obs set accession_number = 'testId' where obs_id = " + obsId, false);
+			ContentIdFilter.catchUp();
+			assertEquals(TEST_CONTENT_PLAIN, handler.fetchContent(TEST_CONTENT_PLAIN.getContentId()));
+		} finally {
+			ContentIdFilter.reset();
+		}
+	}
+
+	/**
+	 * @see ContentIdFilter#initialize()
+	 * @verifies rebuild a persisted filter that was built from obs that are not in the database
+	 */
+	@Test
+	public void initialize_shouldRebuildAPersistedFilterThatWasBuiltFromObsThatAreNotInTheDatabase()
+			throws Exception {
+		try {
+			Integer obsId = saveTestEncounter(TEST_CONTENT_PLAIN).getAllObs().iterator().next().getObsId();
+			Context.flushSession();
+			ContentIdFilter.initialize();
+			ContentIdFilter.persist();
+			ContentIdFilter.reset();
+			
+			//as if the database was restored from a backup taken before the content was saved
+			Context.getAdministrationService().executeSQL("delete from obs where obs_id = " + obsId, false);
+			ContentIdFilter.initialize();
+			assertFalse(ContentIdFilter.mightContain(TEST_CONTENT_PLAIN.getContentId()));
+		} finally {
+			ContentIdFilter.reset();
+			FileUtils.deleteQuietly(ContentIdFilter.getFile());
+		}
+	}
+	
+	/**
+	 * @see UnstructuredDataHandler#fetchContentDescriptor(String)
+	 * @verifies return a descriptor for the content if found
+	 */
+	@Test
+	public void fetchContentDescriptor_shouldReturnADescriptorForTheContentIfFound()
+			throws Exception {
+		UnstructuredDataHandler handler = new UnstructuredDataHandler();
+		saveTestEncounter(TEST_CONTENT_PLAIN);
+		
+		ContentDescriptor res = handler.fetchContentDescriptor(TEST_CONTENT_PLAIN.getContentId());
+		assertNotNull(res);
+		assertEquals(TEST_CONTENT_PLAIN.getContentId(), res.getContentId());
+		assertEquals(TEST_CONTENT_PLAIN.getContentType(), res.getContentType());
+		assertEquals(TEST_CONTENT_PLAIN, res.getContent());
+	}
+	
+	/**
+	 * @see UnstructuredDataHandler#fetchContentDescriptor(String)
+	 * @verifies return null if the content isn't found
+	 */
+	@Test
+	public void fetchContentDescriptor_shouldReturnNullIfTheContentIsntFound()
+			throws Exception {
+		UnstructuredDataHandler handler = new UnstructuredDataHandler();
+		assertNull(handler.fetchContentDescriptor("unknownId"));
+	}
+
+	/**
+	 * @see UnstructuredDataHandler#fetchContentRange(String,long,int)
+	 * @verifies return the requested range of the content data
+	 */
+	@Test
+	public void fetchContentRange_shouldReturnTheRequestedRangeOfTheContentData()
+			throws Exception {
+		UnstructuredDataHandler handler = new UnstructuredDataHandler();
+		saveTestEncounter(TEST_CONTENT_PLAIN);
+		
+		assertArrayEquals("is a test".getBytes(), handler.fetchContentRange(TEST_CONTENT_PLAIN.getContentId(), 5, 9));
+	}
+	
+	/**
+	 * @see UnstructuredDataHandler#fetchContentRange(String,long,int)
+	 * @verifies return the remaining data if the range extends past the end
+	 */
+	@Test
+	public void fetchContentRange_shouldReturnTheRemainingDataIfTheRangeExtendsPastTheEnd()
+			throws Exception {
+		UnstructuredDataHandler handler = new UnstructuredDataHandler();
+		saveTestEncounter(TEST_CONTENT_PLAIN);
+		int length = TEST_CONTENT_PLAIN.getPayloadLength();
+		
+		assertArrayEquals("awesome.".getBytes(), handler.fetchContentRange(TEST_CONTENT_PLAIN.getContentId(), length - 8, 100));
+		assertEquals(0, handler.fetchContentRange(TEST_CONTENT_PLAIN.getContentId(), length, 100).length);
+	}
+	
+	/**
+	 * @see UnstructuredDataHandler#fetchContentRange(String,long,int)
+	 * @verifies return null if the content isn't found
+	 */
+	@Test
+	public void fetchContentRange_shouldReturnNullIfTheContentIsntFound()
+			throws Exception {
+		UnstructuredDataHandler handler = new UnstructuredDataHandler();
+		assertNull(handler.fetchContentRange("unknownId", 0, 10));
+	}
+
+	/**
+	 * @see UnstructuredDataHandler#listContent(Patient,ContentFilter,String,int)
+	 * @verifies list the content saved for a patient, most recent first
+	 */
+	@Test
+	public void listContent_shouldListTheContentSavedForAPatientMostRecentFirst()
+			throws Exception {
+		UnstructuredDataHandler handler = new UnstructuredDataHandler();
+		List<Content> saved = saveTestContents(3);
+		
+		ContentPage page = handler.listContent(Context.getPatientService().getPatient(2), null, null, 10);
+		
+		assertEquals(3, page.getContent().size());
+		assertEquals(saved.get(2).getContentId(), page.getContent().get(0).getContentId());
+		assertEquals(saved.get(1).getContentId(), page.getContent().get(1).getContentId());
+		assertEquals(saved.get(0).getContentId(), page.getContent().get(2).getContentId());
+		assertFalse(page.hasNextPage());
+	}
+	
+	/**
+	 * @see UnstructuredDataHandler#listContent(Patient,ContentFilter,String,int)
+	 * @verifies page through the content using the next page token
+	 */
+	@Test
+	public void listContent_shouldPageThroughTheContentUsingTheNextPageToken()
+			throws Exception {
+		UnstructuredDataHandler handler = new UnstructuredDataHandler();
+		Patient patient = Context.getPatientService().getPatient(2);
+		List<Content> saved = saveTestContents(3);
+		
+		ContentPage first = handler.listContent(patient, null, null, 2);
+		assertEquals(2, first.getContent().size());
+		assertTrue(first.hasNextPage());
+		
+		ContentPage second = handler.listContent(patient, null, first.getNextPageToken(), 2);
+		assertEquals(1, second.getContent().size());
+		assertEquals(saved.get(0).getContentId(), second.getContent().get(0).getContentId());
+		assertFalse(second.hasNextPage());
+	}
+	
+	/**
+	 * @see UnstructuredDataHandler#listContent(Patient,ContentFilter,String,int)
+	 * @verifies only list content matching the filter
+	 */
+	@Test
+	public void listContent_shouldOnlyListContentMatchingTheFilter()
+			throws Exception {
+		UnstructuredDataHandler handler = new UnstructuredDataHandler();
+		saveTestContents(2);
+		Content xml = new Content("testXml", "<test/>".getBytes(), TEST_CODE_PLAIN, TEST_CODE_PLAIN, "text/xml");
+		saveTestEncounter(xml);
+		
+		ContentFilter filter = new ContentFilter().setContentType("text/xml");
+		ContentPage page = handler.listContent(Context.getPatientService().getPatient(2), filter, null, 10);
+		
+		assertEquals(1, page.getContent().size());
+		assertEquals(xml.getContentId(), page.getContent().get(0).getContentId());
+	}
+
+	/**
+	 * @see UnstructuredDataHandler#isConceptAnUnstructuredDataType(Concept)
+	 * @verifies return true for concepts in the attachment concept set
+	 */
+	@Test
+	public void isConceptAnUnstructuredDataType_shouldReturnTrueForConceptsInTheAttachmentConceptSet()
+			throws Exception {
+		Encounter res = saveTestEncounter(TEST_CONTENT_PLAIN);
+		Concept attachmentConcept = res.getAllObs().iterator().next().getConcept();
+		
+		Concept set = Context.getConceptService().getConceptByName(UnstructuredDataHandler.UNSTRUCTURED_ATTACHMENTS_CONCEPT_SET_NAME);
+		assertNotNull(set);
+		assertTrue(set.getSetMembers().contains(attachmentConcept));
+		assertTrue(UnstructuredDataHandler.isConceptAnUnstructuredDataType(attachmentConcept));
+		
+		UnstructuredDataHandler.resetAttachmentConceptIds();
+		assertTrue(UnstructuredDataHandler.isConceptAnUnstructuredDataType(attachmentConcept));
+	}
+	
+	/**
+	 * @see UnstructuredDataHandler#getAttachmentConceptIds()
+	 * @verifies include attachment concepts created in the current transaction
+	 */
+	@Test
+	public void getAttachmentConceptIds_shouldIncludeAttachmentConceptsCreatedInTheCurrentTransaction()
+			throws Exception {
+		UnstructuredDataHandler.getAttachmentConceptIds();
+		
+		Encounter res = saveTestEncounter(TEST_CONTENT_PLAIN);
+		Concept attachmentConcept = res.getAllObs().iterator().next().getConcept();
+		assertTrue(UnstructuredDataHandler.getAttachmentConceptIds().contains(attachmentConcept.getConceptId()));
+	}
+	
+	/**
+	 * @see UnstructuredDataHandler#getAttachmentConceptIds()
+	 * @verifies not change previously returned ids when attachment concepts are added
+	 */
+	@Test
+	public void getAttachmentConceptIds_shouldNotChangePreviouslyReturnedIdsWhenAttachmentConceptsAreAdded()
+			throws Exception {
+		Set<Integer> ids = UnstructuredDataHandler.getAttachmentConceptIds();
+		int size = ids.size();
+		
+		Encounter res = saveTestEncounter(TEST_CONTENT_PLAIN);
+		Concept attachmentConcept = res.getAllObs().iterator().next().getConcept();
+		assertFalse(ids.contains(attachmentConcept.getConceptId()));
+		assertEquals(size, ids.size());
+	}
+	
+	/**
+	 * @see UnstructuredDataHandler#isConceptAnUnstructuredDataType(Concept)
+	 * @verifies return false for other concepts
+	 */
+	@Test
+	public void isConceptAnUnstructuredDataType_shouldReturnFalseForOtherConcepts()
+			throws Exception {
+		assertFalse(UnstructuredDataHandler.isConceptAnUnstructuredDataType(Context.getConceptService().getConcept(3)));
+	}
+
 	/* Utils */
 	
 	private Encounter saveTestEncounter(Content content) {
@@ -142,18 +521,41 @@ public class UnstructuredDataHandlerTest extends BaseModuleContextSensitiveTest
 		UnstructuredDataHandler handler = new UnstructuredDataHandler();
 		
 		Patient patient = Context.getPatientService().getPatient(2);
+		EncounterType type = Context.getEncounterService().getEncounterType(typeId);
+		
+		Encounter res = handler.saveContent(patient, getTestProvidersByRole(), type, content);
+		
+		return res;
+	}
+	
+	private Encounter saveTestEncounter(List<Content> contents) {
+		UnstructuredDataHandler handler = new UnstructuredDataHandler();
+		
+		Patient patient = Context.getPatientService().getPatient(2);
+		EncounterType type = Context.getEncounterService().getEncounterType(1);
+		
+		return handler.saveContent(patient, getTestProvidersByRole(), type, contents);
+	}
+	
+	private List<Content> saveTestContents(int count) {
+		List<Content> res = new ArrayList<Content>();
+		for (int i=0; i<count; i++) {
+			Content content = new Content("testId" + i, ("Test content " + i).getBytes(), TEST_CODE_PLAIN, TEST_CODE_PLAIN, "text/plain");
+			saveTestEncounter(content);
+			res.add(content);
+		}
+		return res;
+	}
+	
+	private Map<EncounterRole, Set<Provider>> getTestProvidersByRole() {
 		Provider provider = Context.getProviderService().getProvider(1);
 		EncounterRole role = Context.getEncounterService().getEncounterRole(1);
-		EncounterType type = Context.getEncounterService().getEncounterType(typeId);
 		
 		Map<EncounterRole, Set<Provider>> providersByRole = new HashMap<EncounterRole, Set<Provider>>();
 		Set<Provider> providers = new HashSet<Provider>();
 		providers.add(provider);
 		providersByRole.put(role, providers);
-		
-		Encounter res = handler.saveContent(patient, providersByRole, type, content);
-		
-		return res;
+		return providersByRole;
 	}
 	
 	/**
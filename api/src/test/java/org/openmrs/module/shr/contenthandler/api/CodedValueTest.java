@@ -0,0 +1,83 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+public class CodedValueTest {
+	
+	/**
+	 * @see CodedValue#intern(CodedValue)
+	 * @verifies return the same instance for equal values
+	 */
+	@Test
+	public void intern_shouldReturnTheSameInstanceForEqualValues() throws Exception {
+		CodedValue pooled = CodedValue.valueOf("34133-9", "2.16.840.1.113883.6.1", "Summary of episode note");
+		CodedValue other = new CodedValue("34133-9", "2.16.840.1.113883.6.1", "Summary of episode note");
+		
+		assertSame(pooled, CodedValue.intern(other));
+		assertSame(pooled, CodedValue.valueOf("34133-9", "2.16.840.1.113883.6.1", "Summary of episode note"));
+		assertSame(pooled, new Content("1234", "test".getBytes(), other, other, "text/plain").getTypeCode());
+	}
+	
+	/**
+	 * @see CodedValue#intern(CodedValue)
+	 * @verifies not share instances with a different code name
+	 */
+	@Test
+	public void intern_shouldNotShareInstancesWithADifferentCodeName() throws Exception {
+		CodedValue pooled = CodedValue.valueOf("11488-4", "2.16.840.1.113883.6.1", "Consultation note");
+		CodedValue renamed = new CodedValue("11488-4", "2.16.840.1.113883.6.1", "Consult note");
+		
+		CodedValue res = CodedValue.intern(renamed);
+		assertNotSame(pooled, res);
+		assertEquals("Consult note", res.getCodeName());
+	}
+	
+	/**
+	 * @see CodedValue#intern(CodedValue)
+	 * @verifies return null for null
+	 */
+	@Test
+	public void intern_shouldReturnNullForNull() throws Exception {
+		assertNull(CodedValue.intern(null));
+	}
+	
+	/**
+	 * @see CodedValue#intern(CodedValue)
+	 * @verifies also apply to deserialized values
+	 */
+	@Test
+	public void intern_shouldAlsoApplyToDeserializedValues() throws Exception {
+		CodedValue pooled = CodedValue.valueOf("urn:ihe:pcc:xphr:2007", "1.3.6.1.4.1.19376.1.2.3");
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(pooled);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		
+		assertSame(pooled, in.readObject());
+	}
+}
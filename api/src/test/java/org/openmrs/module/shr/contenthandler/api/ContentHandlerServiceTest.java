@@ -14,6 +14,7 @@
 package org.openmrs.module.shr.contenthandler.api;
 
 import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
@@ -23,17 +24,35 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterRole;
 import org.openmrs.EncounterType;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.Provider;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.ContentSearchIndex;
 import org.openmrs.module.shr.contenthandler.UnstructuredDataHandler;
+import org.openmrs.module.shr.contenthandler.api.impl.ContentHandlerServiceImpl;
+import org.openmrs.module.shr.contenthandler.metrics.ContentHandlerMetrics;
+import org.openmrs.module.shr.contenthandler.metrics.OperationMetrics;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 
 /**
@@ -446,6 +465,55 @@ public class  ContentHandlerServiceTest extends BaseModuleContextSensitiveTest {
 		assertThat(ch, instanceOf(KnownContentHandler.class));
 	}
 
+	/**
+	 * @see ContentHandlerService#getContentHandlerByClass(Class)
+	 * @verifies return a content handler for a superclass or interface of the registered class
+	 */
+	@Test
+	public void getContentHandlerByClass_shouldReturnAContentHandlerForASuperclassOrInterfaceOfTheRegisteredClass()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		chs.registerContentHandler("text/plain", new ExtendedContentHandler());
+		
+		assertThat(chs.getContentHandlerByClass(BaseTestContentHandler.class), instanceOf(ExtendedContentHandler.class));
+		assertThat(chs.getContentHandlerByClass(ContentHandler.class), instanceOf(ContentHandler.class));
+	}
+
+	/**
+	 * @see ContentHandlerService#getContentHandlerByClass(Class)
+	 * @verifies return null once the handler has been deregistered
+	 */
+	@Test
+	public void getContentHandlerByClass_shouldReturnNullOnceTheHandlerHasBeenDeregistered()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		chs.registerContentHandler("text/plain", new ExtendedContentHandler());
+		assertNotNull(chs.getContentHandlerByClass(ExtendedContentHandler.class));
+		
+		chs.deregisterContentHandler("text/plain");
+		assertNull(chs.getContentHandlerByClass(ExtendedContentHandler.class));
+		assertNull(chs.getContentHandlerByClass(BaseTestContentHandler.class));
+	}
+
+	/**
+	 * @see ContentHandlerService#getContentHandlerByClass(Class)
+	 * @verifies return a handler that can be cast to the given class if instrumentation is enabled
+	 */
+	@Test
+	public void getContentHandlerByClass_shouldReturnAHandlerThatCanBeCastToTheGivenClassIfInstrumentationIsEnabled()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		chs.registerContentHandler("text/plain", new RangeMultiContentHandler());
+		setInstrumentHandlers(chs, true);
+		
+		try {
+			RangeMultiContentHandler ch = (RangeMultiContentHandler) chs.getContentHandlerByClass(RangeMultiContentHandler.class);
+			assertNotNull(ch);
+		} finally {
+			setInstrumentHandlers(chs, false);
+		}
+	}
+
 	/**
 	 * @see ContentHandlerService#getContentHandlerByClass(Class)
 	 * @verifies return null if no content handler was found
@@ -496,4 +564,452 @@ public class  ContentHandlerServiceTest extends BaseModuleContextSensitiveTest {
 			return new KnownContentHandler();
 		}
 	}
+	
+	/**
+	 * @see ContentHandlerService#getRegisteredContentTypeHandlers()
+	 * @verifies return the registered handlers mapped by content type
+	 */
+	@Test
+	public void getRegisteredContentTypeHandlers_shouldReturnTheRegisteredHandlersMappedByContentType()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		
+		ContentHandler handler = new ExtendedContentHandler();
+		chs.registerContentHandler("text/plain", handler);
+		
+		assertEquals(ExtendedContentHandler.class.getName(), chs.getRegisteredContentTypeHandlers().get("text/plain"));
+	}
+	
+	/**
+	 * @see ContentHandlerService#getRegisteredTypeFormatCodeHandlers()
+	 * @verifies return the registered handlers mapped by type and format code
+	 */
+	@Test
+	public void getRegisteredTypeFormatCodeHandlers_shouldReturnTheRegisteredHandlersMappedByTypeAndFormatCode()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		
+		ContentHandler handler = new ExtendedContentHandler();
+		chs.registerContentHandler(TEST_TYPE_CODE, TEST_FORMAT_CODE, handler);
+		
+		assertEquals(ExtendedContentHandler.class.getName(), chs.getRegisteredTypeFormatCodeHandlers().get("test:testType test:testFormat"));
+	}
+	
+	/**
+	 * @see ContentHandlerService#fetchContentAnyHandler(String)
+	 * @verifies return the content found by any of the registered handlers
+	 */
+	@Test
+	public void fetchContentAnyHandler_shouldReturnTheContentFoundByAnyOfTheRegisteredHandlers()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		Content content = new Content("1234", "test".getBytes(), TEST_TYPE_CODE, TEST_FORMAT_CODE, "text/plain");
+		
+		ContentHandler emptyHandler = mockFetchHandler(null);
+		ContentHandler foundHandler = mockFetchHandler(content);
+		chs.registerContentHandler("text/plain", emptyHandler);
+		chs.registerContentHandler(TEST_TYPE_CODE, TEST_FORMAT_CODE, foundHandler);
+		chs.setDefaultUnstructuredHandler(mockFetchHandler(null));
+		
+		try {
+			assertEquals(content, chs.fetchContentAnyHandler("1234"));
+		} finally {
+			chs.setDefaultUnstructuredHandler(new UnstructuredDataHandler());
+		}
+	}
+	
+	/**
+	 * @see ContentHandlerService#fetchContentAnyHandler(String)
+	 * @verifies return null if none of the handlers find the content
+	 */
+	@Test
+	public void fetchContentAnyHandler_shouldReturnNullIfNoneOfTheHandlersFindTheContent()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		
+		ContentHandler emptyHandler = mockFetchHandler(null);
+		chs.registerContentHandler("text/plain", emptyHandler);
+		chs.registerContentHandler(TEST_TYPE_CODE, TEST_FORMAT_CODE, emptyHandler);
+		chs.setDefaultUnstructuredHandler(mockFetchHandler(null));
+		
+		try {
+			assertNull(chs.fetchContentAnyHandler("1234"));
+			verify(emptyHandler).fetchContent("1234");
+		} finally {
+			chs.setDefaultUnstructuredHandler(new UnstructuredDataHandler());
+		}
+	}
+	
+	/**
+	 * @see ContentHandlerService#fetchContentAnyHandler(String)
+	 * @verifies ignore handlers that fail
+	 */
+	@Test
+	public void fetchContentAnyHandler_shouldIgnoreHandlersThatFail()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		Content content = new Content("1234", "test".getBytes(), TEST_TYPE_CODE, TEST_FORMAT_CODE, "text/plain");
+		
+		ContentHandler failingHandler = mockFetchHandler(null);
+		when(failingHandler.fetchContent("1234")).thenThrow(new ContentHandlerException("test"));
+		chs.registerContentHandler("text/plain", failingHandler);
+		chs.setDefaultUnstructuredHandler(mockFetchHandler(content));
+		
+		try {
+			assertEquals(content, chs.fetchContentAnyHandler("1234"));
+		} finally {
+			chs.setDefaultUnstructuredHandler(new UnstructuredDataHandler());
+		}
+	}
+	
+	/**
+	 * @see ContentHandlerService#getAsyncContentHandler(ContentHandler)
+	 * @verifies run save and fetch calls on the handler
+	 */
+	@Test
+	public void getAsyncContentHandler_shouldRunSaveAndFetchCallsOnTheHandler()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		Content content = new Content("1234", "test".getBytes(), TEST_TYPE_CODE, TEST_FORMAT_CODE, "text/plain");
+		Patient patient = Context.getPatientService().getPatient(2);
+		Encounter encounter = new Encounter();
+		
+		ContentHandler handler = mockFetchHandler(content);
+		when(handler.saveContent(patient, null, null, content)).thenReturn(encounter);
+		
+		AsyncContentHandler async = chs.getAsyncContentHandler(handler);
+		Future<Encounter> saved = async.saveContent(patient, null, null, content);
+		Future<Content> fetched = async.fetchContent("1234");
+		
+		assertEquals(encounter, saved.get(10, TimeUnit.SECONDS));
+		assertEquals(content, fetched.get(10, TimeUnit.SECONDS));
+		verify(handler).saveContent(patient, null, null, content);
+	}
+	
+	/**
+	 * @see ContentHandlerService#getAsyncContentHandler(ContentHandler)
+	 * @verifies report failures of the handler through the future
+	 */
+	@Test
+	public void getAsyncContentHandler_shouldReportFailuresOfTheHandlerThroughTheFuture()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		ContentHandler handler = mockFetchHandler(null);
+		ContentHandlerException failure = new ContentHandlerException("test");
+		when(handler.fetchContent("1234")).thenThrow(failure);
+		
+		Future<Content> fetched = chs.getAsyncContentHandler(handler).fetchContent("1234");
+		try {
+			fetched.get(10, TimeUnit.SECONDS);
+			fail("Expected the handler failure");
+		} catch (ExecutionException ex) {
+			assertEquals(failure, ex.getCause());
+		}
+	}
+	
+	/**
+	 * @see ContentHandlerService#getContentHandler(String)
+	 * @verifies Reject calls over the bulkhead limit if bulkheads are enabled
+	 */
+	@Test
+	public void getContentHandler_shouldRejectCallsOverTheBulkheadLimitIfBulkheadsAreEnabled()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		chs.registerContentHandler("text/plain", mockBlockingHandler(started, release));
+		enableBulkheads(chs, "1", "0");
+		
+		try {
+			ContentHandler handler = chs.getContentHandler("text/plain");
+			Future<Content> blocked = chs.getAsyncContentHandler(handler).fetchContent("1234");
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			
+			try {
+				handler.fetchContent("1234");
+				fail("Expected the call to be rejected");
+			} catch (ContentHandlerException ex) {
+				//expected
+			}
+			
+			release.countDown();
+			assertNull(blocked.get(10, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			disableBulkheads(chs);
+		}
+	}
+	
+	/**
+	 * @see ContentHandlerService#getContentHandler(String)
+	 * @verifies Admit calls that get a place in the bulkhead within the maximum wait if bulkheads are enabled
+	 */
+	@Test
+	public void getContentHandler_shouldAdmitCallsThatGetAPlaceInTheBulkheadWithinTheMaximumWaitIfBulkheadsAreEnabled()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		chs.registerContentHandler("text/plain", mockBlockingHandler(started, release));
+		enableBulkheads(chs, "1", "10000");
+		
+		try {
+			ContentHandler handler = chs.getContentHandler("text/plain");
+			Future<Content> blocked = chs.getAsyncContentHandler(handler).fetchContent("1234");
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException ex) {
+						//ignore
+					}
+					release.countDown();
+				}
+			}.start();
+			assertNull(handler.fetchContent("1234"));
+			assertNull(blocked.get(10, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			disableBulkheads(chs);
+		}
+	}
+	
+	/**
+	 * @see ContentHandlerService#getContentHandler(String)
+	 * @verifies Run calls on the calling thread with the interfaces of the registered handler if bulkheads are enabled
+	 */
+	@Test
+	public void getContentHandler_shouldRunCallsOnTheCallingThreadWithTheInterfacesOfTheRegisteredHandlerIfBulkheadsAreEnabled()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		final Thread caller = Thread.currentThread();
+		ContentHandler handler = mockFetchHandler(null);
+		when(handler.fetchContent("1234")).thenAnswer(new Answer<Content>() {
+			@Override
+			public Content answer(InvocationOnMock invocation) throws Throwable {
+				assertEquals(caller, Thread.currentThread());
+				return null;
+			}
+		});
+		chs.registerContentHandler("text/plain", handler);
+		chs.registerContentHandler("text/xml", new RangeMultiContentHandler());
+		enableBulkheads(chs, "1", "0");
+		
+		try {
+			assertNull(chs.getContentHandler("text/plain").fetchContent("1234"));
+			verify(handler).fetchContent("1234");
+			
+			ContentHandler ch = chs.getContentHandler("text/xml");
+			assertThat(ch, instanceOf(MultiContentHandler.class));
+			assertThat(ch, instanceOf(RangeContentHandler.class));
+			assertEquals(3, ((RangeContentHandler) ch).fetchContentRange("1234", 0, 3).length);
+		} finally {
+			disableBulkheads(chs);
+		}
+	}
+	
+	/**
+	 * @see ContentHandlerService#getContentHandler(String)
+	 * @verifies Return a handler that implements the interfaces of the registered handler if instrumentation is enabled
+	 */
+	@Test
+	public void getContentHandler_shouldReturnAHandlerThatImplementsTheInterfacesOfTheRegisteredHandlerIfInstrumentationIsEnabled()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		chs.registerContentHandler("text/plain", new RangeMultiContentHandler());
+		setInstrumentHandlers(chs, true);
+		
+		try {
+			OperationMetrics metrics = ContentHandlerMetrics.getOperationMetrics(RangeMultiContentHandler.class.getName(), ContentHandlerMetrics.OPERATION_FETCH_RANGE);
+			long fetches = metrics.getCount();
+			
+			ContentHandler ch = chs.getContentHandler("text/plain");
+			assertThat(ch, instanceOf(MultiContentHandler.class));
+			assertThat(ch, instanceOf(RangeContentHandler.class));
+			assertEquals(3, ((RangeContentHandler) ch).fetchContentRange("1234", 0, 3).length);
+			assertEquals(fetches + 1, metrics.getCount());
+			
+			ContentHandler clone = ch.cloneHandler();
+			assertThat(clone, instanceOf(MultiContentHandler.class));
+			assertThat(clone, instanceOf(RangeContentHandler.class));
+		} finally {
+			setInstrumentHandlers(chs, false);
+		}
+	}
+	
+	/**
+	 * @see ContentHandlerService#searchContent(String, Patient, CodedValue, Date, Date, int)
+	 * @verifies return the ids of the matching content of the patient
+	 */
+	@Test
+	public void searchContent_shouldReturnTheIdsOfTheMatchingContentOfThePatient()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		File dir = enableSearchIndex();
+		
+		try {
+			Patient patient = Context.getPatientService().getPatient(2);
+			saveAndIndexContent(patient, new Content("1234", "Discharge diagnosis: pneumonia".getBytes(), TEST_TYPE_CODE, TEST_FORMAT_CODE, "text/plain"));
+			saveAndIndexContent(Context.getPatientService().getPatient(7), new Content("5678", "pneumonia".getBytes(), TEST_TYPE_CODE, TEST_FORMAT_CODE, "text/plain"));
+			
+			assertEquals(Collections.singletonList("1234"), chs.searchContent("pneumonia", patient, TEST_FORMAT_CODE, null, null, 10));
+			assertTrue(chs.searchContent("fracture", patient, null, null, null, 10).isEmpty());
+		} finally {
+			disableSearchIndex(dir);
+		}
+	}
+	
+	/**
+	 * @see ContentHandlerService#searchContent(String, Patient, CodedValue, Date, Date, int)
+	 * @verifies not return content whose obs have been voided
+	 */
+	@Test
+	public void searchContent_shouldNotReturnContentWhoseObsHaveBeenVoided()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		File dir = enableSearchIndex();
+		
+		try {
+			Patient patient = Context.getPatientService().getPatient(2);
+			Encounter voided = saveAndIndexContent(patient, new Content("1234", "pneumonia".getBytes(), TEST_TYPE_CODE, TEST_FORMAT_CODE, "text/plain"));
+			saveAndIndexContent(patient, new Content("5678", "pneumonia".getBytes(), TEST_TYPE_CODE, TEST_FORMAT_CODE, "text/plain"));
+			for (Obs obs : voided.getAllObs()) {
+				Context.getObsService().voidObs(obs, "test");
+			}
+			
+			assertEquals(Collections.singletonList("5678"), chs.searchContent("pneumonia", patient, null, null, null, 1));
+		} finally {
+			disableSearchIndex(dir);
+		}
+	}
+	
+	/**
+	 * @see ContentHandlerService#searchContent(String, Patient, CodedValue, Date, Date, int)
+	 * @verifies throw a ContentHandlerException for an invalid query
+	 */
+	@Test(expected = ContentHandlerException.class)
+	public void searchContent_shouldThrowAContentHandlerExceptionForAnInvalidQuery()
+			throws Exception {
+		ContentHandlerService chs = getService();
+		File dir = enableSearchIndex();
+		
+		try {
+			chs.searchContent("pneumonia AND (", null, null, null, null, 10);
+		} finally {
+			disableSearchIndex(dir);
+		}
+	}
+	
+	private File enableSearchIndex() throws Exception {
+		File dir = File.createTempFile("searchindex", "");
+		dir.delete();
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(ContentSearchIndex.GP_ENABLED, "true"));
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(ContentSearchIndex.GP_DIR, dir.getAbsolutePath()));
+		//the settings are read again after a shutdown
+		ContentSearchIndex.shutdown();
+		return dir;
+	}
+	
+	private Encounter saveAndIndexContent(Patient patient, Content content) throws Exception {
+		Context.getAdministrationService().setGlobalProperty("shr.contenthandler.unstructureddatahandler.key", "InMemoryComplexObsHandler");
+		Map<EncounterRole, Set<Provider>> providersByRole = new HashMap<EncounterRole, Set<Provider>>();
+		providersByRole.put(Context.getEncounterService().getEncounterRole(1), Collections.singleton(Context.getProviderService().getProvider(1)));
+		Encounter encounter = new UnstructuredDataHandler().saveContent(patient, providersByRole, Context.getEncounterService().getEncounterType(1), content);
+		//content is only indexed once the transaction commits, which doesn't happen in the tests
+		ContentSearchIndex.getInstance().index(content, patient.getPatientId(), encounter.getEncounterDatetime());
+		return encounter;
+	}
+	
+	private void disableSearchIndex(File dir) throws Exception {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(ContentSearchIndex.GP_ENABLED, "false"));
+		ContentSearchIndex.shutdown();
+		FileUtils.deleteDirectory(dir);
+	}
+	
+	private void enableBulkheads(ContentHandlerService chs, String maxConcurrent, String maxWaitMillis) {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(ContentHandlerServiceImpl.GP_BULKHEAD_ENABLED, "true"));
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(ContentHandlerServiceImpl.GP_BULKHEAD_MAX_CONCURRENT, maxConcurrent));
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(ContentHandlerServiceImpl.GP_BULKHEAD_MAX_WAIT_MILLIS, maxWaitMillis));
+		//the settings are read again after a shutdown
+		chs.onShutdown();
+	}
+	
+	private void setInstrumentHandlers(ContentHandlerService chs, boolean enabled) {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(ContentHandlerServiceImpl.GP_INSTRUMENT_HANDLERS, String.valueOf(enabled)));
+		//the setting is read again after a shutdown
+		chs.onShutdown();
+	}
+	
+	private void disableBulkheads(ContentHandlerService chs) {
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(ContentHandlerServiceImpl.GP_BULKHEAD_ENABLED, "false"));
+		chs.onShutdown();
+	}
+	
+	private ContentHandler mockBlockingHandler(final CountDownLatch started, final CountDownLatch release) throws ContentHandlerException {
+		ContentHandler handler = mockFetchHandler(null);
+		when(handler.fetchContent("1234")).thenAnswer(new Answer<Content>() {
+			@Override
+			public Content answer(InvocationOnMock invocation) throws Throwable {
+				started.countDown();
+				release.await(10, TimeUnit.SECONDS);
+				return null;
+			}
+		});
+		return handler;
+	}
+	
+	private ContentHandler mockFetchHandler(Content result) throws ContentHandlerException {
+		ContentHandler handler = mock(ContentHandler.class);
+		when(handler.cloneHandler()).thenReturn(handler);
+		when(handler.fetchContent("1234")).thenReturn(result);
+		return handler;
+	}
+	
+	private class BaseTestContentHandler implements ContentHandler {
+		@Override
+		public Encounter saveContent(Patient patient,
+				Map<EncounterRole, Set<Provider>> providersByRole,
+				EncounterType encounterType, Content content) {
+			return null;
+		}
+
+		@Override
+		public Content fetchContent(String contentId) {
+			return null;
+		}
+
+		@Override
+		public ContentHandler cloneHandler() {
+			return new BaseTestContentHandler();
+		}
+	}
+	
+	private class RangeMultiContentHandler extends BaseTestContentHandler implements MultiContentHandler, RangeContentHandler {
+		@Override
+		public Encounter saveContent(Patient patient,
+				Map<EncounterRole, Set<Provider>> providersByRole,
+				EncounterType encounterType, List<Content> contents) {
+			return null;
+		}
+
+		@Override
+		public byte[] fetchContentRange(String contentId, long offset, int length) {
+			return new byte[length];
+		}
+
+		@Override
+		public ContentHandler cloneHandler() {
+			return new RangeMultiContentHandler();
+		}
+	}
+	
+	private class ExtendedContentHandler extends BaseTestContentHandler {
+		@Override
+		public ContentHandler cloneHandler() {
+			return new ExtendedContentHandler();
+		}
+	}
 }
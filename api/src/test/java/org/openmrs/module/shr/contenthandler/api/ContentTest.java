@@ -18,6 +18,8 @@ import static com.github.tomakehurst.wiremock.client.WireMock.*;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
@@ -61,6 +63,104 @@ public class ContentTest {
 		assertEquals(TEST_DATA, content.getPayload());
 	}
 	
+	/**
+	 * @see Content#getPayloadDigest()
+	 * @verifies return the same digest for equal payloads
+	 */
+	@Test
+	public void getPayloadDigest_shouldReturnTheSameDigestForEqualPayloads() throws Exception {
+		Content content = new Content("testId", TEST_DATA, TEST_CODE, TEST_CODE, "text/xml");
+		Content replay = new Content("testId", TEST_DATA.clone(), TEST_CODE, TEST_CODE, "text/xml");
+		
+		assertEquals(64, content.getPayloadDigest().length());
+		assertEquals(content.getPayloadDigest(), replay.getPayloadDigest());
+		assertEquals(content.hashCode(), replay.hashCode());
+	}
+	
+	/**
+	 * @see Content#getPayloadDigest()
+	 * @verifies return a different digest for different payloads
+	 */
+	@Test
+	public void getPayloadDigest_shouldReturnADifferentDigestForDifferentPayloads() throws Exception {
+		Content content = new Content("testId", TEST_DATA, TEST_CODE, TEST_CODE, "text/xml");
+		Content other = new Content("testId", "<test>Another test string.</test>".getBytes(), TEST_CODE, TEST_CODE, "text/xml");
+		
+		assertFalse(content.getPayloadDigest().equals(other.getPayloadDigest()));
+	}
+	/**
+	 * @see Content#getEncodedPayload(Collection)
+	 * @verifies return compressed data as is if the compression format is accepted
+	 */
+	@Test
+	public void getEncodedPayload_shouldReturnCompressedDataAsIsIfTheCompressionFormatIsAccepted() throws Exception {
+		byte[] compressed = compressGZip(new String(TEST_DATA));
+		Content content = new Content("testId", Base64.encodeBase64(compressed), false, TEST_CODE, TEST_CODE, "text/xml", null,
+			Representation.B64, CompressionFormat.GZ, null);
+		
+		EncodedPayload payload = content.getEncodedPayload(CompressionFormat.fromAcceptEncoding("gzip, deflate"));
+		assertEquals(CompressionFormat.GZ, payload.getCompressionFormat());
+		assertEquals("gzip", payload.getContentEncoding());
+		assertArrayEquals(compressed, payload.getData());
+	}
+	
+	/**
+	 * @see Content#getEncodedPayload(Collection)
+	 * @verifies decompress the data if the compression format is not accepted
+	 */
+	@Test
+	public void getEncodedPayload_shouldDecompressTheDataIfTheCompressionFormatIsNotAccepted() throws Exception {
+		Content zlib = new Content("testId", Base64.encodeBase64(compressZLib(new String(TEST_DATA))), false, TEST_CODE, TEST_CODE,
+			"text/xml", null, Representation.B64, CompressionFormat.ZL, null);
+		EncodedPayload payload = zlib.getEncodedPayload(CompressionFormat.fromAcceptEncoding("gzip"));
+		assertFalse(payload.isCompressed());
+		assertNull(payload.getContentEncoding());
+		assertArrayEquals(TEST_DATA, payload.getData());
+		
+		Content deflate = new Content("testId", Base64.encodeBase64(compressDeflate(new String(TEST_DATA))), false, TEST_CODE, TEST_CODE,
+			"text/xml", null, Representation.B64, CompressionFormat.DF, null);
+		assertArrayEquals(TEST_DATA, deflate.getEncodedPayload(CompressionFormat.fromAcceptEncoding("*")).getData());
+		assertArrayEquals(TEST_DATA, deflate.getDecodedPayload());
+	}
+	
+	/**
+	 * @see Content#getEncodedPayload(Collection)
+	 * @verifies decode base64 data that is not compressed
+	 */
+	@Test
+	public void getEncodedPayload_shouldDecodeBase64DataThatIsNotCompressed() throws Exception {
+		Content content = new Content("testId", Base64.encodeBase64(TEST_DATA), false, TEST_CODE, TEST_CODE, "text/xml", null,
+			Representation.B64, null, null);
+		
+		EncodedPayload payload = content.getEncodedPayload(CompressionFormat.fromAcceptEncoding("gzip"));
+		assertFalse(payload.isCompressed());
+		assertArrayEquals(TEST_DATA, payload.getData());
+	}
+	
+	/**
+	 * @see CompressionFormat#fromAcceptEncoding(String)
+	 * @verifies exclude codings with a zero quality value
+	 */
+	@Test
+	public void fromAcceptEncoding_shouldExcludeCodingsWithAZeroQualityValue() throws Exception {
+		assertEquals(EnumSet.of(CompressionFormat.ZL), CompressionFormat.fromAcceptEncoding("gzip;q=0, deflate;q=0.5"));
+		assertEquals(EnumSet.of(CompressionFormat.GZ, CompressionFormat.ZL, CompressionFormat.Z),
+			CompressionFormat.fromAcceptEncoding("*, x-gzip;q=1.0"));
+		assertTrue(CompressionFormat.fromAcceptEncoding(null).isEmpty());
+		assertTrue(CompressionFormat.fromAcceptEncoding("identity").isEmpty());
+	}
+	
+	/**
+	 * @see CompressionFormat#fromAcceptEncoding(String)
+	 * @verifies not let a wildcard override an explicitly rejected coding
+	 */
+	@Test
+	public void fromAcceptEncoding_shouldNotLetAWildcardOverrideAnExplicitlyRejectedCoding() throws Exception {
+		assertEquals(EnumSet.of(CompressionFormat.ZL, CompressionFormat.Z), CompressionFormat.fromAcceptEncoding("gzip;q=0, *"));
+		assertEquals(EnumSet.of(CompressionFormat.ZL, CompressionFormat.Z), CompressionFormat.fromAcceptEncoding("*;q=0.8, x-gzip;q=0"));
+		assertEquals(EnumSet.of(CompressionFormat.GZ), CompressionFormat.fromAcceptEncoding("gzip, *;q=0"));
+	}
+	
 	
 	private static byte[] compressDeflate(String content) throws IOException {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
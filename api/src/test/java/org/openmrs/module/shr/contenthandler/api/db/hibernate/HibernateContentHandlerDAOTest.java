@@ -0,0 +1,50 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.api.db.hibernate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.api.db.ContentHandlerDAO;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+public class HibernateContentHandlerDAOTest extends BaseModuleContextSensitiveTest {
+
+	private ContentHandlerDAO getDao() {
+		return Context.getRegisteredComponent("shrContentHandlerDAO", ContentHandlerDAO.class);
+	}
+
+	/**
+	 * @see ContentHandlerDAO#updateComplexObsValues(Map)
+	 * @verifies update the value_complex of all obs in the batch
+	 */
+	@Test
+	public void updateComplexObsValues_shouldUpdateTheValueComplexOfAllObsInTheBatch() throws Exception {
+		Map<Integer, String> updates = new LinkedHashMap<Integer, String>();
+		updates.put(7, "first.json|first.json");
+		updates.put(9, "second.json|second.json");
+
+		getDao().updateComplexObsValues(updates);
+
+		List<List<Object>> rows = Context.getAdministrationService().executeSQL("select obs_id, value_complex from obs where obs_id in (7, 9) order by obs_id", true);
+		assertEquals(2, rows.size());
+		assertEquals("first.json|first.json", rows.get(0).get(1));
+		assertEquals("second.json|second.json", rows.get(1).get(1));
+	}
+}
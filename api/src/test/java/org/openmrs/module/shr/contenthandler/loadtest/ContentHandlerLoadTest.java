@@ -0,0 +1,383 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.loadtest;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.openmrs.EncounterRole;
+import org.openmrs.EncounterType;
+import org.openmrs.Patient;
+import org.openmrs.Provider;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
+import org.openmrs.module.shr.contenthandler.loadtest.LoadTestPayloads.PayloadType;
+import org.openmrs.module.shr.contenthandler.metrics.OperationMetrics;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler.StoreType;
+import org.openmrs.module.shr.contenthandler.store.ContentStore;
+import org.openmrs.module.shr.contenthandler.store.PackFileContentStore;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.util.OpenmrsConstants;
+import org.springframework.test.annotation.NotTransactional;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Runs concurrent clients that save and fetch documents through the {@link ContentHandlerService}, the way that
+ * XDS.b submissions and retrievals do, against the in-memory test database. Throughput, latency percentiles
+ * and the allocation rate are logged per operation and payload type.
+ * <p>
+ * Load tests are excluded from the default build. Run them with:
+ * <pre>
+ * mvn test -P loadtest -Dloadtest.clients=16
+ * </pre>
+ * The test is configured with the following system properties:
+ * <ul>
+ * <li>loadtest.clients - the number of concurrent clients (default 8)</li>
+ * <li>loadtest.operations - the number of measured operations per client (default 200)</li>
+ * <li>loadtest.warmupOperations - the number of unmeasured operations per client before the measured run (default 20)</li>
+ * <li>loadtest.fetchRatio - the fraction of operations that fetch previously saved content (default 0.5)</li>
+ * <li>loadtest.mix - the payload mix weights (default cda=60,pdf=25,gzip=10,url=5)</li>
+ * <li>loadtest.binaryKilobytes - the size of PDF and URL referenced documents (default 256)</li>
+ * <li>loadtest.seed - the random seed, so that runs are reproducible (default 42)</li>
+ * <li>loadtest.store - the content store, one of the {@link StoreType}s (default FILESYSTEM). The file based stores
+ * write to a temporary directory that is removed afterwards.</li>
+ * <li>loadtest.minThroughput - if set, the run fails if fewer operations per second are completed</li>
+ * </ul>
+ */
+public class ContentHandlerLoadTest extends BaseModuleContextSensitiveTest {
+	
+	private static final Log log = LogFactory.getLog(ContentHandlerLoadTest.class);
+	
+	private static final int WIREMOCK_PORT = 8002;
+	private static final String URL_PATH = "/loadtest/";
+	
+	private static final int CLIENTS = Integer.getInteger("loadtest.clients", 8);
+	private static final int OPERATIONS = Integer.getInteger("loadtest.operations", 200);
+	private static final int WARMUP_OPERATIONS = Integer.getInteger("loadtest.warmupOperations", 20);
+	private static final double FETCH_RATIO = Double.parseDouble(System.getProperty("loadtest.fetchRatio", "0.5"));
+	private static final String MIX = System.getProperty("loadtest.mix", "cda=60,pdf=25,gzip=10,url=5");
+	private static final int BINARY_KILOBYTES = Integer.getInteger("loadtest.binaryKilobytes", 256);
+	private static final long SEED = Long.getLong("loadtest.seed", 42L);
+	private static final String MIN_THROUGHPUT = System.getProperty("loadtest.minThroughput");
+	private static final StoreType STORE = StoreType.valueOf(System.getProperty("loadtest.store", StoreType.FILESYSTEM.name()).trim().toUpperCase());
+	
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(WIREMOCK_PORT);
+	
+	private ContentObsHandler obsHandler;
+	private File storeDir;
+	private LoadTestPayloads payloads;
+	private Map<PayloadType, Integer> mix;
+	
+	private final List<SavedContent> saved = new CopyOnWriteArrayList<SavedContent>();
+	private final Map<String, OperationMetrics> metrics = new HashMap<String, OperationMetrics>();
+	
+	
+	private static class SavedContent {
+		final String contentId;
+		final String contentType;
+		final PayloadType type;
+		
+		SavedContent(String contentId, String contentType, PayloadType type) {
+			this.contentId = contentId;
+			this.contentType = contentType;
+			this.type = type;
+		}
+	}
+	
+	private static class ClientResult {
+		long operations;
+		long errors;
+		long allocatedBytes = -1;
+	}
+	
+	
+	@Before
+	public void before() throws Exception {
+		//the clients run in their own sessions and transactions, so the test data must be committed
+		getConnection().commit();
+		
+		//module global properties aren't part of the test data
+		AdministrationService as = Context.getAdministrationService();
+		as.setGlobalProperty("shr.contenthandler.unstructureddatahandler.key", "ContentObsHandler");
+		as.setGlobalProperty("shr.contenthandler.cacheConceptsByName", "false");
+		
+		storeDir = File.createTempFile("loadtest", "");
+		storeDir.delete();
+		as.setGlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_COMPLEX_OBS_DIR, new File(storeDir, "complex_obs").getAbsolutePath());
+		as.setGlobalProperty(ContentObsHandler.GP_TIERED_HOT_DIR, new File(storeDir, "complex_obs_hot").getAbsolutePath());
+		as.setGlobalProperty(ContentObsHandler.GP_PACK_DIR, new File(storeDir, "complex_obs_pack").getAbsolutePath());
+		as.setGlobalProperty(ContentObsHandler.GP_CONTENT_STORE, STORE.name());
+		
+		//the store is created from the global properties on first use
+		obsHandler = (ContentObsHandler) Context.getObsService().getHandler("ContentObsHandler");
+		obsHandler.setContentStore(null);
+		
+		byte[] referenced = new byte[BINARY_KILOBYTES * 1024];
+		new Random(SEED).nextBytes(referenced);
+		stubFor(get(urlMatching(URL_PATH + ".*"))
+			.willReturn(aResponse()
+				.withStatus(200)
+				.withHeader("Content-Type", "application/pdf")
+				.withBody(referenced)
+			)
+		);
+		
+		payloads = new LoadTestPayloads(BINARY_KILOBYTES * 1024, "http://localhost:" + WIREMOCK_PORT + URL_PATH);
+		mix = LoadTestPayloads.parseMix(MIX);
+	}
+	
+	@After
+	public void after() throws Exception {
+		ContentStore store = obsHandler.getContentStore();
+		if (store instanceof PackFileContentStore) {
+			((PackFileContentStore) store).close();
+		}
+		//reverts to the configured store
+		obsHandler.setContentStore(null);
+		FileUtils.deleteQuietly(storeDir);
+		deleteAllData();
+	}
+	
+	@Test
+	@NotTransactional
+	public void run() throws Exception {
+		//save one of each document type up front, so that the attachment concepts aren't created concurrently
+		Random random = new Random(SEED);
+		for (PayloadType type : mix.keySet()) {
+			save(type, random, getProvidersByRole());
+		}
+		
+		runClients(WARMUP_OPERATIONS, false);
+		
+		long start = System.nanoTime();
+		List<ClientResult> results = runClients(OPERATIONS, true);
+		double elapsedSeconds = (System.nanoTime() - start) / 1000000000.0;
+		
+		long operations = 0;
+		long errors = 0;
+		long allocated = 0;
+		for (ClientResult result : results) {
+			operations += result.operations;
+			errors += result.errors;
+			allocated = allocated<0 || result.allocatedBytes<0 ? -1 : allocated + result.allocatedBytes;
+		}
+		double throughput = operations / elapsedSeconds;
+		
+		log.info(report(elapsedSeconds, operations, errors, throughput, allocated));
+		
+		assertEquals("Failed operations", 0, errors);
+		if (MIN_THROUGHPUT!=null) {
+			assertTrue("Throughput of " + throughput + " ops/s is below the minimum of " + MIN_THROUGHPUT,
+				throughput >= Double.parseDouble(MIN_THROUGHPUT));
+		}
+	}
+	
+	private List<ClientResult> runClients(final int operations, final boolean measure) throws Exception {
+		final UserContext userContext = Context.getUserContext();
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+		try {
+			List<Future<ClientResult>> futures = new ArrayList<Future<ClientResult>>();
+			for (int i=0; i<CLIENTS; i++) {
+				final Random random = new Random(SEED + (measure ? CLIENTS : 0) + i + 1);
+				
+				futures.add(executor.submit(new Callable<ClientResult>() {
+					@Override
+					public ClientResult call() throws Exception {
+						Context.openSession();
+						try {
+							Context.setUserContext(userContext);
+							startSignal.await();
+							return runClient(operations, random, measure);
+						} finally {
+							Context.closeSession();
+						}
+					}
+				}));
+			}
+			
+			startSignal.countDown();
+			List<ClientResult> res = new ArrayList<ClientResult>();
+			for (Future<ClientResult> future : futures) {
+				res.add(future.get());
+			}
+			return res;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private ClientResult runClient(int operations, Random random, boolean measure) {
+		ClientResult res = new ClientResult();
+		Map<EncounterRole, Set<Provider>> providersByRole = getProvidersByRole();
+		long allocatedAtStart = getAllocatedBytes();
+		
+		for (int i=0; i<operations; i++) {
+			boolean fetch = !saved.isEmpty() && random.nextDouble() < FETCH_RATIO;
+			PayloadType type = fetch ? null : LoadTestPayloads.choose(mix, random);
+			SavedContent toFetch = fetch ? saved.get(random.nextInt(saved.size())) : null;
+			String operation = fetch ? "fetch " + toFetch.type : "save " + type;
+			
+			long start = System.nanoTime();
+			boolean success = false;
+			try {
+				if (fetch) {
+					fetch(toFetch);
+				} else {
+					save(type, random, providersByRole);
+				}
+				success = true;
+			} catch (Exception ex) {
+				log.warn("Load test " + operation + " failed", ex);
+			} finally {
+				if (measure) {
+					getMetrics(operation).record(System.nanoTime() - start, success);
+					res.operations++;
+					if (!success) {
+						res.errors++;
+					}
+				}
+				Context.clearSession();
+			}
+		}
+		
+		long allocatedAtEnd = getAllocatedBytes();
+		if (allocatedAtStart>=0 && allocatedAtEnd>=0) {
+			res.allocatedBytes = allocatedAtEnd - allocatedAtStart;
+		}
+		return res;
+	}
+	
+	private void save(PayloadType type, Random random, Map<EncounterRole, Set<Provider>> providersByRole) throws Exception {
+		Patient patient = Context.getPatientService().getPatient(2);
+		EncounterType encounterType = Context.getEncounterService().getEncounterType(1);
+		
+		Content content = payloads.create(type, UUID.randomUUID().toString(), random);
+		ContentHandler handler = Context.getService(ContentHandlerService.class).getContentHandler(content.getContentType());
+		handler.saveContent(patient, providersByRole, encounterType, content);
+		
+		saved.add(new SavedContent(content.getContentId(), content.getContentType(), type));
+	}
+	
+	private void fetch(SavedContent toFetch) throws Exception {
+		ContentHandler handler = Context.getService(ContentHandlerService.class).getContentHandler(toFetch.contentType);
+		Content content = handler.fetchContent(toFetch.contentId);
+		if (content==null) {
+			throw new IllegalStateException("Content " + toFetch.contentId + " not found");
+		}
+		LoadTestPayloads.consume(toFetch.type, content);
+	}
+	
+	private Map<EncounterRole, Set<Provider>> getProvidersByRole() {
+		Provider provider = Context.getProviderService().getProvider(1);
+		EncounterRole role = Context.getEncounterService().getEncounterRole(1);
+		
+		Map<EncounterRole, Set<Provider>> providersByRole = new HashMap<EncounterRole, Set<Provider>>();
+		Set<Provider> providers = new HashSet<Provider>();
+		providers.add(provider);
+		providersByRole.put(role, providers);
+		return providersByRole;
+	}
+	
+	private synchronized OperationMetrics getMetrics(String operation) {
+		OperationMetrics res = metrics.get(operation);
+		if (res==null) {
+			//the results cover the whole run
+			res = new OperationMetrics(0);
+			metrics.put(operation, res);
+		}
+		return res;
+	}
+	
+	/**
+	 * @return The bytes allocated by the current thread, or -1 if this isn't supported by the JVM
+	 */
+	private static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+	
+	private synchronized String report(double elapsedSeconds, long operations, long errors, double throughput, long allocated) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%nLoad test: %d clients, %d operations per client, fetch ratio %.2f, mix %s, %dKB binary documents, seed %d, %s store%n",
+			CLIENTS, OPERATIONS, FETCH_RATIO, MIX, BINARY_KILOBYTES, SEED, STORE));
+		sb.append(String.format("%d operations (%d failed) in %.2fs: %.1f ops/s%n", operations, errors, elapsedSeconds, throughput));
+		if (allocated>=0) {
+			sb.append(String.format("Allocation rate: %.1f MB/s, %.1f KB per operation%n",
+				allocated / elapsedSeconds / (1024 * 1024), operations==0 ? 0.0 : allocated / 1024.0 / operations));
+		} else {
+			sb.append(String.format("Allocation rate: not supported by this JVM%n"));
+		}
+		
+		sb.append(String.format("%-14s %8s %8s %10s %10s %10s %10s %10s%n", "operation", "count", "errors", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms"));
+		Map<PayloadType, Boolean> types = new EnumMap<PayloadType, Boolean>(PayloadType.class);
+		for (PayloadType type : mix.keySet()) {
+			types.put(type, Boolean.TRUE);
+		}
+		for (String operation : new String[] { "save", "fetch" }) {
+			for (PayloadType type : types.keySet()) {
+				OperationMetrics m = metrics.get(operation + " " + type);
+				if (m!=null) {
+					sb.append(String.format("%-14s %8d %8d %10.2f %10.2f %10.2f %10.2f %10.2f%n", operation + " " + type,
+						m.getCount(), m.getErrors(), m.getMeanMillis(), m.getPercentileMillis(50), m.getPercentileMillis(90),
+						m.getPercentileMillis(99), m.getPercentileMillis(99.9)));
+				}
+			}
+		}
+		return sb.toString();
+	}
+}
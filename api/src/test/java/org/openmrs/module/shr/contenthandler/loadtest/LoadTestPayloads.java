@@ -0,0 +1,179 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.openmrs.module.shr.contenthandler.ContentSerializer;
+import org.openmrs.module.shr.contenthandler.DataUtil;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.Content.CompressionFormat;
+import org.openmrs.module.shr.contenthandler.api.Content.Representation;
+
+/**
+ * Generates the documents submitted by the load test clients.
+ */
+public class LoadTestPayloads {
+	
+	public static enum PayloadType {
+		/**
+		 * A CDA document as plain text
+		 */
+		CDA,
+		/**
+		 * A base64 encoded (random) PDF
+		 */
+		PDF,
+		/**
+		 * A gzip compressed, base64 encoded CDA document
+		 */
+		GZIP,
+		/**
+		 * A URL referencing a document served by WireMock
+		 */
+		URL
+	}
+	
+	private static final CodedValue CDA_TYPE_CODE = new CodedValue("34133-9", "LOINC", "Summary of episode note");
+	private static final CodedValue CDA_FORMAT_CODE = new CodedValue("urn:ihe:pcc:xphr:2007", "1.3.6.1.4.1.19376.1.2.3", "Exchange of Personal Health Records");
+	private static final CodedValue PDF_TYPE_CODE = new CodedValue("11506-3", "LOINC", "Progress note");
+	private static final CodedValue PDF_FORMAT_CODE = new CodedValue("urn:ihe:iti:xds-sd:pdf:2008", "1.3.6.1.4.1.19376.1.2.3", "Scanned Document PDF");
+	
+	private final int binaryBytes;
+	private final String baseUrl;
+	
+	
+	/**
+	 * @param binaryBytes The size of the PDF payloads and of the documents referenced by URL
+	 * @param baseUrl The URL under which WireMock serves referenced documents
+	 */
+	public LoadTestPayloads(int binaryBytes, String baseUrl) {
+		this.binaryBytes = binaryBytes;
+		this.baseUrl = baseUrl;
+	}
+	
+	/**
+	 * Parses a payload mix such as "cda=60,pdf=25,gzip=10,url=5"
+	 * 
+	 * @return The weight of each payload type
+	 */
+	public static Map<PayloadType, Integer> parseMix(String mix) {
+		Map<PayloadType, Integer> res = new HashMap<PayloadType, Integer>();
+		for (String entry : mix.split(",")) {
+			String[] parts = entry.trim().split("=");
+			if (parts.length!=2) {
+				throw new IllegalArgumentException("Invalid payload mix entry: " + entry);
+			}
+			res.put(PayloadType.valueOf(parts[0].trim().toUpperCase()), Integer.valueOf(parts[1].trim()));
+		}
+		return res;
+	}
+	
+	/**
+	 * Chooses a payload type according to the weights of the mix.
+	 */
+	public static PayloadType choose(Map<PayloadType, Integer> mix, Random random) {
+		int total = 0;
+		for (Integer weight : mix.values()) {
+			total += weight;
+		}
+		
+		int r = random.nextInt(total);
+		for (PayloadType type : PayloadType.values()) {
+			Integer weight = mix.get(type);
+			if (weight!=null) {
+				if (r < weight) {
+					return type;
+				}
+				r -= weight;
+			}
+		}
+		throw new IllegalStateException("Invalid payload mix " + mix);
+	}
+	
+	public Content create(PayloadType type, String contentId, Random random) throws IOException {
+		switch (type) {
+			case CDA:
+				return new Content(contentId, createCDA(contentId, random), false, CDA_TYPE_CODE, CDA_FORMAT_CODE,
+					"text/xml", "UTF-8", Representation.TXT, null, Locale.ENGLISH);
+			case PDF:
+				byte[] pdf = new byte[binaryBytes];
+				random.nextBytes(pdf);
+				return new Content(contentId, Base64.encodeBase64(pdf), false, PDF_TYPE_CODE, PDF_FORMAT_CODE,
+					"application/pdf", null, Representation.B64, null, null);
+			case GZIP:
+				byte[] compressed = Base64.encodeBase64(compressGZip(createCDA(contentId, random)));
+				return new Content(contentId, compressed, false, CDA_TYPE_CODE, CDA_FORMAT_CODE,
+					"text/xml", "UTF-8", Representation.B64, CompressionFormat.GZ, Locale.ENGLISH);
+			case URL:
+				return new Content(contentId, (baseUrl + contentId).getBytes(), true, PDF_TYPE_CODE, PDF_FORMAT_CODE,
+					"application/pdf", null, Representation.BINARY, null, null);
+			default:
+				throw new IllegalArgumentException("Unsupported payload type " + type);
+		}
+	}
+	
+	/**
+	 * Reads a fetched payload the way a document consumer would: referenced documents are retrieved
+	 * and compressed documents are uncompressed.
+	 * 
+	 * @return The size of the document
+	 */
+	public static int consume(PayloadType type, Content content) throws IOException {
+		switch (type) {
+			case GZIP:
+				return DataUtil.uncompressGZip(DataUtil.decodeBase64(content.getPayload())).length;
+			case URL:
+				return DataUtil.fetchPayloadFromURL(new String(content.getPayload())).length;
+			default:
+				return content.getPayloadLength();
+		}
+	}
+	
+	/**
+	 * Creates a CDA-like document of about 8KB
+	 */
+	private static byte[] createCDA(String contentId, Random random) {
+		StringBuilder sb = new StringBuilder(9 * 1024);
+		sb.append("<ClinicalDocument xmlns=\"urn:hl7-org:v3\">");
+		sb.append("<id root=\"").append(contentId).append("\"/>");
+		sb.append("<component><structuredBody>");
+		for (int i=0; i<32; i++) {
+			sb.append("<component><section><title>Section ").append(i).append("</title><text>");
+			for (int j=0; j<24; j++) {
+				sb.append(Integer.toString(random.nextInt(100000), 36)).append(' ');
+			}
+			sb.append("</text></section></component>");
+		}
+		sb.append("</structuredBody></component></ClinicalDocument>");
+		return sb.toString().getBytes(ContentSerializer.CHARSET);
+	}
+	
+	private static byte[] compressGZip(byte[] content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+		gzipOut.write(content);
+		IOUtils.closeQuietly(gzipOut);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class OperationMetricsTest {
+
+	private static final long MINUTE = 60 * 1000;
+	private static final long MILLIS = 1000000;
+
+
+	/**
+	 * Metrics with a clock that starts at 0 and is moved by the test.
+	 */
+	private static class TestMetrics extends OperationMetrics {
+		long time;
+
+		TestMetrics(int windowMinutes) {
+			super(windowMinutes);
+		}
+
+		@Override
+		long now() {
+			return time;
+		}
+	}
+
+	/**
+	 * @see OperationMetrics#OperationMetrics(int)
+	 * @verifies only include calls within the window
+	 */
+	@Test
+	public void OperationMetrics_shouldOnlyIncludeCallsWithinTheWindow() throws Exception {
+		TestMetrics metrics = new TestMetrics(5);
+		for (int i=0; i<100; i++) {
+			metrics.record(1000 * MILLIS, true);
+		}
+
+		metrics.time = 3 * MINUTE;
+		for (int i=0; i<60; i++) {
+			metrics.record(MILLIS, i!=0);
+		}
+		assertEquals(160, metrics.getCount());
+		assertEquals(1, metrics.getErrors());
+		assertEquals(160 / 180.0, metrics.getThroughput(), 0.001);
+
+		metrics.time = 6 * MINUTE;
+		assertEquals(160, metrics.getCount());
+		assertEquals(60 / 240.0, metrics.getThroughput(), 0.001);
+		assertEquals(1, metrics.getMeanMillis(), 0.001);
+		assertEquals(1, metrics.getPercentileMillis(99), 0.2);
+
+		metrics.time = 9 * MINUTE;
+		assertEquals(0, metrics.getThroughput(), 0);
+		assertEquals(0, metrics.getPercentileMillis(99), 0);
+	}
+
+	/**
+	 * @see OperationMetrics#OperationMetrics(int)
+	 * @verifies include all calls if the window is 0
+	 */
+	@Test
+	public void OperationMetrics_shouldIncludeAllCallsIfTheWindowIs0() throws Exception {
+		TestMetrics metrics = new TestMetrics(0);
+		metrics.record(1000 * MILLIS, true);
+		metrics.time = 60 * MINUTE;
+		metrics.record(1000 * MILLIS, true);
+
+		assertEquals(2 / 3600.0, metrics.getThroughput(), 0.0001);
+		assertEquals(1000, metrics.getMeanMillis(), 0.001);
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.shr.contenthandler.ContentSerializer;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler.FsyncPolicy;
+
+public class ContentStoreTest {
+
+	private static final CodedValue TEST_CODE = new CodedValue("testCode", "test", "Test");
+	private static final Content TEST_CONTENT = new Content("testId", "<test>This is a test</test>".getBytes(), TEST_CODE, TEST_CODE, "text/xml");
+
+	private File dir;
+
+
+	@Before
+	public void before() throws IOException {
+		dir = File.createTempFile("contentstore", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void after() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	/**
+	 * @see FileSystemContentStore#put(String, Content)
+	 * @verifies store and retrieve content
+	 */
+	@Test
+	public void fileSystemContentStore_shouldStoreAndRetrieveContent() throws Exception {
+		FileSystemContentStore store = new FileSystemContentStore(dir, false, FsyncPolicy.NONE);
+		assertStoreAndRetrieve(store);
+		assertFalse(new File(dir, "test.json").exists());
+	}
+
+	/**
+	 * @see FileSystemContentStore#getFile(String)
+	 * @verifies reject keys outside of the store directory
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void fileSystemContentStore_shouldRejectKeysOutsideOfTheStoreDirectory() throws Exception {
+		new FileSystemContentStore(dir, false, FsyncPolicy.NONE).put("../test.json", TEST_CONTENT);
+	}
+
+	/**
+	 * @see InMemoryContentStore#put(String, Content)
+	 * @verifies store and retrieve content
+	 */
+	@Test
+	public void inMemoryContentStore_shouldStoreAndRetrieveContent() throws Exception {
+		assertStoreAndRetrieve(new InMemoryContentStore());
+	}
+
+	private static void assertStoreAndRetrieve(ContentStore store) throws IOException {
+		assertFalse(store.exists("test.json"));
+		assertNull(store.get("test.json"));
+		assertNull(store.stream("test.json"));
+
+		store.put("test.json", TEST_CONTENT);
+		assertTrue(store.exists("test.json"));
+
+		Content res = store.get("test.json");
+		assertEquals(TEST_CONTENT, res);
+		assertArrayEquals(TEST_CONTENT.getPayload(), res.getPayload());
+
+		Reader in = store.stream("test.json");
+		try {
+			assertEquals(TEST_CONTENT.getContentType(), ContentSerializer.readMetadata(in).getContentType());
+		} finally {
+			in.close();
+		}
+
+		assertTrue(store.delete("test.json"));
+		assertFalse(store.exists("test.json"));
+		assertFalse(store.delete("test.json"));
+	}
+}
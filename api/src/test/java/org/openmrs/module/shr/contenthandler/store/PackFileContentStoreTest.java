@@ -0,0 +1,238 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.shr.contenthandler.ContentSerializer;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler.FsyncPolicy;
+
+public class PackFileContentStoreTest {
+
+	private static final CodedValue TEST_CODE = new CodedValue("testCode", "test", "Test");
+	private static final long SEGMENT_BYTES = 16 * 1024;
+
+	private File dir;
+	private PackFileContentStore store;
+
+
+	@Before
+	public void before() throws IOException {
+		dir = File.createTempFile("packstore", "");
+		dir.delete();
+		store = PackFileContentStore.open(dir, SEGMENT_BYTES, FsyncPolicy.NONE);
+	}
+
+	@After
+	public void after() throws IOException {
+		store.close();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	/**
+	 * @see PackFileContentStore#put(String, Content)
+	 * @verifies store and retrieve content
+	 */
+	@Test
+	public void put_shouldStoreAndRetrieveContent() throws Exception {
+		Content content = createContent("test", 100);
+		store.put("test.json", content);
+
+		assertTrue(store.exists("test.json"));
+		assertEquals(content, store.get("test.json"));
+		assertEquals(100, store.get("test.json").getPayloadLength());
+
+		Reader in = store.stream("test.json");
+		try {
+			assertEquals(content, ContentSerializer.read(in));
+		} finally {
+			in.close();
+		}
+
+		assertNull(store.get("other.json"));
+		assertNull(store.stream("other.json"));
+	}
+
+	/**
+	 * @see PackFileContentStore#put(String, Content)
+	 * @verifies replace existing content
+	 */
+	@Test
+	public void put_shouldReplaceExistingContent() throws Exception {
+		store.put("test.json", createContent("test", 100));
+		store.put("test.json", createContent("test", 200));
+
+		assertEquals(200, store.get("test.json").getPayloadLength());
+		assertTrue(store.getLiveBytes() < store.getTotalBytes());
+	}
+
+	/**
+	 * @see PackFileContentStore#delete(String)
+	 * @verifies remove content
+	 */
+	@Test
+	public void delete_shouldRemoveContent() throws Exception {
+		store.put("test.json", createContent("test", 100));
+
+		assertTrue(store.delete("test.json"));
+		assertFalse(store.exists("test.json"));
+		assertNull(store.get("test.json"));
+		assertFalse(store.delete("test.json"));
+		assertEquals(0, store.getLiveBytes());
+	}
+
+	/**
+	 * @see PackFileContentStore#open(File, long, FsyncPolicy)
+	 * @verifies rebuild the index from the segments
+	 */
+	@Test
+	public void open_shouldRebuildTheIndexFromTheSegments() throws Exception {
+		for (int i=0; i<50; i++) {
+			store.put(i + ".json", createContent(String.valueOf(i), 1000));
+		}
+		store.delete("10.json");
+		store.put("20.json", createContent("20", 10));
+		assertTrue(store.getSegmentCount() > 1);
+
+		store.close();
+		store = PackFileContentStore.open(dir, SEGMENT_BYTES, FsyncPolicy.NONE);
+
+		assertFalse(store.exists("10.json"));
+		assertEquals(10, store.get("20.json").getPayloadLength());
+		for (int i=0; i<50; i++) {
+			if (i!=10 && i!=20) {
+				assertEquals(createContent(String.valueOf(i), 1000), store.get(i + ".json"));
+			}
+		}
+	}
+
+	/**
+	 * @see PackFileContentStore#open(File, long, FsyncPolicy)
+	 * @verifies truncate an incomplete record at the end of the last segment
+	 */
+	@Test
+	public void open_shouldTruncateAnIncompleteRecordAtTheEndOfTheLastSegment() throws Exception {
+		store.put("first.json", createContent("first", 100));
+		long size = store.getTotalBytes();
+		store.put("second.json", createContent("second", 100));
+		store.close();
+
+		RandomAccessFile file = new RandomAccessFile(new File(dir, "segment-1.pack"), "rw");
+		try {
+			file.setLength(file.length() - 10);
+		} finally {
+			file.close();
+		}
+
+		store = PackFileContentStore.open(dir, SEGMENT_BYTES, FsyncPolicy.NONE);
+		assertEquals(createContent("first", 100), store.get("first.json"));
+		assertFalse(store.exists("second.json"));
+		assertEquals(size, store.getTotalBytes());
+
+		store.put("third.json", createContent("third", 100));
+		assertEquals(createContent("third", 100), store.get("third.json"));
+	}
+
+	/**
+	 * @see PackFileContentStore#open(File, long, FsyncPolicy)
+	 * @verifies not open a directory that is already open
+	 */
+	@Test(expected = IOException.class)
+	public void open_shouldNotOpenADirectoryThatIsAlreadyOpen() throws Exception {
+		PackFileContentStore.open(dir, SEGMENT_BYTES, FsyncPolicy.NONE);
+	}
+
+	/**
+	 * @see PackFileContentStore#open(File, long, FsyncPolicy)
+	 * @verifies quarantine a full segment with an invalid record
+	 */
+	@Test
+	public void open_shouldQuarantineAFullSegmentWithAnInvalidRecord() throws Exception {
+		for (int i=0; i<50; i++) {
+			store.put(i + ".json", createContent(String.valueOf(i), 1000));
+		}
+		assertTrue(store.getSegmentCount() > 1);
+		store.close();
+
+		//without the offset index the segment is scanned
+		new File(dir, "segment-1.idx").delete();
+		RandomAccessFile file = new RandomAccessFile(new File(dir, "segment-1.pack"), "rw");
+		try {
+			file.writeInt(0);
+		} finally {
+			file.close();
+		}
+
+		store = PackFileContentStore.open(dir, SEGMENT_BYTES, FsyncPolicy.NONE);
+		assertTrue(new File(dir, "segment-1.pack.corrupt").exists());
+		assertFalse(new File(dir, "segment-1.pack").exists());
+		assertFalse(store.exists("0.json"));
+		assertEquals(createContent("49", 1000), store.get("49.json"));
+	}
+
+	/**
+	 * @see PackFileContentStore#compact(double)
+	 * @verifies copy live content out of mostly unused segments
+	 */
+	@Test
+	public void compact_shouldCopyLiveContentOutOfMostlyUnusedSegments() throws Exception {
+		for (int i=0; i<50; i++) {
+			store.put(i + ".json", createContent(String.valueOf(i), 1000));
+		}
+		for (int i=0; i<50; i++) {
+			if (i % 10 != 0) {
+				store.delete(i + ".json");
+			}
+		}
+		long totalBytes = store.getTotalBytes();
+
+		assertTrue(store.compact(0.5) > 0);
+		assertTrue(store.getTotalBytes() < totalBytes);
+		for (int i=0; i<50; i++) {
+			if (i % 10 == 0) {
+				assertEquals(createContent(String.valueOf(i), 1000), store.get(i + ".json"));
+			} else {
+				assertFalse(store.exists(i + ".json"));
+			}
+		}
+
+		store.close();
+		store = PackFileContentStore.open(dir, SEGMENT_BYTES, FsyncPolicy.NONE);
+		for (int i=0; i<50; i++) {
+			assertEquals(i % 10 == 0, store.exists(i + ".json"));
+		}
+	}
+
+	private static Content createContent(String id, int size) {
+		byte[] payload = new byte[size];
+		for (int i=0; i<size; i++) {
+			payload[i] = (byte) ('a' + i % 26);
+		}
+		return new Content(id, payload, TEST_CODE, TEST_CODE, "text/plain");
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler.FsyncPolicy;
+
+public class SizeThresholdContentStoreTest {
+
+	private static final CodedValue TEST_CODE = new CodedValue("testCode", "test", "Test");
+	private static final int THRESHOLD = 1024;
+
+	private File dir;
+	private InMemoryContentStore small;
+	private FileSystemContentStore large;
+	private SizeThresholdContentStore store;
+
+
+	@Before
+	public void before() throws IOException {
+		dir = File.createTempFile("thresholdstore", "");
+		dir.delete();
+		dir.mkdirs();
+
+		small = new InMemoryContentStore();
+		large = new FileSystemContentStore(dir, false, FsyncPolicy.NONE);
+		store = new SizeThresholdContentStore(small, large, THRESHOLD);
+	}
+
+	@After
+	public void after() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	/**
+	 * @see SizeThresholdContentStore#put(String, Content)
+	 * @verifies store content smaller than the threshold in the small store only
+	 */
+	@Test
+	public void put_shouldStoreContentSmallerThanTheThresholdInTheSmallStoreOnly() throws Exception {
+		Content content = createContent("small", THRESHOLD - 1);
+		store.put("small.json", content);
+
+		assertTrue(small.exists("small.json"));
+		assertFalse(large.exists("small.json"));
+		assertEquals(0, dir.list().length);
+		assertEquals(content, store.get("small.json"));
+	}
+
+	/**
+	 * @see SizeThresholdContentStore#put(String, Content)
+	 * @verifies store larger content in the large store
+	 */
+	@Test
+	public void put_shouldStoreLargerContentInTheLargeStore() throws Exception {
+		Content content = createContent("large", THRESHOLD);
+		store.put("large.json", content);
+
+		assertFalse(small.exists("large.json"));
+		assertTrue(large.exists("large.json"));
+		assertEquals(content, store.get("large.json"));
+		assertEquals(THRESHOLD, store.get("large.json").getPayloadLength());
+	}
+
+	/**
+	 * @see SizeThresholdContentStore#put(String, Content)
+	 * @verifies not access the small store for large content
+	 */
+	@Test
+	public void put_shouldNotAccessTheSmallStoreForLargeContent() throws Exception {
+		ContentStore small = mock(ContentStore.class);
+		new SizeThresholdContentStore(small, large, THRESHOLD).put("large.json", createContent("large", THRESHOLD));
+
+		verifyZeroInteractions(small);
+		assertTrue(large.exists("large.json"));
+	}
+
+	/**
+	 * @see SizeThresholdContentStore#get(String)
+	 * @verifies return the latest content if replaced by content of a different size
+	 */
+	@Test
+	public void get_shouldReturnTheLatestContentIfReplacedByContentOfADifferentSize() throws Exception {
+		store.put("test.json", createContent("test", THRESHOLD * 2));
+		store.put("test.json", createContent("test", 10));
+		assertEquals(10, store.get("test.json").getPayloadLength());
+
+		//large content only replaces small content once it's deleted
+		assertTrue(store.delete("test.json"));
+		store.put("test.json", createContent("test", THRESHOLD * 3));
+		assertEquals(THRESHOLD * 3, store.get("test.json").getPayloadLength());
+		assertFalse(small.exists("test.json"));
+
+		assertTrue(store.delete("test.json"));
+		assertFalse(store.exists("test.json"));
+	}
+
+	private static Content createContent(String id, int size) {
+		byte[] payload = new byte[size];
+		for (int i=0; i<size; i++) {
+			payload[i] = (byte) ('a' + i % 26);
+		}
+		return new Content(id, payload, TEST_CODE, TEST_CODE, "text/plain");
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler.FsyncPolicy;
+
+public class TieredContentStoreTest {
+
+	private static final CodedValue TEST_CODE = new CodedValue("testCode", "test", "Test");
+	private static final long HOUR = 60 * 60 * 1000;
+
+	private File dir;
+	private FileSystemContentStore hot;
+	private FileSystemContentStore cold;
+
+
+	@Before
+	public void before() throws IOException {
+		dir = File.createTempFile("tieredstore", "");
+		dir.delete();
+		new File(dir, "hot").mkdirs();
+		new File(dir, "cold").mkdirs();
+
+		hot = new FileSystemContentStore(new File(dir, "hot"), false, FsyncPolicy.NONE);
+		cold = new FileSystemContentStore(new File(dir, "cold"), false, FsyncPolicy.NONE);
+	}
+
+	@After
+	public void after() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	/**
+	 * @see TieredContentStore#migrate()
+	 * @verifies move aged content to the cold tier
+	 */
+	@Test
+	public void migrate_shouldMoveAgedContentToTheColdTier() throws Exception {
+		TieredContentStore store = new TieredContentStore(hot, cold, HOUR, 0);
+		Content oldContent = createContent("old");
+		Content newContent = createContent("new");
+		store.put("old.json", oldContent);
+		store.put("new.json", newContent);
+		hot.getFile("old.json").setLastModified(System.currentTimeMillis() - 2 * HOUR);
+
+		assertEquals(1, store.migrate());
+
+		assertFalse(hot.exists("old.json"));
+		assertTrue(cold.exists("old.json"));
+		assertTrue(hot.exists("new.json"));
+		assertEquals(oldContent, store.get("old.json"));
+		assertEquals(newContent, store.get("new.json"));
+	}
+
+	/**
+	 * @see TieredContentStore#migrate()
+	 * @verifies move the oldest content when the hot tier is too large
+	 */
+	@Test
+	public void migrate_shouldMoveTheOldestContentWhenTheHotTierIsTooLarge() throws Exception {
+		TieredContentStore store = new TieredContentStore(hot, cold, 24 * HOUR, 0);
+		store.put("first.json", createContent("first"));
+		store.put("second.json", createContent("second"));
+		hot.getFile("first.json").setLastModified(System.currentTimeMillis() - HOUR);
+
+		store = new TieredContentStore(hot, cold, 24 * HOUR, hot.getFile("second.json").length());
+		assertEquals(1, store.migrate());
+
+		assertTrue(cold.exists("first.json"));
+		assertTrue(hot.exists("second.json"));
+	}
+
+	/**
+	 * @see TieredContentStore#delete(String)
+	 * @verifies delete content from both tiers
+	 */
+	@Test
+	public void delete_shouldDeleteContentFromBothTiers() throws Exception {
+		TieredContentStore store = new TieredContentStore(hot, cold, HOUR, 0);
+		hot.put("test.json", createContent("test"));
+		cold.put("test.json", createContent("test"));
+
+		assertTrue(store.delete("test.json"));
+		assertFalse(store.exists("test.json"));
+	}
+
+	/**
+	 * @see TieredContentStore#getHotBytes()
+	 * @verifies keep count of the content put, deleted and migrated
+	 */
+	@Test
+	public void getHotBytes_shouldKeepCountOfTheContentPutDeletedAndMigrated() throws Exception {
+		hot.put("existing.json", createContent("existing"));
+		long existing = hot.getFile("existing.json").length();
+		TieredContentStore store = new TieredContentStore(hot, cold, HOUR, 0);
+		assertEquals(existing, store.getHotBytes());
+
+		store.put("test.json", createContent("test"));
+		store.put("test.json", createContent("test"));
+		assertEquals(existing + hot.getFile("test.json").length(), store.getHotBytes());
+
+		assertTrue(store.delete("test.json"));
+		assertEquals(existing, store.getHotBytes());
+
+		hot.getFile("existing.json").setLastModified(System.currentTimeMillis() - 2 * HOUR);
+		assertEquals(1, store.migrate());
+		assertEquals(0, store.getHotBytes());
+	}
+
+	private static Content createContent(String id) {
+		return new Content(id, ("Test content " + id).getBytes(), TEST_CODE, TEST_CODE, "text/plain");
+	}
+}
@@ -0,0 +1,237 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.shr.contenthandler.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.EncounterRole;
+import org.openmrs.Obs;
+import org.openmrs.Provider;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.ContentSerializer;
+import org.openmrs.module.shr.contenthandler.UnstructuredDataHandler;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.db.ContentHandlerDAO;
+import org.openmrs.module.shr.contenthandler.obs.handler.ContentObsHandler;
+import org.openmrs.scheduler.TaskDefinition;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.util.OpenmrsConstants;
+import org.openmrs.util.OpenmrsUtil;
+
+import com.google.gson.Gson;
+
+public class ContentReencodingTaskTest extends BaseModuleContextSensitiveTest {
+
+	private static final CodedValue TEST_CODE = new CodedValue("reencode", "test", "test");
+
+	private File complexObsDir;
+
+
+	@SuppressWarnings("deprecation")
+	@Before
+	public void before() throws Exception {
+		Context.getAdministrationService().setGlobalProperty("shr.contenthandler.unstructureddatahandler.key", "ContentObsHandler");
+		Context.getAdministrationService().setGlobalProperty("shr.contenthandler.cacheConceptsByName", "false");
+		Context.getAdministrationService().setGlobalProperty(ContentReencodingTask.GP_LAST_OBS_ID, "0");
+		complexObsDir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(
+			Context.getAdministrationService().getGlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_COMPLEX_OBS_DIR));
+		FileUtils.deleteQuietly(ContentReencodingTask.getReplacedFilesList());
+		FileUtils.deleteQuietly(ContentReencodingTask.getFailedObsIdsList());
+	}
+
+	@After
+	public void after() {
+		FileUtils.deleteQuietly(ContentReencodingTask.getReplacedFilesList());
+		FileUtils.deleteQuietly(ContentReencodingTask.getFailedObsIdsList());
+	}
+
+	/**
+	 * @see ContentReencodingTask#execute()
+	 * @verifies re-encode a batch and keep the original files readable until the grace period has passed
+	 */
+	@Test
+	public void execute_shouldReencodeABatchAndKeepTheOriginalFilesReadableUntilTheGracePeriodHasPassed() throws Exception {
+		Content first = new Content("reencode1", "First test content".getBytes(), TEST_CODE, TEST_CODE, "text/plain");
+		Content second = new Content("reencode2", "Second test content".getBytes(), TEST_CODE, TEST_CODE, "text/plain");
+		File firstFile = saveLegacyContent(first);
+		File secondFile = saveLegacyContent(second);
+
+		newTask("60").execute();
+
+		//requests that loaded the obs before the switchover still read the original files
+		assertEquals(first, ContentSerializer.fromJson(FileUtils.readFileToString(firstFile, ContentObsHandler.FILE_CHARSET.name())));
+		assertEquals(second, ContentSerializer.fromJson(FileUtils.readFileToString(secondFile, ContentObsHandler.FILE_CHARSET.name())));
+
+		//while the obs now point to the re-encoded files
+		Map<String, String> valueComplexByFile = getValueComplexByFile();
+		assertFalse(valueComplexByFile.containsKey(firstFile.getName()));
+		assertFalse(valueComplexByFile.containsKey(secondFile.getName()));
+		for (String filename : valueComplexByFile.keySet()) {
+			String json = FileUtils.readFileToString(new File(complexObsDir, filename), ContentObsHandler.FILE_CHARSET.name());
+			assertFalse(json.contains("\"payload\":["));
+		}
+		assertEquals(first, new UnstructuredDataHandler().fetchContent(first.getContentId()));
+		assertEquals(second, new UnstructuredDataHandler().fetchContent(second.getContentId()));
+
+		newTask("0").execute();
+		assertFalse(firstFile.exists());
+		assertFalse(secondFile.exists());
+	}
+
+	/**
+	 * @see ContentReencodingTask#execute()
+	 * @verifies keep the original files if the update of the batch is rolled back
+	 */
+	@Test
+	public void execute_shouldKeepTheOriginalFilesIfTheUpdateOfTheBatchIsRolledBack() throws Exception {
+		Content content = new Content("reencode3", "Test content".getBytes(), TEST_CODE, TEST_CODE, "text/plain");
+		File file = saveLegacyContent(content);
+		Set<String> filesBefore = new HashSet<String>(listFiles());
+		Map<String, String> valueComplexBefore = getValueComplexByFile();
+
+		ContentReencodingTask task = new ContentReencodingTask() {
+			@Override
+			protected void updateComplexObsValues(ContentHandlerDAO dao, Map<Integer, String> updates) {
+				throw new IllegalStateException("Simulated failure");
+			}
+		};
+		task.initialize(newTaskDefinition("0"));
+		task.execute();
+
+		assertEquals(valueComplexBefore, getValueComplexByFile());
+		assertEquals(filesBefore, new HashSet<String>(listFiles()));
+		assertTrue(file.exists());
+		assertEquals(content, new UnstructuredDataHandler().fetchContent(content.getContentId()));
+		assertEquals("0", Context.getAdministrationService().getGlobalProperty(ContentReencodingTask.GP_LAST_OBS_ID));
+	}
+
+	/**
+	 * @see ContentReencodingTask#execute()
+	 * @verifies retry obs whose file failed to re-encode on the next run
+	 */
+	@Test
+	public void execute_shouldRetryObsWhoseFileFailedToReencodeOnTheNextRun() throws Exception {
+		Content content = new Content("reencode4", "Test content".getBytes(), TEST_CODE, TEST_CODE, "text/plain");
+		File file = saveLegacyContent(content);
+		String legacyJson = FileUtils.readFileToString(file, ContentObsHandler.FILE_CHARSET.name());
+		FileUtils.writeStringToFile(file, "{\"payload\":[", ContentObsHandler.FILE_CHARSET.name());
+
+		newTask("60").execute();
+		assertTrue(getValueComplexByFile().containsKey(file.getName()));
+		assertFalse("0".equals(Context.getAdministrationService().getGlobalProperty(ContentReencodingTask.GP_LAST_OBS_ID)));
+
+		FileUtils.writeStringToFile(file, legacyJson, ContentObsHandler.FILE_CHARSET.name());
+		newTask("60").execute();
+		assertFalse(getValueComplexByFile().containsKey(file.getName()));
+		assertEquals(content, new UnstructuredDataHandler().fetchContent(content.getContentId()));
+	}
+
+	/**
+	 * @see ContentReencodingTask#execute()
+	 * @verifies remove the re-encoded files if the task stopped before the update of the batch
+	 */
+	@Test
+	public void execute_shouldRemoveTheReencodedFilesIfTheTaskStoppedBeforeTheUpdateOfTheBatch() throws Exception {
+		Content content = new Content("reencode5", "Test content".getBytes(), TEST_CODE, TEST_CODE, "text/plain");
+		File file = saveLegacyContent(content);
+		Set<String> filesBefore = new HashSet<String>(listFiles());
+
+		ContentReencodingTask task = new ContentReencodingTask() {
+			@Override
+			protected void updateComplexObsValues(ContentHandlerDAO dao, Map<Integer, String> updates) {
+				//simulates the JVM stopping; the new files aren't cleaned up
+				throw new ThreadDeath();
+			}
+		};
+		task.initialize(newTaskDefinition("0"));
+		try {
+			task.execute();
+			fail("The simulated stop should have been thrown");
+		} catch (ThreadDeath expected) {
+		}
+		assertTrue(listFiles().size() > filesBefore.size());
+
+		newTask("0").execute();
+		//the next run removes the orphaned file before re-encoding the obs again
+		assertTrue(file.exists());
+		Map<String, String> valueComplexByFile = getValueComplexByFile();
+		assertFalse(valueComplexByFile.containsKey(file.getName()));
+		assertEquals(content, new UnstructuredDataHandler().fetchContent(content.getContentId()));
+	}
+
+	private ContentReencodingTask newTask(String deleteReplacedAfterMinutes) {
+		ContentReencodingTask task = new ContentReencodingTask();
+		task.initialize(newTaskDefinition(deleteReplacedAfterMinutes));
+		return task;
+	}
+
+	private TaskDefinition newTaskDefinition(String deleteReplacedAfterMinutes) {
+		TaskDefinition td = new TaskDefinition();
+		td.setProperty(ContentReencodingTask.PROP_DELETE_REPLACED_AFTER_MINUTES, deleteReplacedAfterMinutes);
+		return td;
+	}
+
+	/**
+	 * Saves the content and rewrites its file in the legacy format with an integer array payload.
+	 */
+	private File saveLegacyContent(Content content) throws Exception {
+		Map<EncounterRole, Set<Provider>> providersByRole = new HashMap<EncounterRole, Set<Provider>>();
+		providersByRole.put(Context.getEncounterService().getEncounterRole(1), Collections.singleton(Context.getProviderService().getProvider(1)));
+		Obs obs = new UnstructuredDataHandler().saveContent(Context.getPatientService().getPatient(2), providersByRole,
+			Context.getEncounterService().getEncounterType(1), content).getAllObs().iterator().next();
+		Context.flushSession();
+
+		File file = new File(complexObsDir, ContentObsHandler.getStoreKey(obs.getValueComplex()));
+		assertTrue(file.exists());
+		FileUtils.writeStringToFile(file, new Gson().toJson(content, Content.class), ContentObsHandler.FILE_CHARSET.name());
+		return file;
+	}
+
+	/**
+	 * Returns the value_complex of the obs of the handler mapped by file name.
+	 */
+	private Map<String, String> getValueComplexByFile() {
+		Map<String, String> res = new HashMap<String, String>();
+		Map<Integer, String> values = Context.getRegisteredComponent("shrContentHandlerDAO", ContentHandlerDAO.class)
+				.getComplexObsValues("ContentObsHandler", 0, 1000);
+		assertNotNull(values);
+		for (String value : values.values()) {
+			res.put(ContentObsHandler.getStoreKey(value), value);
+		}
+		return res;
+	}
+
+	private List<String> listFiles() {
+		String[] names = complexObsDir.list();
+		return names!=null ? Arrays.asList(names) : Collections.<String>emptyList();
+	}
+}
@@ -13,9 +13,19 @@
  */
 package org.openmrs.module.shr.contenthandler.web.controller;
 
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.ContentHandlerWarmup;
+import org.openmrs.module.shr.contenthandler.ContentSerializer;
+import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
+import org.openmrs.module.shr.contenthandler.metrics.ContentHandlerMetrics;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -29,8 +39,54 @@ public class  SHRContentHandlerManageController {
 	
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	/**
+	 * Required for the manage page and the status, which expose the registered handlers and the metrics
+	 */
+	public static final String PRIV_MANAGE = "Manage SHR Content Handler";
+	
 	@RequestMapping(value = "/module/shr.contenthandler/manage", method = RequestMethod.GET)
 	public void manage(ModelMap model) {
+		Context.requirePrivilege(PRIV_MANAGE);
 		model.addAttribute("user", Context.getAuthenticatedUser());
+		model.addAttribute("status", getStatus());
+	}
+
+	/**
+	 * The same data that is shown on the manage page, as JSON. Suitable for polling by monitoring tools,
+	 * which must be authenticated as a user with the {@value #PRIV_MANAGE} privilege.
+	 */
+	@RequestMapping(value = "/module/shr.contenthandler/status", method = RequestMethod.GET)
+	public void status(HttpServletResponse response) throws IOException {
+		if (!Context.hasPrivilege(PRIV_MANAGE)) {
+			response.sendError(Context.isAuthenticated() ? HttpServletResponse.SC_FORBIDDEN : HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		ContentSerializer.getGson().toJson(getStatus(), response.getWriter());
+	}
+
+	private Map<String, Object> getStatus() {
+		ContentHandlerService chs = Context.getService(ContentHandlerService.class);
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("ready", ContentHandlerWarmup.isReady());
+		status.put("contentTypeHandlers", chs.getRegisteredContentTypeHandlers());
+		status.put("typeFormatCodeHandlers", chs.getRegisteredTypeFormatCodeHandlers());
+		status.putAll(ContentHandlerMetrics.snapshot());
+		return status;
+	}
+
+	/**
+	 * Readiness check for load balancers. Responds with 200 once the module warm-up has completed, 503 otherwise.
+	 * No authentication is required, as only the readiness is exposed.
+	 */
+	@RequestMapping(value = "/module/shr.contenthandler/ready", method = RequestMethod.GET)
+	public void ready(HttpServletResponse response) throws IOException {
+		boolean ready = ContentHandlerWarmup.isReady();
+
+		response.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		response.setContentType("text/plain");
+		response.getWriter().write(ready ? "READY" : "WARMING UP");
 	}
 }
@@ -0,0 +1,71 @@
+<%@ include file="/WEB-INF/template/include.jsp"%>
+<%@ include file="/WEB-INF/template/header.jsp"%>
+
+<%@ include file="template/localHeader.jsp"%>
+
+<p><spring:message code="shr.contenthandler.status.ready" />: ${status.ready}</p>
+
+<h3><spring:message code="shr.contenthandler.status.handlers" /></h3>
+<table class="box">
+	<c:forEach var="entry" items="${status.contentTypeHandlers}">
+		<tr><td>${entry.key}</td><td>${entry.value}</td></tr>
+	</c:forEach>
+	<c:forEach var="entry" items="${status.typeFormatCodeHandlers}">
+		<tr><td>${entry.key}</td><td>${entry.value}</td></tr>
+	</c:forEach>
+</table>
+
+<h3><spring:message code="shr.contenthandler.status.operations" /></h3>
+<table class="box">
+	<tr><th></th><th></th><th>count</th><th>errors</th><th>calls/s</th><th>mean ms</th><th>p50 ms</th><th>p99 ms</th></tr>
+	<c:forEach var="handler" items="${status.handlers}">
+		<c:forEach var="op" items="${handler.value}">
+			<tr>
+				<td>${handler.key}</td><td>${op.key}</td>
+				<td>${op.value.count}</td><td>${op.value.errors}</td>
+				<td><fmt:formatNumber value="${op.value.throughput}" maxFractionDigits="2" /></td>
+				<td><fmt:formatNumber value="${op.value.meanMillis}" maxFractionDigits="2" /></td>
+				<td><fmt:formatNumber value="${op.value.p50Millis}" maxFractionDigits="2" /></td>
+				<td><fmt:formatNumber value="${op.value.p99Millis}" maxFractionDigits="2" /></td>
+			</tr>
+		</c:forEach>
+	</c:forEach>
+</table>
+
+<h3><spring:message code="shr.contenthandler.status.caches" /></h3>
+<table class="box">
+	<tr><th></th><th>size</th><th>hits</th><th>misses</th><th>hit rate</th></tr>
+	<c:forEach var="cache" items="${status.caches}">
+		<tr>
+			<td>${cache.key}</td><td>${cache.value.size}</td><td>${cache.value.hits}</td><td>${cache.value.misses}</td>
+			<td><fmt:formatNumber value="${cache.value.hitRate}" type="percent" /></td>
+		</tr>
+	</c:forEach>
+</table>
+
+<h3><spring:message code="shr.contenthandler.status.queues" /></h3>
+<table class="box">
+	<c:forEach var="queue" items="${status.queues}">
+		<tr><td>${queue.key}</td><td>${queue.value}</td></tr>
+	</c:forEach>
+</table>
+
+<h3><spring:message code="shr.contenthandler.status.bulkheads" /></h3>
+<table class="box">
+	<tr><th></th><th>active</th><th>limit</th><th>rejections</th></tr>
+	<c:forEach var="bulkhead" items="${status.bulkheads}">
+		<tr>
+			<td>${bulkhead.key}</td><td>${bulkhead.value.active}</td><td>${bulkhead.value.limit}</td>
+			<td>${bulkhead.value.rejections}</td>
+		</tr>
+	</c:forEach>
+</table>
+
+<h3><spring:message code="shr.contenthandler.status.storage" /></h3>
+<table class="box">
+	<c:forEach var="entry" items="${status.storage}">
+		<tr><td>${entry.key}</td><td>${entry.value}</td></tr>
+	</c:forEach>
+</table>
+
+<%@ include file="/WEB-INF/template/footer.jsp"%>